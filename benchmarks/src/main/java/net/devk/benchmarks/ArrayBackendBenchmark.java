@@ -0,0 +1,94 @@
+package net.devk.benchmarks;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import net.devk.regression.ArrayTrainingStep;
+import net.devk.regression.DataPoints;
+import net.devk.regression.FusedTrainingStep;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One training step of {@link ArrayTrainingStep} against the same step in the engine ({@link FusedTrainingStep}),
+ * on a batch that is already where the step needs it. The largest batch, 1M rows of 16 features, is
+ * {@link ArrayTrainingStep#DEFAULT_THRESHOLD}.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar ArrayBackendBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ArrayBackendBenchmark {
+
+    @Param({"1", "10", "100", "1000", "10000", "100000", "1000000"})
+    public int batchSize;
+
+    @Param({"1", "16"})
+    public int numFeatures;
+
+    NDManager manager;
+    NDArray x;
+    NDArray y;
+    FusedTrainingStep fusedStep;
+
+    float[] xValues;
+    float[] yValues;
+    ArrayTrainingStep arrayStep;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        manager = NDManager.newBaseManager();
+        float[] weights = new float[numFeatures];
+        for (int i = 0; i < numFeatures; i++) {
+            weights[i] = i % 2 == 0 ? 2 : -3.4f;
+        }
+        DataPoints dataPoints = DataPoints.syntheticData(manager, weights, 4.2f, batchSize, 42);
+        x = dataPoints.getX();
+        y = dataPoints.getY();
+        NDArray w = manager.zeros(new Shape(numFeatures));
+        NDArray b = manager.zeros(new Shape(1));
+        NDList params = new NDList(w, b);
+        params.forEach(param -> param.setRequiresGradient(true));
+        fusedStep = new FusedTrainingStep(params, 0.03f, batchSize);
+
+        xValues = x.toFloatArray();
+        yValues = y.toFloatArray();
+        arrayStep = new ArrayTrainingStep(new float[numFeatures], 0, 0.03f, batchSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public float array() {
+        return arrayStep.step(xValues, yValues, 0, batchSize);
+    }
+
+    // the loss is copied back so the asynchronous engine has finished the step, like the array version has
+    @Benchmark
+    public float ndarray() {
+        return fusedStep.stepWithLoss(x, y);
+    }
+}
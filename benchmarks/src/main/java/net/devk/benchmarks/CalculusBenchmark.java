@@ -0,0 +1,118 @@
+package net.devk.benchmarks;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import net.devk.Calculus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * The derivative of {@code 3x^2 - 4x} at every point of a grid: central differences with boxed doubles one point at
+ * a time, on primitives, and of the whole grid in the engine. The three compute the same expression with the same
+ * step, they differ only in boxing, primitives and vectorization. {@code autograd} is the exact derivative for
+ * reference, without a step. {@code integrate*} compare the trapezoid rule over the same samples in a Java loop and
+ * over the grid in the engine.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar CalculusBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CalculusBenchmark {
+
+    private static final double H = 1e-3;
+
+    @Param({"100", "10000", "1000000"})
+    public int points;
+
+    Function<Double, Double> boxed = x -> 3 * x * x - 4 * x;
+    DoubleUnaryOperator primitive = x -> 3 * x * x - 4 * x;
+    UnaryOperator<NDArray> vectorized = x -> x.square().mul(3).sub(x.mul(4));
+
+    NDManager manager;
+    NDArray grid;
+    double[] x;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        manager = NDManager.newBaseManager();
+        // points samples of [0, 3], both ends included like Calculus.trapezoid(f, 0, 3, points - 1)
+        grid = manager.linspace(0, 3, points).toType(DataType.FLOAT64, false);
+        x = grid.toDoubleArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public double[] boxed() {
+        double[] derivative = new double[x.length];
+        for (int i = 0; i < x.length; i++) {
+            derivative[i] = (boxed.apply(x[i] + H) - boxed.apply(x[i] - H)) / (2 * H);
+        }
+        return derivative;
+    }
+
+    @Benchmark
+    public double[] primitive() {
+        return Calculus.centralDifference(primitive, x, H);
+    }
+
+    // every benchmark returns the values in Java, so the engine has finished too
+    @Benchmark
+    public double[] vectorized() {
+        try (NDManager scope = manager.newSubManager()) {
+            NDArray input = grid.duplicate();
+            input.attach(scope);
+            return Calculus.centralDifference(vectorized, input, H).toDoubleArray();
+        }
+    }
+
+    @Benchmark
+    public double[] autograd() {
+        try (NDManager scope = manager.newSubManager()) {
+            NDArray input = grid.duplicate();
+            input.attach(scope);
+            NDArray derivative = Calculus.derivative(vectorized, input);
+            return derivative.toDoubleArray();
+        }
+    }
+
+    @Benchmark
+    public double integratePrimitive() {
+        return Calculus.trapezoid(primitive, 0, 3, points - 1);
+    }
+
+    @Benchmark
+    public double integrateVectorized() {
+        try (NDManager scope = manager.newSubManager()) {
+            NDArray input = grid.duplicate();
+            input.attach(scope);
+            return Calculus.trapezoid(vectorized.apply(input), 3.0 / (points - 1));
+        }
+    }
+}
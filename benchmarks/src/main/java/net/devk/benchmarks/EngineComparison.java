@@ -0,0 +1,428 @@
+package net.devk.benchmarks;
+
+import ai.djl.Model;
+import ai.djl.engine.Engine;
+import ai.djl.inference.Predictor;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.ParameterList;
+import ai.djl.training.DefaultTrainingConfig;
+import ai.djl.training.EasyTrain;
+import ai.djl.training.Trainer;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.loss.Loss;
+import ai.djl.training.optimizer.Optimizer;
+import ai.djl.training.tracker.Tracker;
+import ai.djl.translate.Batchifier;
+import ai.djl.translate.NoopTranslator;
+import ai.djl.translate.TranslateException;
+import net.devk.Engines;
+import net.devk.regression.ArrayTrainingStep;
+import net.devk.regression.LinearRegressionUsingDLJ;
+import net.devk.regression.SyntheticDataset;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The same linear regression trained and served on every engine, each one in a JVM of its own so that its startup
+ * and its memory are its own: MXNet, PyTorch when the jar was built with {@code -Ppytorch}, and {@code java}, the
+ * plain float arrays of {@link ArrayTrainingStep} without any engine.
+ *
+ * <pre>
+ * mvn -Ppytorch install
+ * cd benchmarks
+ * mvn -Ppytorch package
+ * java -cp target/benchmarks.jar net.devk.benchmarks.EngineComparison
+ * </pre>
+ * <p>
+ * For every engine it reports
+ * <ul>
+ * <li>startup: the JVM uptime when the engine has run its first operation, after an untimed start that extracted
+ * (or downloaded) its native library</li>
+ * <li>the latency of a training step (batch to NDArrays, forward, backward, sgd update) and the rows trained per
+ * second, over every epoch but the first</li>
+ * <li>the latency of predicting one row and the rows predicted per second in batches</li>
+ * <li>the peak resident memory of the process, native memory included, and the peak heap</li>
+ * <li>the mean squared loss over all the rows after training, to show the engines did the same work</li>
+ * </ul>
+ * {@code -Dengines=MXNet,java} picks the engines, {@code -Drows} (default 50000), {@code -Dfeatures} (16),
+ * {@code -DbatchSize} (100), {@code -Depochs} (3) and {@code -Drequests} (2000 single row predictions) size the
+ * work.
+ */
+public final class EngineComparison {
+
+    private static final String JAVA = "java";
+    private static final String RESULT = "result";
+    private static final float LR = 0.03f;
+    private static final String[] PROPERTIES = {"rows", "features", "batchSize", "epochs", "requests"};
+
+    private EngineComparison() {
+    }
+
+    private static class Result {
+        String engine;
+        String version;
+        long startupMillis;
+        double stepP50;
+        double stepP99;
+        double trainRowsPerSecond;
+        double predictP50;
+        double predictP99;
+        double predictRowsPerSecond;
+        long peakRss;
+        long peakHeap;
+        double loss;
+
+        String format() {
+            return String.join("\t", RESULT, engine, version, Long.toString(startupMillis), Double.toString(stepP50),
+                    Double.toString(stepP99), Double.toString(trainRowsPerSecond), Double.toString(predictP50),
+                    Double.toString(predictP99), Double.toString(predictRowsPerSecond), Long.toString(peakRss),
+                    Long.toString(peakHeap), Double.toString(loss));
+        }
+
+        static Result parse(String line) {
+            String[] fields = line.split("\t");
+            Result result = new Result();
+            result.engine = fields[1];
+            result.version = fields[2];
+            result.startupMillis = Long.parseLong(fields[3]);
+            result.stepP50 = Double.parseDouble(fields[4]);
+            result.stepP99 = Double.parseDouble(fields[5]);
+            result.trainRowsPerSecond = Double.parseDouble(fields[6]);
+            result.predictP50 = Double.parseDouble(fields[7]);
+            result.predictP99 = Double.parseDouble(fields[8]);
+            result.predictRowsPerSecond = Double.parseDouble(fields[9]);
+            result.peakRss = Long.parseLong(fields[10]);
+            result.peakHeap = Long.parseLong(fields[11]);
+            result.loss = Double.parseDouble(fields[12]);
+            return result;
+        }
+    }
+
+    // with an engine name it is the worker that measures that engine
+    public static void main(String[] args) throws IOException, InterruptedException, TranslateException {
+        if (args.length == 1) {
+            System.out.println(measure(args[0]).format());
+            return;
+        }
+        List<String> engines = new ArrayList<>();
+        String selected = System.getProperty("engines");
+        if (selected == null) {
+            engines.addAll(Engine.getAllEngines());
+            engines.add(JAVA);
+        } else {
+            for (String name : selected.split(",")) {
+                engines.add(JAVA.equalsIgnoreCase(name) ? JAVA : Engines.engineName(name));
+            }
+        }
+
+        System.out.printf("%8s %8s %8s %9s %9s %10s %9s %9s %10s %8s %8s %10s%n", "engine", "version", "start ms",
+                "step p50", "step p99", "train/s", "pred p50", "pred p99", "pred/s", "rss MB", "heap MB", "loss");
+        for (String engine : engines) {
+            if (!JAVA.equals(engine)) {
+                // the first start of an engine unpacks its native library, startup is measured on the next one
+                fork(engine, new ArrayList<>());
+            }
+            List<String> output = new ArrayList<>();
+            Result result = fork(engine, output);
+            if (result == null) {
+                System.out.printf("%8s failed:%n", engine);
+                output.forEach(System.out::println);
+                continue;
+            }
+            System.out.printf("%8s %8s %8d %9.1f %9.1f %10.0f %9.1f %9.1f %10.0f %8.0f %8.0f %10.3g%n", result.engine,
+                    result.version, result.startupMillis, result.stepP50, result.stepP99, result.trainRowsPerSecond,
+                    result.predictP50, result.predictP99, result.predictRowsPerSecond, result.peakRss / 1e6,
+                    result.peakHeap / 1e6, result.loss);
+        }
+        System.out.println("latencies in microseconds, throughputs in rows per second");
+    }
+
+    // runs the worker for an engine in a new JVM with the classpath, heap settings and sizes of this one
+    private static Result fork(String engine, List<String> output) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith("-X")) {
+                command.add(argument);
+            }
+        }
+        for (String property : PROPERTIES) {
+            String value = System.getProperty(property);
+            if (value != null) {
+                command.add("-D" + property + "=" + value);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(EngineComparison.class.getName());
+        command.add(engine);
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .start();
+        Result result = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT + "\t")) {
+                    result = Result.parse(line);
+                } else {
+                    output.add(line);
+                }
+            }
+        }
+        return process.waitFor() == 0 ? result : null;
+    }
+
+    private static Result measure(String engine) throws TranslateException {
+        Result result = new Result();
+        result.engine = engine;
+        if (JAVA.equals(engine)) {
+            result.version = "-";
+            result.startupMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        } else {
+            System.setProperty("ai.djl.default_engine", engine);
+            result.version = Engine.getInstance().getVersion();
+            try (NDManager manager = NDManager.newBaseManager()) {
+                manager.ones(new Shape(1)).sum().getFloat();
+            }
+            result.startupMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        }
+
+        int rows = Integer.getInteger("rows", 50_000);
+        int features = Integer.getInteger("features", 16);
+        int batchSize = Integer.getInteger("batchSize", 100);
+        int epochs = Integer.getInteger("epochs", 3);
+        int requests = Integer.getInteger("requests", 2000);
+        float[] weights = new float[features];
+        for (int j = 0; j < features; j++) {
+            weights[j] = (float) (2 * Math.sin(j + 1));
+        }
+        float[] x = new float[rows * features];
+        float[] y = new float[rows];
+        SyntheticDataset.fill(weights, 4.2f, 0.01f, 42, 0, rows, x, 0, y, 0);
+
+        Workload workload = JAVA.equals(engine) ? new ArrayWorkload(features, batchSize)
+                : new EngineWorkload(features, batchSize);
+        try {
+            int batches = (rows + batchSize - 1) / batchSize;
+            long[] steps = new long[batches * Math.max(epochs - 1, 1)];
+            int measured = 0;
+            long trainNanos = 0;
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                // the first epoch warms up the JIT and the engine
+                boolean timed = epoch > 0 || epochs == 1;
+                for (int from = 0; from < rows; from += batchSize) {
+                    int size = Math.min(batchSize, rows - from);
+                    long start = System.nanoTime();
+                    workload.train(x, y, from, size);
+                    long nanos = System.nanoTime() - start;
+                    if (timed) {
+                        steps[measured++] = nanos;
+                        trainNanos += nanos;
+                    }
+                }
+            }
+            Arrays.sort(steps, 0, measured);
+            result.stepP50 = steps[measured / 2] / 1e3;
+            result.stepP99 = steps[(int) (measured * 0.99)] / 1e3;
+            result.trainRowsPerSecond = (double) measured * batchSize * 1e9 / trainNanos;
+
+            float[] prediction = new float[batchSize];
+            long[] latencies = new long[requests];
+            // the first pass warms up, the second is measured
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < requests; i++) {
+                    long start = System.nanoTime();
+                    workload.predict(x, i % rows, 1, prediction);
+                    latencies[i] = System.nanoTime() - start;
+                }
+            }
+            Arrays.sort(latencies);
+            result.predictP50 = latencies[requests / 2] / 1e3;
+            result.predictP99 = latencies[(int) (requests * 0.99)] / 1e3;
+            long start = System.nanoTime();
+            for (int from = 0; from < rows; from += batchSize) {
+                workload.predict(x, from, Math.min(batchSize, rows - from), prediction);
+            }
+            result.predictRowsPerSecond = rows * 1e9 / (System.nanoTime() - start);
+
+            result.loss = meanSquaredLoss(workload.weights(), workload.bias(), x, y);
+        } finally {
+            workload.close();
+        }
+        result.peakRss = peakRss();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                result.peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        return result;
+    }
+
+    private static double meanSquaredLoss(float[] weights, float bias, float[] x, float[] y) {
+        int features = weights.length;
+        double sum = 0;
+        for (int i = 0; i < y.length; i++) {
+            double yHat = bias;
+            for (int j = 0; j < features; j++) {
+                yHat += weights[j] * x[i * features + j];
+            }
+            sum += (yHat - y[i]) * (yHat - y[i]);
+        }
+        return sum / y.length;
+    }
+
+    // VmHWM, the peak resident set of the process, -1 where there is no /proc
+    private static long peakRss() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    private interface Workload extends AutoCloseable {
+
+        // one sgd step on rows [from, from + size), finished when it returns
+        void train(float[] x, float[] y, int from, int size);
+
+        void predict(float[] x, int from, int size, float[] prediction) throws TranslateException;
+
+        float[] weights();
+
+        float bias();
+
+        @Override
+        void close();
+    }
+
+    private static final class ArrayWorkload implements Workload {
+
+        private final int features;
+        private final ArrayTrainingStep step;
+
+        ArrayWorkload(int features, int batchSize) {
+            this.features = features;
+            step = new ArrayTrainingStep(new float[features], 0, LR, batchSize);
+        }
+
+        @Override
+        public void train(float[] x, float[] y, int from, int size) {
+            step.step(x, y, from, size);
+        }
+
+        @Override
+        public void predict(float[] x, int from, int size, float[] prediction) {
+            float[] w = step.getWeights();
+            float b = step.getBias();
+            for (int i = 0; i < size; i++) {
+                float yHat = b;
+                int row = (from + i) * features;
+                for (int j = 0; j < features; j++) {
+                    yHat += w[j] * x[row + j];
+                }
+                prediction[i] = yHat;
+            }
+        }
+
+        @Override
+        public float[] weights() {
+            return step.getWeights();
+        }
+
+        @Override
+        public float bias() {
+            return step.getBias();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // the model and the step of OnlineTrainer, the predictions of InferenceServer
+    private static final class EngineWorkload implements Workload {
+
+        private final int features;
+        private final Model model;
+        private final Trainer trainer;
+        private final Predictor<NDList, NDList> predictor;
+        private final ParameterList parameters;
+
+        EngineWorkload(int features, int batchSize) {
+            this.features = features;
+            model = LinearRegressionUsingDLJ.newModel();
+            DefaultTrainingConfig config = new DefaultTrainingConfig(Loss.l2Loss())
+                    .optOptimizer(Optimizer.sgd().setLearningRateTracker(Tracker.fixed(LR)).build());
+            trainer = model.newTrainer(config);
+            trainer.initialize(new Shape(batchSize, features));
+            predictor = model.newPredictor(new NoopTranslator());
+            parameters = model.getBlock().getParameters();
+        }
+
+        @Override
+        public void train(float[] x, float[] y, int from, int size) {
+            NDManager manager = trainer.getManager().newSubManager();
+            NDArray data = manager.create(FloatBuffer.wrap(x, from * features, size * features).slice(),
+                    new Shape(size, features));
+            NDArray labels = manager.create(FloatBuffer.wrap(y, from, size).slice(), new Shape(size));
+            Batch batch = new Batch(manager, new NDList(data), new NDList(labels), size, Batchifier.STACK,
+                    Batchifier.STACK, 0, 0);
+            EasyTrain.trainBatch(trainer, batch);
+            trainer.step();
+            // reading the bias waits for the update, an engine may run its operations asynchronously
+            parameters.valueAt(1).getArray().getFloat();
+            batch.close();
+        }
+
+        @Override
+        public void predict(float[] x, int from, int size, float[] prediction) throws TranslateException {
+            try (NDManager manager = model.getNDManager().newSubManager()) {
+                NDArray input = manager.create(FloatBuffer.wrap(x, from * features, size * features).slice(),
+                        new Shape(size, features));
+                NDArray output = predictor.predict(new NDList(input)).head();
+                output.attach(manager);
+                System.arraycopy(output.toFloatArray(), 0, prediction, 0, size);
+            }
+        }
+
+        @Override
+        public float[] weights() {
+            return parameters.valueAt(0).getArray().toFloatArray();
+        }
+
+        @Override
+        public float bias() {
+            return parameters.valueAt(1).getArray().getFloat();
+        }
+
+        @Override
+        public void close() {
+            predictor.close();
+            trainer.close();
+            model.close();
+        }
+    }
+}
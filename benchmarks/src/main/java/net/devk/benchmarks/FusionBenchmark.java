@@ -0,0 +1,124 @@
+package net.devk.benchmarks;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import net.devk.FusedExpression;
+import net.devk.regression.LinearRegressionFromScratch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Element-wise chains as one eager NDArray call per operation against {@link FusedExpression}: the squared loss of
+ * {@link LinearRegressionFromScratch}, {@code (x + y) * (x - y) / 2} on two arrays of the same shape and the
+ * broadcasting of {@code NDArrayOperations} on a larger scale, a (rows, 1) column times a (1, 16) row plus another
+ * one, standardized again with the same mean and scale per column. The eager chains close their intermediate arrays
+ * as they go.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar FusionBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FusionBenchmark {
+
+    private static final int COLUMNS = 16;
+
+    @Param({"100", "10000", "1000000"})
+    public int rows;
+
+    NDManager manager;
+    NDArray yHat;
+    NDArray y;
+    NDArray x;
+    NDArray z;
+    NDArray column;
+    NDArray mean;
+    NDArray scale;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        manager = NDManager.newBaseManager();
+        yHat = manager.randomNormal(new Shape(rows, 1));
+        y = manager.randomNormal(new Shape(rows));
+        x = manager.randomNormal(new Shape(rows));
+        z = manager.randomNormal(new Shape(rows));
+        column = manager.randomNormal(new Shape(rows, 1));
+        mean = manager.randomNormal(new Shape(1, COLUMNS));
+        scale = manager.randomUniform(1, 2, new Shape(1, COLUMNS));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public float squaredLossEager() {
+        try (NDArray labels = y.reshape(yHat.getShape());
+             NDArray difference = yHat.sub(labels);
+             NDArray square = difference.square();
+             NDArray loss = square.div(2)) {
+            return loss.getFloat(0, 0);
+        }
+    }
+
+    @Benchmark
+    public float squaredLossFused() {
+        try (NDArray loss = LinearRegressionFromScratch.squaredLossFused(yHat, y)) {
+            return loss.getFloat(0, 0);
+        }
+    }
+
+    @Benchmark
+    public float productEager() {
+        try (NDArray sum = x.add(z);
+             NDArray difference = x.sub(z);
+             NDArray product = sum.mul(difference);
+             NDArray result = product.div(2)) {
+            return result.getFloat(0);
+        }
+    }
+
+    @Benchmark
+    public float productFused() {
+        try (NDArray result = FusedExpression.of(x).add(z).mul(FusedExpression.of(x).sub(z)).div(2).eval()) {
+            return result.getFloat(0);
+        }
+    }
+
+    @Benchmark
+    public float broadcastEager() {
+        try (NDArray scaled = column.mul(scale);
+             NDArray grid = scaled.add(mean);
+             NDArray centered = grid.sub(mean);
+             NDArray result = centered.div(scale)) {
+            return result.getFloat(0, 0);
+        }
+    }
+
+    @Benchmark
+    public float broadcastFused() {
+        try (NDArray result = FusedExpression.of(column).mul(scale).add(mean).sub(mean).div(scale).eval()) {
+            return result.getFloat(0, 0);
+        }
+    }
+}
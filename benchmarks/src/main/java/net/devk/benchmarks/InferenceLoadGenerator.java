@@ -0,0 +1,123 @@
+package net.devk.benchmarks;
+
+import ai.djl.Model;
+import net.devk.regression.InferenceServer;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latency of {@link InferenceServer} against the offered load, with and without request batching.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar net.devk.benchmarks.InferenceLoadGenerator [qps...]
+ * </pre>
+ * <p>
+ * The load is open-loop: requests are sent on a fixed schedule whether or not the earlier ones were answered, and
+ * a latency is measured from the time the request was due, not from when it was actually sent. A closed loop that
+ * waits for each answer would slow down together with the server and hide its queueing delay.
+ * {@code -Dseconds=<n>} sets the length of every run, the batch column is the mean batch size of that run.
+ */
+public final class InferenceLoadGenerator {
+
+    private InferenceLoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] offered = args.length == 0
+                ? new int[]{100, 500, 1000, 2000, 5000}
+                : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+        int seconds = Integer.getInteger("seconds", 5);
+        int[][] configs = {{1, 0}, {64, 2000}};
+
+        System.out.printf("%8s %10s %10s %10s %10s %10s %10s %8s%n", "maxBatch", "offered", "achieved", "p50 ms",
+                "p99 ms", "max ms", "batch", "errors");
+        try (Model model = InferenceServer.newModel(2, 3)) {
+            for (int[] config : configs) {
+                try (InferenceServer server = new InferenceServer(model, 1, config[0], config[1])) {
+                    server.start(0, 256);
+                    URI uri = URI.create("http://localhost:" + server.getPort() + "/predict");
+                    // warm up the connections and the engine
+                    run(uri, 200, 2);
+                    for (int qps : offered) {
+                        // the batches of this run only, not of the warmup and the runs before
+                        long batches = server.getBatches();
+                        long rows = server.getRows();
+                        Result result = run(uri, qps, seconds);
+                        batches = server.getBatches() - batches;
+                        rows = server.getRows() - rows;
+                        long[] latencies = result.latencies;
+                        System.out.printf("%8d %10d %10.0f %10.2f %10.2f %10.2f %10.1f %8d%n", config[0], qps,
+                                result.achieved, percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6,
+                                percentile(latencies, 100) / 1e6, batches == 0 ? 0 : (double) rows / batches,
+                                result.errors);
+                    }
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    private static class Result {
+        long[] latencies;
+        double achieved;
+        int errors;
+    }
+
+    private static Result run(URI uri, int qps, int seconds) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        HttpClient client = HttpClient.newBuilder().executor(executor).build();
+        int total = qps * seconds;
+        long[] latencies = new long[total];
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        long interval = 1_000_000_000L / qps;
+        long start = System.nanoTime();
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[total];
+        for (int i = 0; i < total; i++) {
+            long due = start + i * interval;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .POST(HttpRequest.BodyPublishers.ofString(Float.toString(i % 100)))
+                    .build();
+            int index = i;
+            futures[i] = client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                    .whenComplete((response, error) -> {
+                        latencies[index] = System.nanoTime() - due;
+                        if (error != null || response.statusCode() != 200) {
+                            errors.incrementAndGet();
+                        }
+                        completed.incrementAndGet();
+                    });
+        }
+        CompletableFuture.allOf(futures).exceptionally(e -> null).join();
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        Result result = new Result();
+        result.latencies = latencies;
+        result.achieved = completed.get() * 1e9 / elapsed;
+        result.errors = errors.get();
+        return result;
+    }
+
+    private static long percentile(long[] values, double percentile) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
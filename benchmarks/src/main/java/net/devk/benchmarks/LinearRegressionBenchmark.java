@@ -0,0 +1,330 @@
+package net.devk.benchmarks;
+
+import ai.djl.Model;
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.SequentialBlock;
+import ai.djl.nn.core.Linear;
+import ai.djl.training.DefaultTrainingConfig;
+import ai.djl.training.EasyTrain;
+import ai.djl.training.GradientCollector;
+import ai.djl.training.Trainer;
+import ai.djl.training.dataset.ArrayDataset;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.loss.Loss;
+import ai.djl.training.optimizer.Optimizer;
+import ai.djl.training.tracker.Tracker;
+import net.devk.regression.DataPoints;
+import net.devk.regression.FusedTrainingStep;
+import net.devk.regression.LinearRegressionFromScratch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per batch cost of the two linear regression training loops.
+ *
+ * <pre>
+ * mvn install                       # from the parent directory
+ * cd benchmarks && mvn package
+ * java -jar target/benchmarks.jar LinearRegressionBenchmark -prof gc
+ * </pre>
+ * <p>
+ * The primary score is steps (batches) per second. {@code -prof gc} adds the heap allocation rate,
+ * {@link StepCounters} adds the native arrays and bytes alive in the step scope and {@link ParameterGrowth} what the
+ * parameters' manager gained over an iteration.
+ * <p>
+ * The batches of an epoch are made before each iteration and taken round robin. Every step opens a scope for its
+ * batch and closes it at the end, like a step of the training loops closes its batch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinearRegressionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Data {
+
+        @Param({"10", "100", "1000"})
+        public int batchSize;
+
+        @Param({"1", "16", "256"})
+        public int numFeatures;
+
+        @Param({"1000", "100000"})
+        public int numExamples;
+
+        NDManager manager;
+        NDArray features;
+        NDArray labels;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            manager = NDManager.newBaseManager();
+            Random random = new Random(42);
+            float[] weights = new float[numFeatures];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = random.nextFloat() * 4 - 2;
+            }
+            DataPoints dataPoints = DataPoints.syntheticData(manager, weights, 3f, numExamples);
+            features = dataPoints.getX();
+            labels = dataPoints.getY();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            manager.close();
+        }
+
+        ArrayDataset dataset() {
+            return new ArrayDataset.Builder()
+                    .setData(features)
+                    .optLabels(labels)
+                    .setSampling(batchSize, false)
+                    .build();
+        }
+
+        // the batches of an epoch in order, not through getData, its iterator closes them all once it runs out
+        List<Batch> epoch(ArrayDataset dataset) {
+            List<Batch> batches = new ArrayList<>();
+            for (long from = 0; from < dataset.size(); from += batchSize) {
+                batches.add(dataset.getByRange(manager.newSubManager(), from,
+                        Math.min(from + batchSize, dataset.size())));
+            }
+            return batches;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Scratch {
+
+        NDManager paramManager;
+        NDList params;
+        FusedTrainingStep fusedStep;
+        ArrayDataset dataset;
+        long[] paramsAtIterationStart;
+
+        List<Batch> batches;
+        // the predictions of the batches for scratchSquaredLoss, made with the parameters of the iteration start
+        List<NDArray> predictions;
+        int next;
+
+        NDArray x;
+        NDArray y;
+        NDArray yHat;
+
+        @Setup(Level.Trial)
+        public void setUp(Data data) {
+            dataset = data.dataset();
+            paramManager = data.manager.newSubManager();
+            NDArray w = paramManager.randomNormal(0, 0.01f, new Shape(data.numFeatures), DataType.FLOAT32);
+            NDArray b = paramManager.zeros(new Shape(1));
+            params = new NDList(w, b);
+            params.forEach(param -> param.setRequiresGradient(true));
+            fusedStep = new FusedTrainingStep(params, 0.03f, data.batchSize);
+
+            // sgd needs gradients to exist before its first invocation
+            try (Batch batch = dataset.getByRange(data.manager.newSubManager(), 0, data.batchSize);
+                 GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+                NDArray x = batch.getData().head();
+                gc.backward(LinearRegressionFromScratch.squaredLoss(
+                        LinearRegressionFromScratch.linearRegression(x, params.get(0), params.get(1)),
+                        batch.getLabels().head()));
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void startIteration(Data data) {
+            batches = data.epoch(dataset);
+            predictions = new ArrayList<>();
+            for (Batch batch : batches) {
+                predictions.add(LinearRegressionFromScratch.linearRegression(batch.getData().head(),
+                        params.get(0), params.get(1)));
+            }
+            next = 0;
+            paramsAtIterationStart = NativeMemory.liveArraysAndBytes(paramManager);
+        }
+
+        @TearDown(Level.Iteration)
+        public void endIteration(ParameterGrowth growth) {
+            // sgd attaches its temporaries to the gradients' manager, they outlive every batch
+            long[] now = NativeMemory.liveArraysAndBytes(paramManager);
+            growth.paramArrays = now[0] - paramsAtIterationStart[0];
+            growth.paramBytes = now[1] - paramsAtIterationStart[1];
+            batches.forEach(Batch::close);
+        }
+
+        // the arrays of the next batch in a scope of their own, what the step makes from them is closed with it
+        NDManager nextStep() {
+            Batch batch = batches.get(next);
+            NDManager step = batch.getManager().newSubManager();
+            x = batch.getData().head();
+            y = batch.getLabels().head();
+            yHat = predictions.get(next);
+            x.tempAttach(step);
+            y.tempAttach(step);
+            yHat.tempAttach(step);
+            next = (next + 1) % batches.size();
+            return step;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            paramManager.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Djl {
+
+        Model model;
+        Trainer trainer;
+        ArrayDataset dataset;
+        List<Batch> batches;
+        int next;
+
+        Batch batch;
+
+        @Setup(Level.Trial)
+        public void setUp(Data data) {
+            dataset = data.dataset();
+            model = Model.newInstance("lin-reg");
+            SequentialBlock net = new SequentialBlock();
+            net.add(Linear.builder().optBias(true).setUnits(1).build());
+            model.setBlock(net);
+
+            Optimizer sgd = Optimizer.sgd().setLearningRateTracker(Tracker.fixed(0.03f)).build();
+            DefaultTrainingConfig config = new DefaultTrainingConfig(Loss.l2Loss())
+                    .optOptimizer(sgd)
+                    .optDevices(data.manager.getEngine().getDevices(1));
+            trainer = model.newTrainer(config);
+            trainer.initialize(new Shape(data.batchSize, data.numFeatures));
+        }
+
+        @Setup(Level.Iteration)
+        public void startIteration(Data data) {
+            batches = data.epoch(dataset);
+            next = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void endIteration() {
+            batches.forEach(Batch::close);
+        }
+
+        // see Scratch.nextStep
+        NDManager nextStep() {
+            batch = batches.get(next);
+            NDManager step = batch.getManager().newSubManager();
+            batch.getData().tempAttach(step);
+            batch.getLabels().tempAttach(step);
+            next = (next + 1) % batches.size();
+            return step;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            trainer.close();
+            model.close();
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer scratchLinearRegression(Scratch s, StepCounters counters) {
+        try (NDManager step = s.nextStep()) {
+            NDArray out = LinearRegressionFromScratch.linearRegression(s.x, s.params.get(0), s.params.get(1));
+            // the engine may run asynchronously, reading the result waits for it
+            ByteBuffer result = out.toByteBuffer();
+            NativeMemory.record(counters, step);
+            return result;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer scratchSquaredLoss(Scratch s, StepCounters counters) {
+        try (NDManager step = s.nextStep()) {
+            NDArray out = LinearRegressionFromScratch.squaredLoss(s.yHat, s.y);
+            ByteBuffer result = out.toByteBuffer();
+            NativeMemory.record(counters, step);
+            return result;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer scratchSgd(Scratch s, Data data) {
+        LinearRegressionFromScratch.sgd(s.params, 0.03f, data.batchSize);
+        return s.params.get(0).toByteBuffer();
+    }
+
+    @Benchmark
+    public ByteBuffer scratchStep(Scratch s, Data data, StepCounters counters) {
+        NDList params = s.params;
+        try (NDManager step = s.nextStep()) {
+            try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+                NDArray yHat = LinearRegressionFromScratch.linearRegression(s.x, params.get(0), params.get(1));
+                gc.backward(LinearRegressionFromScratch.squaredLoss(yHat, s.y));
+            }
+            LinearRegressionFromScratch.sgd(params, 0.03f, data.batchSize);
+            ByteBuffer result = params.get(0).toByteBuffer();
+            NativeMemory.record(counters, step);
+            return result;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer scratchFusedStep(Scratch s, StepCounters counters) {
+        try (NDManager step = s.nextStep()) {
+            s.fusedStep.step(s.x, s.y);
+            ByteBuffer result = s.params.get(0).toByteBuffer();
+            // the step closes its own scope, what it allocated is already gone from the batch scope
+            counters.nativeArrays += s.fusedStep.getLastStepArrays();
+            return result;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer djlStep(Djl s, StepCounters counters) {
+        try (NDManager step = s.nextStep()) {
+            EasyTrain.trainBatch(s.trainer, s.batch);
+            s.trainer.step();
+            ByteBuffer result = s.trainer.getModel().getBlock().getParameters().valueAt(0).getArray().toByteBuffer();
+            NativeMemory.record(counters, step);
+            return result;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(LinearRegressionBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
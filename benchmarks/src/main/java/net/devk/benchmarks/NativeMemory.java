@@ -0,0 +1,33 @@
+package net.devk.benchmarks;
+
+import ai.djl.ndarray.BaseNDManager;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+
+public final class NativeMemory {
+
+    private NativeMemory() {
+    }
+
+    public static long bytes(NDArray array) {
+        return array.getShape().size() * array.getDataType().getNumOfBytes();
+    }
+
+    // {live arrays, live bytes} of the manager and all of its sub managers
+    public static long[] liveArraysAndBytes(NDManager manager) {
+        long arrays = 0;
+        long bytes = 0;
+        for (NDArray array : ((BaseNDManager) manager).getManagedArrays()) {
+            arrays++;
+            bytes += bytes(array);
+        }
+        return new long[]{arrays, bytes};
+    }
+
+    // counts what is still attached to the step's manager right before it is closed
+    public static void record(StepCounters counters, NDManager stepManager) {
+        long[] live = liveArraysAndBytes(stepManager);
+        counters.nativeArrays += live[0];
+        counters.nativeBytes += live[1];
+    }
+}
@@ -0,0 +1,200 @@
+package net.devk.benchmarks;
+
+import ai.djl.Model;
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.ParameterList;
+import ai.djl.training.DefaultTrainingConfig;
+import ai.djl.training.EasyTrain;
+import ai.djl.training.GradientCollector;
+import ai.djl.training.Trainer;
+import ai.djl.training.dataset.ArrayDataset;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.loss.Loss;
+import ai.djl.training.optimizer.Optimizer;
+import ai.djl.training.tracker.Tracker;
+import ai.djl.translate.TranslateException;
+import net.devk.regression.DataPoints;
+import net.devk.regression.FusedOptimizer;
+import net.devk.regression.FusedTrainingStep;
+import net.devk.regression.LinearRegressionFromScratch;
+import net.devk.regression.LinearRegressionUsingDLJ;
+
+import java.io.IOException;
+
+/**
+ * Time to a target loss of the from-scratch trainer with its plain {@code sgd}, DJL's {@link Optimizer#sgd()} and
+ * the {@link FusedOptimizer} methods, on badly scaled features: the second feature is 10 times as large as the
+ * first, so the loss is a narrow valley where a learning rate small enough for the steep direction crawls along
+ * the flat one.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar net.devk.benchmarks.OptimizerComparison
+ * </pre>
+ * <p>
+ * Every optimizer runs with each of a few learning rates and the fastest one is reported, a fixed rate would only
+ * compare how well it happens to suit each optimizer. The loss is the mean squared loss over all the examples,
+ * checked after every epoch, {@code -Dtarget} (default 1e-4, the noise alone is 5e-5) and {@code -DmaxEpochs}
+ * (default 100) bound a run.
+ */
+public final class OptimizerComparison {
+
+    private static final float[] WEIGHTS = {2, -3.4f};
+    private static final float BIAS = 4.2f;
+    private static final int EXAMPLES = 2000;
+    private static final int BATCH_SIZE = 50;
+    private static final float[] LEARNING_RATES = {0.001f, 0.003f, 0.01f, 0.03f, 0.1f};
+
+    private OptimizerComparison() {
+    }
+
+    private static class Result {
+        float lr;
+        int epochs = -1;
+        long nanos = Long.MAX_VALUE;
+        float loss;
+    }
+
+    public static void main(String[] args) throws TranslateException, IOException {
+        double target = Double.parseDouble(System.getProperty("target", "1e-4"));
+        int maxEpochs = Integer.getInteger("maxEpochs", 100);
+        String[] names = {"scratch sgd", "djl sgd", "sgd", "momentum", "nesterov", "adam"};
+
+        System.out.printf("%12s %8s %8s %10s %12s%n", "optimizer", "lr", "epochs", "ms", "loss");
+        try (NDManager manager = NDManager.newBaseManager()) {
+            DataPoints dataPoints = DataPoints.syntheticData(manager, WEIGHTS, BIAS, EXAMPLES, 42);
+            // undo the scale in the weights, the labels stay the same
+            NDArray scale = manager.create(new float[]{1, 10});
+            NDArray x = dataPoints.getX().mul(scale);
+            NDArray y = dataPoints.getY();
+            ArrayDataset dataset = new ArrayDataset.Builder()
+                    .setData(x)
+                    .optLabels(y)
+                    .setSampling(BATCH_SIZE, false)
+                    .build();
+            float[] trueWeights = manager.create(WEIGHTS).div(scale).toFloatArray();
+
+            for (String name : names) {
+                Result best = new Result();
+                for (float lr : LEARNING_RATES) {
+                    Result result = "djl sgd".equals(name)
+                            ? runDjl(manager, dataset, x, y, lr, target, maxEpochs)
+                            : runScratch(manager, dataset, x, y, name, lr, target, maxEpochs);
+                    if (result.epochs > 0 && result.nanos < best.nanos) {
+                        best = result;
+                    }
+                }
+                if (best.epochs < 0) {
+                    System.out.printf("%12s %8s %8s %10s %12s%n", name, "-", ">" + maxEpochs, "-", "-");
+                } else {
+                    System.out.printf("%12s %8.3f %8d %10.1f %12.3g%n", name, best.lr, best.epochs, best.nanos / 1e6,
+                            best.loss);
+                }
+            }
+            System.out.printf("the true weights of the scaled features are %.3f and %.3f%n", trueWeights[0],
+                    trueWeights[1]);
+        }
+    }
+
+    private static Result runScratch(NDManager manager, ArrayDataset dataset, NDArray x, NDArray y, String name,
+                                     float lr, double target, int maxEpochs) throws TranslateException, IOException {
+        try (NDManager scope = manager.newSubManager()) {
+            NDArray w = scope.zeros(new Shape(x.getShape().get(1), 1));
+            NDArray b = scope.zeros(new Shape(1));
+            NDList params = new NDList(w, b);
+            params.forEach(param -> param.setRequiresGradient(true));
+            FusedTrainingStep step = new FusedTrainingStep(params, lr, BATCH_SIZE);
+            if (!"scratch sgd".equals(name)) {
+                step.setOptimizer(new FusedOptimizer(params, FusedOptimizer.Method.of(name), Tracker.fixed(lr)));
+            }
+            Result result = new Result();
+            result.lr = lr;
+            long start = System.nanoTime();
+            for (int epoch = 1; epoch <= maxEpochs; epoch++) {
+                for (Batch batch : dataset.getData(scope)) {
+                    if ("scratch sgd".equals(name)) {
+                        scratchStep(batch.getData().head(), batch.getLabels().head(), params, lr);
+                    } else {
+                        step.step(batch.getData().head(), batch.getLabels().head());
+                    }
+                    batch.close();
+                }
+                float loss = loss(x, y, w, b);
+                if (!Float.isFinite(loss)) {
+                    break;
+                }
+                if (loss <= target) {
+                    result.epochs = epoch;
+                    result.nanos = System.nanoTime() - start;
+                    result.loss = loss;
+                    break;
+                }
+            }
+            return result;
+        }
+    }
+
+    // the loop of LinearRegressionFromScratch without the fused step
+    private static void scratchStep(NDArray X, NDArray y, NDList params, float lr) {
+        try (NDManager step = X.getManager().newSubManager()) {
+            X.tempAttach(step);
+            y.tempAttach(step);
+            try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+                NDArray yHat = LinearRegressionFromScratch.linearRegression(X, params.get(0), params.get(1));
+                gc.backward(LinearRegressionFromScratch.squaredLoss(yHat, y));
+            }
+            LinearRegressionFromScratch.sgd(params, lr, BATCH_SIZE);
+        }
+    }
+
+    private static Result runDjl(NDManager manager, ArrayDataset dataset, NDArray x, NDArray y, float lr,
+                                 double target, int maxEpochs) throws TranslateException, IOException {
+        try (Model model = LinearRegressionUsingDLJ.newModel()) {
+            // the l2 loss of DJL is the mean of the squared loss of LinearRegressionFromScratch, the same gradient
+            DefaultTrainingConfig config = new DefaultTrainingConfig(Loss.l2Loss())
+                    .optOptimizer(Optimizer.sgd().setLearningRateTracker(Tracker.fixed(lr)).build());
+            Result result = new Result();
+            result.lr = lr;
+            try (Trainer trainer = model.newTrainer(config)) {
+                trainer.initialize(new Shape(BATCH_SIZE, x.getShape().get(1)));
+                ParameterList parameters = model.getBlock().getParameters();
+                long start = System.nanoTime();
+                for (int epoch = 1; epoch <= maxEpochs; epoch++) {
+                    for (Batch batch : trainer.iterateDataset(dataset)) {
+                        EasyTrain.trainBatch(trainer, batch);
+                        trainer.step();
+                        batch.close();
+                    }
+                    // the weight of Linear is (1, features)
+                    float loss = loss(x, y, parameters.valueAt(0).getArray().reshape(-1, 1),
+                            parameters.valueAt(1).getArray());
+                    if (!Float.isFinite(loss)) {
+                        break;
+                    }
+                    if (loss <= target) {
+                        result.epochs = epoch;
+                        result.nanos = System.nanoTime() - start;
+                        result.loss = loss;
+                        break;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    private static float loss(NDArray x, NDArray y, NDArray w, NDArray b) {
+        try (NDManager scope = x.getManager().newSubManager()) {
+            // the temporaries follow their inputs into the scope
+            x.tempAttach(scope);
+            y.tempAttach(scope);
+            w.tempAttach(scope);
+            b.tempAttach(scope);
+            NDArray yHat = LinearRegressionFromScratch.linearRegression(x, w, b);
+            return LinearRegressionFromScratch.squaredLoss(yHat, y).mean().getFloat();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package net.devk.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Native arrays and bytes the parameters' manager gained over an iteration, reported next to the primary score.
+ * The counters are events, JMH sums them over the iterations instead of dividing them by time.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class ParameterGrowth {
+
+    public long paramArrays;
+    public long paramBytes;
+}
@@ -0,0 +1,145 @@
+package net.devk.benchmarks;
+
+import ai.djl.Model;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.DefaultTrainingConfig;
+import ai.djl.training.EasyTrain;
+import ai.djl.training.Trainer;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.loss.Loss;
+import ai.djl.training.optimizer.Optimizer;
+import ai.djl.training.tracker.Tracker;
+import ai.djl.translate.TranslateException;
+import net.devk.regression.ArrayTrainingStep;
+import net.devk.regression.CompactDataset;
+import net.devk.regression.DataPoints;
+import net.devk.regression.LinearRegressionUsingDLJ;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * What storing the features in fewer bits ({@link CompactDataset}) does to training, on the float array path of
+ * {@code LinearRegressionFromScratch} ({@link ArrayTrainingStep}) and on the trainer of
+ * {@code LinearRegressionUsingDLJ}, next to how long the epochs take. {@link PrecisionBenchmark} has the throughput on
+ * data larger than the caches.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar net.devk.benchmarks.PrecisionAccuracy
+ * </pre>
+ * <p>
+ * Prints the bytes of the features, the largest difference of an upcast feature to the original, and for both paths
+ * the largest error of a trained weight, the mean squared loss on the original FLOAT32 features and the time.
+ */
+public final class PrecisionAccuracy {
+
+    private static final int ROWS = 100_000;
+    private static final int FEATURES = 32;
+    private static final int BATCH_SIZE = 100;
+    private static final int EPOCHS = 5;
+    private static final float LR = 0.03f;
+
+    private PrecisionAccuracy() {
+    }
+
+    public static void main(String[] args) throws TranslateException, IOException {
+        Random random = new Random(42);
+        float[] weights = new float[FEATURES];
+        for (int j = 0; j < FEATURES; j++) {
+            weights[j] = (float) random.nextGaussian();
+        }
+        float bias = 4.2f;
+        try (NDManager manager = NDManager.newBaseManager()) {
+            DataPoints dataPoints = DataPoints.syntheticData(manager, weights, bias, ROWS, 42);
+            float[] x = dataPoints.getX().toFloatArray();
+            float[] y = dataPoints.getY().toFloatArray();
+
+            System.out.printf("%-9s %10s %10s | %-28s | %-28s%n", "", "", "", "         array path",
+                    "         trainer path");
+            System.out.printf("%-9s %10s %10s | %9s %9s %8s | %9s %9s %8s%n", "precision", "bytes", "max diff",
+                    "w error", "loss", "ms", "w error", "loss", "ms");
+            for (CompactDataset.Precision precision : CompactDataset.Precision.values()) {
+                CompactDataset dataset = CompactDataset.builder()
+                        .setData(dataPoints.getX(), dataPoints.getY())
+                        .optPrecision(precision)
+                        .setSampling(BATCH_SIZE, false)
+                        .build();
+                float[] upcast = new float[x.length];
+                dataset.getRows(0, ROWS, upcast, 0, new float[ROWS], 0);
+                float maxDiff = 0;
+                for (int i = 0; i < x.length; i++) {
+                    maxDiff = Math.max(maxDiff, Math.abs(upcast[i] - x[i]));
+                }
+
+                // the float array path
+                ArrayTrainingStep step = new ArrayTrainingStep(new float[FEATURES], 0, LR, BATCH_SIZE);
+                float[] xBatch = new float[BATCH_SIZE * FEATURES];
+                float[] yBatch = new float[BATCH_SIZE];
+                long start = System.nanoTime();
+                for (int epoch = 0; epoch < EPOCHS; epoch++) {
+                    for (int from = 0; from < ROWS; from += BATCH_SIZE) {
+                        dataset.getRows(from, BATCH_SIZE, xBatch, 0, yBatch, 0);
+                        step.step(xBatch, yBatch, 0, BATCH_SIZE);
+                    }
+                }
+                long arrayNanos = System.nanoTime() - start;
+                float[] arrayWeights = step.getWeights();
+                float arrayBias = step.getBias();
+
+                // the trainer path
+                float[] trainerWeights;
+                float trainerBias;
+                long trainerNanos;
+                try (Model model = LinearRegressionUsingDLJ.newModel()) {
+                    DefaultTrainingConfig config = new DefaultTrainingConfig(Loss.l2Loss())
+                            .optOptimizer(Optimizer.sgd().setLearningRateTracker(Tracker.fixed(LR)).build());
+                    try (Trainer trainer = model.newTrainer(config)) {
+                        trainer.initialize(new Shape(BATCH_SIZE, FEATURES));
+                        start = System.nanoTime();
+                        for (int epoch = 0; epoch < EPOCHS; epoch++) {
+                            for (Batch batch : trainer.iterateDataset(dataset)) {
+                                EasyTrain.trainBatch(trainer, batch);
+                                trainer.step();
+                                batch.close();
+                            }
+                        }
+                        trainerNanos = System.nanoTime() - start;
+                        NDArray w = model.getBlock().getParameters().valueAt(0).getArray();
+                        NDArray b = model.getBlock().getParameters().valueAt(1).getArray();
+                        trainerWeights = w.toFloatArray();
+                        trainerBias = b.getFloat();
+                    }
+                }
+
+                System.out.printf("%-9s %10d %10.2e | %9.2e %9.2e %8.0f | %9.2e %9.2e %8.0f%n", precision,
+                        dataset.getFeatureBytes(), maxDiff,
+                        maxError(weights, arrayWeights), loss(x, y, arrayWeights, arrayBias), arrayNanos / 1e6,
+                        maxError(weights, trainerWeights), loss(x, y, trainerWeights, trainerBias),
+                        trainerNanos / 1e6);
+            }
+        }
+    }
+
+    private static float maxError(float[] expected, float[] actual) {
+        float error = 0;
+        for (int j = 0; j < expected.length; j++) {
+            error = Math.max(error, Math.abs(expected[j] - actual[j]));
+        }
+        return error;
+    }
+
+    // mean of (x.w + b - y)^2 / 2 on the FLOAT32 features
+    private static double loss(float[] x, float[] y, float[] w, float b) {
+        double sum = 0;
+        for (int i = 0; i < y.length; i++) {
+            double r = b - y[i];
+            for (int j = 0; j < w.length; j++) {
+                r += x[i * w.length + j] * w[j];
+            }
+            sum += r * r / 2;
+        }
+        return sum / y.length;
+    }
+}
@@ -0,0 +1,113 @@
+package net.devk.benchmarks;
+
+import ai.djl.ndarray.NDManager;
+import ai.djl.training.dataset.Batch;
+import net.devk.regression.ArrayTrainingStep;
+import net.devk.regression.CompactDataset;
+import net.devk.regression.DataPoints;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One epoch over 16M feature values (64 MB as FLOAT32, more than the caches) stored by {@link CompactDataset} in
+ * each precision: upcasting the batches only, training them with {@link ArrayTrainingStep} (the float array path of
+ * {@code LinearRegressionFromScratch}) and building them as NDArrays (the path of {@code LinearRegressionUsingDLJ}).
+ * {@link PrecisionAccuracy} compares what the precisions do to the trained weights.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar PrecisionBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class PrecisionBenchmark {
+
+    private static final int VALUES = 1 << 24;
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({"FLOAT32", "FLOAT16", "BFLOAT16", "INT8"})
+    public CompactDataset.Precision precision;
+
+    @Param({"16", "256"})
+    public int features;
+
+    NDManager manager;
+    CompactDataset dataset;
+    int rows;
+    float[] x;
+    float[] y;
+    ArrayTrainingStep step;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        manager = NDManager.newBaseManager();
+        rows = VALUES / features;
+        float[] weights = new float[features];
+        weights[0] = 2;
+        try (NDManager dataManager = manager.newSubManager()) {
+            DataPoints dataPoints = DataPoints.syntheticData(dataManager, weights, 4.2f, rows, 42);
+            dataset = CompactDataset.builder()
+                    .setData(dataPoints.getX(), dataPoints.getY())
+                    .optPrecision(precision)
+                    .setSampling(BATCH_SIZE, false)
+                    .build();
+        }
+        x = new float[BATCH_SIZE * features];
+        y = new float[BATCH_SIZE];
+        step = new ArrayTrainingStep(new float[features], 0, 0.001f, BATCH_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public float upcast() {
+        for (int from = 0; from < rows; from += BATCH_SIZE) {
+            dataset.getRows(from, Math.min(BATCH_SIZE, rows - from), x, 0, y, 0);
+        }
+        return x[0];
+    }
+
+    @Benchmark
+    public float arrayEpoch() {
+        float loss = 0;
+        for (int from = 0; from < rows; from += BATCH_SIZE) {
+            int size = Math.min(BATCH_SIZE, rows - from);
+            dataset.getRows(from, size, x, 0, y, 0);
+            loss += step.step(x, y, 0, size);
+        }
+        return loss;
+    }
+
+    @Benchmark
+    public long ndarrayBatches() {
+        long size = 0;
+        for (long from = 0; from < rows; from += BATCH_SIZE) {
+            // closing a batch closes the manager it was built on
+            try (NDManager batchManager = manager.newSubManager()) {
+                Batch batch = dataset.getByRange(batchManager, from, Math.min(from + BATCH_SIZE, rows));
+                size += batch.getData().head().size();
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,146 @@
+package net.devk.benchmarks;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import net.devk.PreprocessingPipeline;
+import net.devk.regression.DataPoints;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tech.tablesaw.api.BooleanColumn;
+import tech.tablesaw.api.DoubleColumn;
+import tech.tablesaw.api.StringColumn;
+import tech.tablesaw.api.Table;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PreprocessingPipeline} against the Tablesaw path {@code DataProcessing} used to take (read the file as a
+ * {@link Table}, impute with the column mean, {@code getDummies()}, {@code doubleMatrix()} into a FLOAT64 NDArray), on
+ * a file with two number columns with missing values and two text columns.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar PreprocessingBenchmark -prof gc
+ * </pre>
+ * <p>
+ * With {@code -prof gc}, {@code gc.alloc.rate.norm} of {@code transformRow} is what serving one already split row
+ * allocates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PreprocessingBenchmark {
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    NDManager manager;
+    Path file;
+    PreprocessingPipeline pipeline;
+    String[][] rowValues;
+    float[] row;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        manager = NDManager.newBaseManager();
+        file = Files.createTempFile("preprocessing", ".csv");
+        Random random = new Random(42);
+        rowValues = new String[rows][];
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            writer.write("NumRooms,Area,Alley,Zone,Price\n");
+            for (int i = 0; i < rows; i++) {
+                String rooms = random.nextInt(10) == 0 ? "NA" : (1 + random.nextInt(6)) + ".0";
+                String area = random.nextInt(20) == 0 ? "NA" : Float.toString(40 + 200 * random.nextFloat());
+                String alley = random.nextInt(3) == 0 ? "NA" : random.nextBoolean() ? "Pave" : "Grvl";
+                String zone = "z" + random.nextInt(50);
+                writer.write(rooms + "," + area + "," + alley + "," + zone + "," + random.nextInt(500_000) + "\n");
+                rowValues[i] = new String[]{rooms, area, alley, zone};
+            }
+        }
+        pipeline = newPipeline().fit(file, Runtime.getRuntime().availableProcessors());
+        row = new float[pipeline.numFeatures()];
+    }
+
+    static PreprocessingPipeline newPipeline() {
+        return PreprocessingPipeline.builder()
+                .numeric("NumRooms", PreprocessingPipeline.Impute.MEDIAN, true)
+                .numeric("Area", PreprocessingPipeline.Impute.MEAN, true)
+                .categorical("Alley")
+                .categorical("Zone")
+                .label("Price")
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        manager.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public PreprocessingPipeline fit() throws IOException {
+        return newPipeline().fit(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Benchmark
+    public float transformRow() {
+        String[] values = rowValues[next];
+        next = next + 1 == rowValues.length ? 0 : next + 1;
+        pipeline.transform(values, row, 0);
+        return row[0];
+    }
+
+    @Benchmark
+    public float transformFile() throws IOException {
+        DataPoints points = pipeline.transform(file, manager);
+        float first = points.getX().getFloat(0, 0);
+        points.getX().close();
+        points.getY().close();
+        return first;
+    }
+
+    @Benchmark
+    public double tablesawFile() throws IOException {
+        Table inputs = Table.read().csv(file.toFile());
+        Table outputs = inputs.selectColumns("Price");
+        inputs.removeColumns("Price");
+        for (String name : new String[]{"NumRooms", "Area"}) {
+            // whole numbers are read as an IntColumn
+            DoubleColumn column = inputs.numberColumn(name).asDoubleColumn();
+            column.set(column.isMissing(), column.mean());
+            inputs.replaceColumn(name, column);
+        }
+        for (String name : new String[]{"Alley", "Zone"}) {
+            StringColumn column = inputs.stringColumn(name);
+            List<BooleanColumn> dummies = column.getDummies();
+            inputs.removeColumns(column);
+            for (BooleanColumn dummy : dummies) {
+                inputs.addColumns(DoubleColumn.create(dummy.name(), dummy.asDoubleArray()));
+            }
+        }
+        try (NDArray x = manager.create(inputs.as().doubleMatrix());
+             NDArray y = manager.create(outputs.as().intMatrix())) {
+            return x.getDouble(0, 0) + y.getInt(0, 0);
+        }
+    }
+}
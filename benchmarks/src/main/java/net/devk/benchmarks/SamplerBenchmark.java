@@ -0,0 +1,128 @@
+package net.devk.benchmarks;
+
+import ai.djl.ndarray.NDManager;
+import ai.djl.training.dataset.ArrayDataset;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.dataset.BatchSampler;
+import ai.djl.training.dataset.RandomSampler;
+import ai.djl.training.dataset.Sampler;
+import ai.djl.training.dataset.SequenceSampler;
+import ai.djl.translate.TranslateException;
+import net.devk.regression.BlockShuffleSampler;
+import net.devk.regression.DataPoints;
+import net.devk.regression.MappedDataset;
+import net.devk.regression.SyntheticDataset;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One epoch of batches, without training, with the batches in order, fully shuffled ({@link RandomSampler}) and
+ * block shuffled ({@link BlockShuffleSampler}). The data is 1M rows of 16 features (64 MB), in the engine or in a
+ * memory mapped file, larger than the caches. {@link SamplerConvergence} compares how well the orders train.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar SamplerBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SamplerBenchmark {
+
+    private static final int ROWS = 1 << 20;
+    private static final int FEATURES = 16;
+
+    @Param({"sequence", "random", "block"})
+    public String sampler;
+
+    @Param({"array", "mapped"})
+    public String storage;
+
+    // with small batches the fixed cost of a batch hides how the rows are read
+    @Param({"100", "10000"})
+    public int batchSize;
+
+    NDManager manager;
+    Path file;
+    ArrayDataset dataset;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        manager = NDManager.newBaseManager();
+        float[] weights = new float[FEATURES];
+        weights[0] = 2;
+        Sampler batches = newSampler(sampler, batchSize);
+        if ("array".equals(storage)) {
+            DataPoints dataPoints = DataPoints.syntheticData(manager, weights, 4.2f, ROWS, 42);
+            dataset = new ArrayDataset.Builder()
+                    .setData(dataPoints.getX())
+                    .optLabels(dataPoints.getY())
+                    .setSampling(batches)
+                    .build();
+        } else {
+            file = Files.createTempFile("sampler", ".bin");
+            try (SyntheticDataset synthetic = SyntheticDataset.builder()
+                    .setWeights(weights, 4.2f)
+                    .setNumExamples(ROWS)
+                    .setSampling(batchSize, false)
+                    .build()) {
+                synthetic.write(file, 1 << 16);
+            }
+            dataset = MappedDataset.builder()
+                    .setFile(file)
+                    .setSampling(batches)
+                    .build();
+        }
+    }
+
+    static Sampler newSampler(String name, int batchSize) {
+        switch (name) {
+            case "sequence":
+                return new BatchSampler(new SequenceSampler(), batchSize, false);
+            case "random":
+                return new BatchSampler(new RandomSampler(), batchSize, false);
+            case "block":
+                return new BlockShuffleSampler(batchSize, 42);
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        manager.close();
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // the sum of a row of every batch, so the batches have to be made
+    @Benchmark
+    public float epoch() throws TranslateException, IOException {
+        float sum = 0;
+        for (Batch batch : dataset.getData(manager)) {
+            sum += batch.getLabels().head().getFloat(0);
+            batch.close();
+        }
+        return sum;
+    }
+}
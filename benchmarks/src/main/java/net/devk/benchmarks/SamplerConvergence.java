@@ -0,0 +1,96 @@
+package net.devk.benchmarks;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.dataset.ArrayDataset;
+import ai.djl.training.dataset.Batch;
+import ai.djl.translate.TranslateException;
+import net.devk.regression.DataPoints;
+import net.devk.regression.FusedTrainingStep;
+import net.devk.regression.LinearRegressionFromScratch;
+
+import java.io.IOException;
+
+/**
+ * How well the batch orders of {@link SamplerBenchmark} train, on data stored sorted by its label, the way a file
+ * written by time or by key often is. In order, every epoch ends with the largest labels only and the parameters
+ * drift towards them, a full shuffle does not have that bias and the block shuffle should come close to it.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar net.devk.benchmarks.SamplerConvergence
+ * </pre>
+ * <p>
+ * Prints the mean squared loss over all the examples after every epoch, and the time of the epochs.
+ */
+public final class SamplerConvergence {
+
+    private static final int ROWS = 100_000;
+    private static final int BATCH_SIZE = 100;
+    private static final int EPOCHS = 5;
+    private static final float LR = 0.03f;
+
+    private SamplerConvergence() {
+    }
+
+    public static void main(String[] args) throws TranslateException, IOException {
+        String[] samplers = {"sequence", "random", "block"};
+        try (NDManager manager = NDManager.newBaseManager()) {
+            DataPoints dataPoints = DataPoints.syntheticData(manager, new float[]{2, -3.4f}, 4.2f, ROWS, 42);
+            NDArray order = dataPoints.getY().argSort();
+            NDArray x = dataPoints.getX().get(new NDIndex("{}", order));
+            NDArray y = dataPoints.getY().get(new NDIndex("{}", order));
+
+            double[][] losses = new double[samplers.length][EPOCHS];
+            long[] nanos = new long[samplers.length];
+            for (int s = 0; s < samplers.length; s++) {
+                ArrayDataset dataset = new ArrayDataset.Builder()
+                        .setData(x)
+                        .optLabels(y)
+                        .setSampling(SamplerBenchmark.newSampler(samplers[s], BATCH_SIZE))
+                        .build();
+                try (NDManager scope = manager.newSubManager()) {
+                    NDArray w = scope.zeros(new Shape(2, 1));
+                    NDArray b = scope.zeros(new Shape(1));
+                    NDList params = new NDList(w, b);
+                    params.forEach(param -> param.setRequiresGradient(true));
+                    FusedTrainingStep step = new FusedTrainingStep(params, LR, BATCH_SIZE);
+                    for (int epoch = 0; epoch < EPOCHS; epoch++) {
+                        long start = System.nanoTime();
+                        for (Batch batch : dataset.getData(scope)) {
+                            step.step(batch.getData().head(), batch.getLabels().head());
+                            batch.close();
+                        }
+                        nanos[s] += System.nanoTime() - start;
+                        try (NDManager evaluation = scope.newSubManager()) {
+                            x.tempAttach(evaluation);
+                            y.tempAttach(evaluation);
+                            NDArray yHat = LinearRegressionFromScratch.linearRegression(x, w, b);
+                            losses[s][epoch] = LinearRegressionFromScratch.squaredLoss(yHat, y).mean().getFloat();
+                        }
+                    }
+                }
+            }
+
+            System.out.printf("%6s", "epoch");
+            for (String sampler : samplers) {
+                System.out.printf(" %12s", sampler);
+            }
+            System.out.println();
+            for (int epoch = 0; epoch < EPOCHS; epoch++) {
+                System.out.printf("%6d", epoch + 1);
+                for (int s = 0; s < samplers.length; s++) {
+                    System.out.printf(" %12.3g", losses[s][epoch]);
+                }
+                System.out.println();
+            }
+            System.out.printf("%6s", "ms");
+            for (long time : nanos) {
+                System.out.printf(" %12.0f", time / 1e6);
+            }
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package net.devk.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Native memory held by a single training step, reported next to the primary score.
+ * JMH normalizes the counters by time, so divide them by the ops/s score to get arrays and bytes per step.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class StepCounters {
+
+    public long nativeArrays;
+    public long nativeBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        nativeArrays = 0;
+        nativeBytes = 0;
+    }
+}
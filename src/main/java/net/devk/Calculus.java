@@ -1,25 +1,33 @@
 package net.devk;
 
+import ai.djl.engine.Engine;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
 import ai.djl.ndarray.types.DataType;
+import ai.djl.training.GradientCollector;
 import tech.tablesaw.plotly.components.Axis;
 import tech.tablesaw.plotly.components.Figure;
 import tech.tablesaw.plotly.components.Layout;
 import tech.tablesaw.plotly.traces.ScatterTrace;
 
+import java.io.IOException;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.Function;
+import java.util.function.UnaryOperator;
 
 public class Calculus {
 
-    public static void main(String[] args) {
-        Function<Double, Double> f = x -> 3 * Math.pow(x, 2) - 4 * x;
+    public static void main(String[] args) throws IOException {
+        Engines.select();
+        DoubleUnaryOperator f = x -> 3 * x * x - 4 * x;
+        UnaryOperator<NDArray> fArray = x -> x.square().mul(3).sub(x.mul(4));
 
         /*
         double h = 0.1;
         for (int i = 0; i < 5; i++) {
             System.out.println("h=" + String.format("%.5f", h) + ", numerical limit="
-                    + String.format("%.5f", numericalLim(f, 1, h)));
+                    + String.format("%.5f", forwardDifference(f, 1, h)));
             h *= 0.1;
         }
          */
@@ -27,19 +35,21 @@ public class Calculus {
         try (NDManager manager = NDManager.newBaseManager()) {
             NDArray X = manager.arange(0f, 3f, 0.1f, DataType.FLOAT64);
             double[] x = X.toDoubleArray();
-            double[] fx = new double[x.length];
-            for (int i = 0; i < x.length; i++) {
-                fx[i] = f.apply(x[i]);
-            }
+            double[] fx = fArray.apply(X).toDoubleArray();
 
-
-            double[] fg = new double[x.length];
-            for (int i = 0; i < x.length; i++) {
-                fg[i] = 2 * x[i] - 3;
-            }
+            // the tangent at x = 1 from the exact derivative: f(1) + f'(1) (x - 1)
+            NDArray one = manager.create(new double[]{1});
+            double slope = derivative(fArray, one).getDouble(0);
+            double[] fg = X.sub(1).mul(slope).add(f.applyAsDouble(1)).toDoubleArray();
 
             Figure figure = plotLineAndSegment(x, fx, fg, "f(x)", "Tangent line(x=1)", "x", "f(x)", 700, 500);
-            System.out.println(figure);
+            Plots.show(figure, "calculus");
+
+            System.out.println("f'(1): forward " + forwardDifference(f, 1, 1e-3) + ", central "
+                    + centralDifference(f, 1, 1e-3) + ", richardson " + richardson(f, 1, 1e-3) + ", autograd "
+                    + slope);
+            System.out.println("integral of f over [0, 3]: trapezoid " + trapezoid(fArray.apply(X.concat(
+                    manager.create(new double[]{3}))), 0.1) + ", simpson " + simpson(f, 0, 3, 30) + ", exact 9");
         }
 
     }
@@ -48,16 +58,121 @@ public class Calculus {
         return (f.apply(x + h) - f.apply(x)) / h;
     }
 
+    // numericalLim without boxing every argument and result
+    public static double forwardDifference(DoubleUnaryOperator f, double x, double h) {
+        return (f.applyAsDouble(x + h) - f.applyAsDouble(x)) / h;
+    }
+
+    // error O(h^2) instead of the O(h) of forwardDifference
+    public static double centralDifference(DoubleUnaryOperator f, double x, double h) {
+        return (f.applyAsDouble(x + h) - f.applyAsDouble(x - h)) / (2 * h);
+    }
+
+    // combines the central differences of h and h/2 so the h^2 error terms cancel, O(h^4)
+    public static double richardson(DoubleUnaryOperator f, double x, double h) {
+        return (4 * centralDifference(f, x, h / 2) - centralDifference(f, x, h)) / 3;
+    }
+
+    public static double[] centralDifference(DoubleUnaryOperator f, double[] x, double h) {
+        double[] derivative = new double[x.length];
+        for (int i = 0; i < x.length; i++) {
+            derivative[i] = (f.applyAsDouble(x[i] + h) - f.applyAsDouble(x[i] - h)) / (2 * h);
+        }
+        return derivative;
+    }
+
+    /**
+     * Central differences at every point of the grid at once, {@code f} has to work element-wise. The result is
+     * attached to the manager of {@code x}.
+     */
+    public static NDArray centralDifference(UnaryOperator<NDArray> f, NDArray x, double h) {
+        return f.apply(x.add(h)).sub(f.apply(x.sub(h))).div(2 * h);
+    }
+
+    public static NDArray richardson(UnaryOperator<NDArray> f, NDArray x, double h) {
+        return centralDifference(f, x, h / 2).mul(4).sub(centralDifference(f, x, h)).div(3);
+    }
+
+    /**
+     * The exact derivative of an element-wise {@code f} at every point of {@code x}, from autograd instead of a step
+     * size. {@code x} itself is not changed.
+     */
+    public static NDArray derivative(UnaryOperator<NDArray> f, NDArray x) {
+        NDArray input = x.duplicate();
+        input.setRequiresGradient(true);
+        try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+            // the gradient of the sum is the derivative at each point, the points do not depend on each other
+            gc.backward(f.apply(input).sum());
+        }
+        return input.getGradient();
+    }
+
+    /**
+     * The integral of samples {@code y} taken every {@code dx}, in one pass over the array. The samples are summed
+     * in double precision whatever their type, the temporaries are closed before it returns.
+     */
+    public static double trapezoid(NDArray y, double dx) {
+        long n = y.size();
+        try (NDManager scope = y.getManager().newSubManager()) {
+            // the results of operations go to the manager of their input, the temporaries are closed with the scope
+            y.tempAttach(scope);
+            NDArray values = y.toType(DataType.FLOAT64, false);
+            double ends = values.getDouble(0) + values.getDouble(n - 1);
+            return dx * (values.sum().getDouble() - ends / 2);
+        }
+    }
+
+    /**
+     * Simpson's rule, exact for polynomials up to degree 3, needs an odd number of samples. Summed in double
+     * precision like {@link #trapezoid(NDArray, double)}.
+     */
+    public static double simpson(NDArray y, double dx) {
+        long n = y.size();
+        if (n < 3 || n % 2 == 0) {
+            throw new IllegalArgumentException("simpson needs an odd number of samples, at least 3");
+        }
+        try (NDManager scope = y.getManager().newSubManager()) {
+            y.tempAttach(scope);
+            NDArray values = y.toType(DataType.FLOAT64, false);
+            double odd = values.get(new NDIndex("1:{}:2", n - 1)).sum().getDouble();
+            double even = values.get(new NDIndex("2:{}:2", n - 1)).sum().getDouble();
+            return dx / 3 * (values.getDouble(0) + values.getDouble(n - 1) + 4 * odd + 2 * even);
+        }
+    }
+
+    public static double trapezoid(DoubleUnaryOperator f, double a, double b, int intervals) {
+        double dx = (b - a) / intervals;
+        double sum = (f.applyAsDouble(a) + f.applyAsDouble(b)) / 2;
+        for (int i = 1; i < intervals; i++) {
+            sum += f.applyAsDouble(a + i * dx);
+        }
+        return sum * dx;
+    }
+
+    public static double simpson(DoubleUnaryOperator f, double a, double b, int intervals) {
+        if (intervals % 2 != 0) {
+            throw new IllegalArgumentException("simpson needs an even number of intervals");
+        }
+        double dx = (b - a) / intervals;
+        double sum = f.applyAsDouble(a) + f.applyAsDouble(b);
+        for (int i = 1; i < intervals; i++) {
+            sum += (i % 2 == 1 ? 4 : 2) * f.applyAsDouble(a + i * dx);
+        }
+        return sum * dx / 3;
+    }
+
     public static Figure plotLineAndSegment(double[] x, double[] y, double[] segment,
                                             String trace1Name, String trace2Name,
                                             String xLabel, String yLabel,
                                             int width, int height) {
-        ScatterTrace trace = ScatterTrace.builder(x, y)
+        // the points lttb keeps for the curve, the segment is straight and any of its points will do
+        int[] kept = Plots.lttb(x, y, Plots.maxPoints());
+        ScatterTrace trace = ScatterTrace.builder(Plots.select(x, kept), Plots.select(y, kept))
                 .mode(ScatterTrace.Mode.LINE)
                 .name(trace1Name)
                 .build();
 
-        ScatterTrace trace2 = ScatterTrace.builder(x, segment)
+        ScatterTrace trace2 = ScatterTrace.builder(Plots.select(x, kept), Plots.select(segment, kept))
                 .mode(ScatterTrace.Mode.LINE)
                 .name(trace2Name)
                 .build();
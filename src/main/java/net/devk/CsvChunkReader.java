@@ -0,0 +1,346 @@
+package net.devk;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import net.devk.regression.DataChunks;
+import net.devk.regression.DataPoints;
+import net.devk.regression.SparseDataPoints;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads a CSV file in chunks of rows instead of loading it as a whole {@link tech.tablesaw.api.Table}.
+ * <p>
+ * The file is read twice. The first pass only keeps per column statistics: the mean of the numeric columns, used
+ * to fill their missing values, and the levels of the text columns, used for the one-hot encoding (the same thing
+ * {@code StringColumn.getDummies()} does, missing values get a {@code _nan} column of their own). The second pass
+ * parses {@code chunkSize} rows at a time straight into a float buffer that becomes the NDArray, so the memory
+ * needed depends on the chunk size and not on the size of the file.
+ * <p>
+ * A one-hot encoded row is mostly zeros, with thousands of levels {@link #nextSparseChunk(SparseDataPoints)} keeps
+ * only the non-zeros of the chunk instead, one per text column.
+ * <p>
+ * Fields are quoted like RFC 4180 says, as {@code Table.read} reads them: a field in double quotes may hold commas,
+ * line breaks and quotes written twice. The spaces around a field are dropped, the ones inside quotes are kept.
+ */
+public class CsvChunkReader implements DataChunks, AutoCloseable {
+
+    static final Set<String> MISSING = Set.of("", "NA", "N/A", "NaN", "nan", "null");
+    private static final int MAX_LEVELS = 100_000;
+
+    private final String[] header;
+    private final int labelIndex;
+    private final ColumnStats[] stats;
+    private final List<String> featureNames;
+    private final int chunkSize;
+    private final BufferedReader reader;
+    // where the features of each column start
+    private final int[] offsets;
+    // allocated by the first dense chunk, chunkSize rows of every one-hot column
+    private float[] xBuffer;
+    private final float[] yBuffer;
+
+    // what the first pass learned about one column
+    private static class ColumnStats {
+        boolean numeric = true;
+        boolean integral = true;
+        long count;
+        double sum;
+        boolean hasMissing;
+        // insertion ordered, the order of the one-hot columns is the order of first appearance
+        Map<String, Integer> levels = new LinkedHashMap<>();
+
+        void observe(String value) {
+            if (MISSING.contains(value)) {
+                hasMissing = true;
+                return;
+            }
+            if (levels != null && !levels.containsKey(value)) {
+                if (levels.size() == MAX_LEVELS) {
+                    // too many distinct values for a categorical column, from now on it has to be numeric
+                    levels = null;
+                } else {
+                    levels.put(value, levels.size());
+                }
+            }
+            if (numeric) {
+                try {
+                    double d = Double.parseDouble(value);
+                    sum += d;
+                    count++;
+                    integral &= d == Math.rint(d);
+                } catch (NumberFormatException e) {
+                    numeric = false;
+                }
+            }
+            if (!numeric && levels == null) {
+                throw new IllegalStateException("text column with more than " + MAX_LEVELS + " distinct values");
+            }
+        }
+
+        double mean() {
+            double mean = count == 0 ? 0 : sum / count;
+            // whole number columns are filled with a whole number, like the IntColumn of the Table path
+            return integral ? (long) mean : mean;
+        }
+
+        int width() {
+            return numeric ? 1 : levels.size() + (hasMissing ? 1 : 0);
+        }
+    }
+
+    private CsvChunkReader(Path file, String labelColumn, int chunkSize) throws IOException {
+        this.chunkSize = chunkSize;
+        try (BufferedReader fit = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            header = split(readRecord(fit));
+            labelIndex = Arrays.asList(header).indexOf(labelColumn);
+            if (labelIndex < 0) {
+                throw new IllegalArgumentException("no column named " + labelColumn + " in " + file);
+            }
+            stats = new ColumnStats[header.length];
+            for (int i = 0; i < stats.length; i++) {
+                stats[i] = new ColumnStats();
+            }
+            String line;
+            while ((line = readRecord(fit)) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] values = split(line);
+                for (int i = 0; i < header.length; i++) {
+                    stats[i].observe(i < values.length ? values[i] : "");
+                }
+            }
+        }
+        if (!stats[labelIndex].numeric) {
+            throw new IllegalArgumentException("the label column " + labelColumn + " is not numeric");
+        }
+
+        featureNames = new ArrayList<>();
+        offsets = new int[header.length];
+        for (int i = 0; i < header.length; i++) {
+            if (i == labelIndex) {
+                continue;
+            }
+            offsets[i] = featureNames.size();
+            ColumnStats column = stats[i];
+            if (column.numeric) {
+                column.levels = null;
+                featureNames.add(header[i]);
+            } else {
+                for (String level : column.levels.keySet()) {
+                    featureNames.add(header[i] + "_" + level);
+                }
+                if (column.hasMissing) {
+                    featureNames.add(header[i] + "_nan");
+                }
+            }
+        }
+
+        yBuffer = new float[chunkSize];
+        reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+        readRecord(reader);
+    }
+
+    /**
+     * Runs the statistics pass over the file and positions the reader on its first row.
+     */
+    public static CsvChunkReader open(Path file, String labelColumn, int chunkSize) throws IOException {
+        return new CsvChunkReader(file, labelColumn, chunkSize);
+    }
+
+    public List<String> getFeatureNames() {
+        return featureNames;
+    }
+
+    @Override
+    public int numFeatures() {
+        return featureNames.size();
+    }
+
+    @Override
+    public DataPoints nextChunk(NDManager manager) {
+        int width = featureNames.size();
+        if (xBuffer == null) {
+            xBuffer = new float[Math.multiplyExact(chunkSize, width)];
+        }
+        int rows = 0;
+        try {
+            String line;
+            while (rows < chunkSize && (line = readRecord(reader)) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] values = split(line);
+                int offset = rows * width;
+                for (int i = 0; i < header.length; i++) {
+                    String value = i < values.length ? values[i] : "";
+                    boolean missing = MISSING.contains(value);
+                    ColumnStats column = stats[i];
+                    if (i == labelIndex) {
+                        yBuffer[rows] = missing ? (float) column.mean() : Float.parseFloat(value);
+                    } else if (column.numeric) {
+                        xBuffer[offset++] = missing ? (float) column.mean() : Float.parseFloat(value);
+                    } else {
+                        int levels = column.width();
+                        Arrays.fill(xBuffer, offset, offset + levels, 0f);
+                        xBuffer[offset + (missing ? levels - 1 : column.levels.get(value))] = 1f;
+                        offset += levels;
+                    }
+                }
+                rows++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (rows == 0) {
+            return null;
+        }
+        // copied once, from the reused heap buffer into native memory
+        NDArray x = manager.create(FloatBuffer.wrap(xBuffer, 0, rows * width), new Shape(rows, width));
+        NDArray y = manager.create(FloatBuffer.wrap(yBuffer, 0, rows), new Shape(rows, 1));
+        return new DataPoints(x, y);
+    }
+
+    /**
+     * Appends the next {@code chunkSize} rows to {@code chunk}, with the same encoding as
+     * {@link #nextChunk(NDManager)} but only the non-zero features.
+     *
+     * @return the rows appended, 0 once every row has been read
+     */
+    public int nextSparseChunk(SparseDataPoints chunk) {
+        if (chunk.numFeatures() != featureNames.size()) {
+            throw new IllegalArgumentException("the chunk has " + chunk.numFeatures() + " features, not "
+                    + featureNames.size());
+        }
+        int rows = 0;
+        try {
+            String line;
+            while (rows < chunkSize && (line = readRecord(reader)) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] values = split(line);
+                float label = 0;
+                for (int i = 0; i < header.length; i++) {
+                    String value = i < values.length ? values[i] : "";
+                    boolean missing = MISSING.contains(value);
+                    ColumnStats column = stats[i];
+                    if (i == labelIndex) {
+                        label = missing ? (float) column.mean() : Float.parseFloat(value);
+                    } else if (column.numeric) {
+                        chunk.add(offsets[i], missing ? (float) column.mean() : Float.parseFloat(value));
+                    } else {
+                        chunk.add(offsets[i] + (missing ? column.width() - 1 : column.levels.get(value)), 1f);
+                    }
+                }
+                chunk.endRow(label);
+                rows++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * The next record of the file: one line, or more when a quoted field holds line breaks, {@code null} at the end.
+     */
+    static String readRecord(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null || line.indexOf('"') < 0) {
+            return line;
+        }
+        StringBuilder record = new StringBuilder(line);
+        // an odd number of quotes leaves a quoted field open, two quotes in a row cancel out
+        boolean open = quotes(line) % 2 == 1;
+        while (open && (line = reader.readLine()) != null) {
+            record.append('\n').append(line);
+            open ^= quotes(line) % 2 == 1;
+        }
+        return record.toString();
+    }
+
+    private static int quotes(String line) {
+        int count = 0;
+        for (int i = line.indexOf('"'); i >= 0; i = line.indexOf('"', i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * The fields of a record, unquoted and trimmed.
+     *
+     * @throws IllegalArgumentException if a quoted field is not closed or is followed by more than spaces
+     */
+    static String[] split(String record) {
+        if (record.indexOf('"') < 0) {
+            String[] values = record.split(",", -1);
+            for (int i = 0; i < values.length; i++) {
+                values[i] = values[i].trim();
+            }
+            return values;
+        }
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        int n = record.length();
+        int i = 0;
+        while (true) {
+            int start = i;
+            while (i < n && Character.isWhitespace(record.charAt(i))) {
+                i++;
+            }
+            if (i < n && record.charAt(i) == '"') {
+                value.setLength(0);
+                for (i++; ; i++) {
+                    if (i == n) {
+                        throw new IllegalArgumentException("a quoted field is not closed: " + record);
+                    }
+                    char c = record.charAt(i);
+                    if (c == '"') {
+                        if (i + 1 < n && record.charAt(i + 1) == '"') {
+                            i++;
+                        } else {
+                            break;
+                        }
+                    }
+                    value.append(c);
+                }
+                for (i++; i < n && record.charAt(i) != ','; i++) {
+                    if (!Character.isWhitespace(record.charAt(i))) {
+                        throw new IllegalArgumentException("text after a quoted field: " + record);
+                    }
+                }
+                values.add(value.toString());
+            } else {
+                int comma = record.indexOf(',', i);
+                i = comma < 0 ? n : comma;
+                values.add(record.substring(start, i).trim());
+            }
+            if (i == n) {
+                return values.toArray(new String[0]);
+            }
+            // past the comma
+            i++;
+        }
+    }
+}
@@ -2,19 +2,18 @@ package net.devk;
 
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDManager;
-import tech.tablesaw.api.BooleanColumn;
-import tech.tablesaw.api.DoubleColumn;
-import tech.tablesaw.api.StringColumn;
-import tech.tablesaw.api.Table;
-import tech.tablesaw.columns.Column;
+import net.devk.regression.DataPoints;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.List;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 public class DataProcessing {
     public static void main(String[] args) throws IOException {
+        Engines.select();
         File file = new File("../data/");
         file.mkdir();
 
@@ -33,37 +32,48 @@ public class DataProcessing {
             writer.write("NA,NA,140000\n");
         }
 
-        Table data = Table.read().file("../data/house_tiny.csv");
-//        System.out.println(data);
         //To handle missing data, typical methods include imputation and deletion, where imputation replaces missing
         //values with substituted ones, while deletion ignores missing values. Here we will consider imputation.
 
-        Table inputs = data.create(data.columns());
-        inputs.removeColumns("Price");
-        Table outputs = data.selectColumns("Price");
-        System.out.println(inputs);
-
-        Column col = inputs.column("NumRooms");
-        System.out.println(col);
-
-        // sets the mean value of the "NumRooms" to the column with the null/empty value
-        col.set(col.isMissing(), (int) inputs.nCol("NumRooms").mean());
-        System.out.println(inputs);
-
-
-        StringColumn stringColumn = (StringColumn) inputs.column("Alley");
-        List<BooleanColumn> dummies = stringColumn.getDummies();
-        inputs.removeColumns(stringColumn);
-        inputs.addColumns(DoubleColumn.create("Alley_Pave", dummies.get(0).asDoubleArray()),
-                DoubleColumn.create("Alley_nan", dummies.get(1).asDoubleArray())
-        );
+        // the file is streamed in chunks of rows instead of being loaded as a Table and copied twice more, the missing
+        // "NumRooms" get the mean of the column and "Alley" is one-hot encoded into Alley_Pave and Alley_nan
+        int chunkSize = 2;
+        try (CsvChunkReader reader = CsvChunkReader.open(Paths.get(dataFile), "Price", chunkSize);
+             NDManager nd = NDManager.newBaseManager()) {
+            System.out.println("features= " + reader.getFeatureNames());
+            while (true) {
+                try (NDManager chunkManager = nd.newSubManager()) {
+                    DataPoints chunk = reader.nextChunk(chunkManager);
+                    if (chunk == null) {
+                        break;
+                    }
+                    NDArray x = chunk.getX();
+                    NDArray y = chunk.getY();
+                    System.out.println("x= " + x);
+                    System.out.println("y= " + y);
+                }
+            }
+        }
 
+        // a pipeline is fitted once, saved next to the model, and turns the raw rows into the same features when
+        // training and when serving: here the missing "NumRooms" get the median and are then standardized
+        PreprocessingPipeline pipeline = PreprocessingPipeline.builder()
+                .numeric("NumRooms", PreprocessingPipeline.Impute.MEDIAN, true)
+                .categorical("Alley")
+                .label("Price")
+                .build()
+                .fit(Paths.get(dataFile), Runtime.getRuntime().availableProcessors());
+        Path pipelineFile = Paths.get("../data/house_tiny.pipeline");
+        pipeline.save(pipelineFile);
+        pipeline = PreprocessingPipeline.load(pipelineFile);
+        System.out.println("features= " + pipeline.getFeatureNames());
         try (NDManager nd = NDManager.newBaseManager()) {
-            NDArray x = nd.create(inputs.as().doubleMatrix());
-            NDArray y = nd.create(outputs.as().intMatrix());
-            System.out.println("x= " + x);
-            System.out.println("y= " + y);
+            DataPoints points = pipeline.transform(Paths.get(dataFile), nd);
+            System.out.println("x= " + points.getX());
+            System.out.println("y= " + points.getY());
         }
-
+        float[] row = new float[pipeline.numFeatures()];
+        pipeline.transform(new String[]{"3", "Pave"}, row, 0);
+        System.out.println("3,Pave= " + Arrays.toString(row));
     }
 }
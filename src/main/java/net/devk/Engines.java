@@ -0,0 +1,50 @@
+package net.devk;
+
+import ai.djl.engine.Engine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Selects the engine behind {@code NDManager.newBaseManager()}, {@code Model.newInstance()} and
+ * {@code Engine.getInstance()} at runtime: {@code -Dengine=mxnet|pytorch}, MXNet by default.
+ * <p>
+ * An engine needs its module on the classpath, MXNet is always there and {@code mvn -Ppytorch} adds PyTorch. DJL's
+ * own {@code -Dai.djl.default_engine=PyTorch} is respected too, it takes the exact name of the engine.
+ */
+public final class Engines {
+
+    private static final Logger logger = LoggerFactory.getLogger(Engines.class);
+
+    public static final String DEFAULT_ENGINE = "MXNet";
+    private static final String DJL_PROPERTY = "ai.djl.default_engine";
+
+    private Engines() {
+    }
+
+    /**
+     * Makes the engine of {@code -Dengine} the default one, to be called first thing in a {@code main}.
+     *
+     * @return the name DJL knows the engine by
+     */
+    public static String select() {
+        String name = System.getProperty("engine", System.getProperty(DJL_PROPERTY, DEFAULT_ENGINE));
+        String engineName = engineName(name);
+        System.setProperty(DJL_PROPERTY, engineName);
+        Engine engine = Engine.getInstance();
+        logger.info("engine {} {}", engine.getEngineName(), engine.getVersion());
+        return engineName;
+    }
+
+    /**
+     * The name of an engine on the classpath regardless of case, {@code pytorch} is {@code PyTorch}.
+     */
+    public static String engineName(String name) {
+        for (String engine : Engine.getAllEngines()) {
+            if (engine.equalsIgnoreCase(name)) {
+                return engine;
+            }
+        }
+        throw new IllegalArgumentException("engine " + name + " is not on the classpath, there is "
+                + Engine.getAllEngines() + " (PyTorch is added by the pytorch profile, mvn -Ppytorch)");
+    }
+}
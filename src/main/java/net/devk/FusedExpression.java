@@ -0,0 +1,452 @@
+package net.devk;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * A chain of element-wise operations on NDArrays that is recorded instead of run, {@code (x - y)^2 / 2} becomes
+ * <pre>
+ * NDArray loss = FusedExpression.of(x).sub(y).square().div(2).eval();
+ * </pre>
+ * The eager chain {@code x.sub(y).square().div(2)} writes a new array as large as the result for every operation,
+ * {@link #eval()} writes all of them into one: the first operation allocates the result and the others update it in
+ * place ({@code subi}, {@code muli}, {@code negi}...), turned around when it is the right hand side that holds it.
+ * There are no intermediate arrays to allocate, fill and collect. Inputs of different shapes broadcast like they do
+ * in the engine, an operation whose result is larger than both of its sides allocates the larger array once.
+ * <p>
+ * The results are the ones of the eager operations to the bit, signed zeros included: every step is the same
+ * engine operation on the same values, a subtraction turned around is a negation followed by an addition.
+ * What has no in-place variant ({@link #sqrt()}, {@link #abs()}, any NDArray function given to {@link #map}) runs
+ * eagerly and replaces the intermediate array. The in-place updates are not recorded by autograd: a chain with an
+ * input that requires a gradient runs as the eager operations, and an intermediate of a recorded graph (a prediction
+ * computed from the parameters inside a {@code GradientCollector}) should not be given to it.
+ */
+public final class FusedExpression {
+
+    private enum Op {
+        INPUT, CONSTANT, ADD, SUB, MUL, DIV, NEG, SQUARE, SQRT, ABS, MAP
+    }
+
+    private final Op op;
+    private final NDArray array;
+    private final float constant;
+    private final FusedExpression left;
+    private final FusedExpression right;
+    private final UnaryOperator<NDArray> function;
+
+    private FusedExpression(Op op, NDArray array, float constant, FusedExpression left, FusedExpression right,
+                            UnaryOperator<NDArray> function) {
+        this.op = op;
+        this.array = array;
+        this.constant = constant;
+        this.left = left;
+        this.right = right;
+        this.function = function;
+    }
+
+    public static FusedExpression of(NDArray array) {
+        return new FusedExpression(Op.INPUT, array, 0, null, null, null);
+    }
+
+    public static FusedExpression constant(float value) {
+        return new FusedExpression(Op.CONSTANT, null, value, null, null, null);
+    }
+
+    private FusedExpression binary(Op op, FusedExpression other) {
+        return new FusedExpression(op, null, 0, this, other, null);
+    }
+
+    private FusedExpression unary(Op op) {
+        return new FusedExpression(op, null, 0, this, null, null);
+    }
+
+    public FusedExpression add(FusedExpression other) {
+        return binary(Op.ADD, other);
+    }
+
+    public FusedExpression add(NDArray other) {
+        return add(of(other));
+    }
+
+    public FusedExpression add(float value) {
+        return add(constant(value));
+    }
+
+    public FusedExpression sub(FusedExpression other) {
+        return binary(Op.SUB, other);
+    }
+
+    public FusedExpression sub(NDArray other) {
+        return sub(of(other));
+    }
+
+    public FusedExpression sub(float value) {
+        return sub(constant(value));
+    }
+
+    public FusedExpression mul(FusedExpression other) {
+        return binary(Op.MUL, other);
+    }
+
+    public FusedExpression mul(NDArray other) {
+        return mul(of(other));
+    }
+
+    public FusedExpression mul(float value) {
+        return mul(constant(value));
+    }
+
+    public FusedExpression div(FusedExpression other) {
+        return binary(Op.DIV, other);
+    }
+
+    public FusedExpression div(NDArray other) {
+        return div(of(other));
+    }
+
+    public FusedExpression div(float value) {
+        return div(constant(value));
+    }
+
+    public FusedExpression neg() {
+        return unary(Op.NEG);
+    }
+
+    public FusedExpression square() {
+        return unary(Op.SQUARE);
+    }
+
+    public FusedExpression sqrt() {
+        return unary(Op.SQRT);
+    }
+
+    public FusedExpression abs() {
+        return unary(Op.ABS);
+    }
+
+    /**
+     * Any other operation, it runs eagerly on the result of the chain so far and is not fused.
+     */
+    public FusedExpression map(UnaryOperator<NDArray> function) {
+        return new FusedExpression(Op.MAP, null, 0, this, null, function);
+    }
+
+    /**
+     * Runs the chain into a single result array: the first operation that has the shape of the result allocates it
+     * and every operation after it is applied to it in place. The result is attached to the manager of the first
+     * input, like the result of the eager operations. A chain without any operation returns its input.
+     */
+    public NDArray eval() {
+        List<NDArray> inputs = new ArrayList<>();
+        collectInputs(inputs);
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("the expression has no NDArray");
+        }
+        for (NDArray input : inputs) {
+            if (input.hasGradient()) {
+                return evalEager();
+            }
+        }
+        return evalInPlace().array;
+    }
+
+    /**
+     * Runs the chain as the eager operations it stands for, one new NDArray per operation. The intermediate arrays
+     * are closed.
+     */
+    public NDArray evalEager() {
+        List<NDArray> temporaries = new ArrayList<>();
+        try {
+            NDArray result = evalEager(temporaries);
+            temporaries.removeIf(temporary -> temporary == result);
+            return result;
+        } finally {
+            temporaries.forEach(NDArray::close);
+        }
+    }
+
+    // a value of the chain and whether it is an intermediate array that the chain may overwrite and has to close
+    private static final class Value {
+        final NDArray array;
+        final boolean owned;
+
+        Value(NDArray array, boolean owned) {
+            this.array = array;
+            this.owned = owned;
+        }
+
+        // a result of an operation on this value
+        Value replacedBy(NDArray result) {
+            if (owned && result != array) {
+                array.close();
+            }
+            return new Value(result, owned || result != array);
+        }
+    }
+
+    private Value evalInPlace() {
+        switch (op) {
+            case INPUT:
+                return new Value(array, false);
+            case CONSTANT:
+                throw new IllegalArgumentException("constants have no NDArray to run on");
+            case MAP:
+                Value argument = left.evalInPlace();
+                return argument.replacedBy(function.apply(argument.array));
+            case NEG:
+                Value negated = left.evalInPlace();
+                return negated.replacedBy(negated.owned ? negated.array.negi() : negated.array.neg());
+            case SQUARE:
+                Value squared = left.evalInPlace();
+                return squared.replacedBy(squared.owned ? squared.array.muli(squared.array) : squared.array.square());
+            case SQRT:
+                // no in-place variant, the intermediate is replaced
+                Value root = left.evalInPlace();
+                return root.replacedBy(root.array.sqrt());
+            case ABS:
+                Value absolute = left.evalInPlace();
+                return absolute.replacedBy(absolute.array.abs());
+            default:
+                return binaryInPlace();
+        }
+    }
+
+    private Value binaryInPlace() {
+        if (left.op == Op.CONSTANT) {
+            if (right.op == Op.CONSTANT) {
+                throw new IllegalArgumentException("constants have no NDArray to run on");
+            }
+            Value b = right.evalInPlace();
+            float value = left.constant;
+            NDArray result;
+            switch (op) {
+                case ADD:
+                    result = b.owned ? b.array.addi(value) : b.array.add(value);
+                    break;
+                case SUB:
+                    // c - b is c + (-b) to the bit, -(b - c) would give -0 where b equals c
+                    result = (b.owned ? b.array.negi() : b.array.neg()).addi(value);
+                    break;
+                case MUL:
+                    result = b.owned ? b.array.muli(value) : b.array.mul(value);
+                    break;
+                case DIV:
+                    try (NDArray scalar = b.array.getManager().create(value)) {
+                        result = scalar.div(b.array);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("unknown operation " + op);
+            }
+            return b.replacedBy(result);
+        }
+        Value a = left.evalInPlace();
+        if (right.op == Op.CONSTANT) {
+            float value = right.constant;
+            NDArray result;
+            switch (op) {
+                case ADD:
+                    result = a.owned ? a.array.addi(value) : a.array.add(value);
+                    break;
+                case SUB:
+                    result = a.owned ? a.array.subi(value) : a.array.sub(value);
+                    break;
+                case MUL:
+                    result = a.owned ? a.array.muli(value) : a.array.mul(value);
+                    break;
+                case DIV:
+                    result = a.owned ? a.array.divi(value) : a.array.div(value);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown operation " + op);
+            }
+            return a.replacedBy(result);
+        }
+        Value b = right.evalInPlace();
+        Shape shape = broadcast(a.array.getShape(), b.array.getShape());
+        boolean sameType = a.array.getDataType() == b.array.getDataType();
+        if (a.owned && sameType && a.array.getShape().equals(shape)) {
+            NDArray result;
+            switch (op) {
+                case ADD:
+                    result = a.array.addi(b.array);
+                    break;
+                case SUB:
+                    result = a.array.subi(b.array);
+                    break;
+                case MUL:
+                    result = a.array.muli(b.array);
+                    break;
+                case DIV:
+                    result = a.array.divi(b.array);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown operation " + op);
+            }
+            close(b);
+            return a.replacedBy(result);
+        }
+        if (b.owned && sameType && b.array.getShape().equals(shape) && op != Op.DIV) {
+            // the right side holds the result, the operation is turned around (there is no in-place a / b into b)
+            NDArray result;
+            switch (op) {
+                case ADD:
+                    result = b.array.addi(a.array);
+                    break;
+                case SUB:
+                    // a - b is -b + a to the bit, -(b - a) would give -0 where b equals a
+                    result = b.array.negi().addi(a.array);
+                    break;
+                case MUL:
+                    result = b.array.muli(a.array);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown operation " + op);
+            }
+            close(a);
+            return b.replacedBy(result);
+        }
+        // neither side can hold the result, it is a new array
+        NDArray result;
+        switch (op) {
+            case ADD:
+                result = a.array.add(b.array);
+                break;
+            case SUB:
+                result = a.array.sub(b.array);
+                break;
+            case MUL:
+                result = a.array.mul(b.array);
+                break;
+            case DIV:
+                result = a.array.div(b.array);
+                break;
+            default:
+                throw new IllegalStateException("unknown operation " + op);
+        }
+        close(b);
+        return a.replacedBy(result);
+    }
+
+    private static void close(Value value) {
+        if (value.owned) {
+            value.array.close();
+        }
+    }
+
+    private void collectInputs(List<NDArray> inputs) {
+        if (op == Op.INPUT) {
+            for (NDArray input : inputs) {
+                if (input == array) {
+                    return;
+                }
+            }
+            inputs.add(array);
+            return;
+        }
+        if (left != null) {
+            left.collectInputs(inputs);
+        }
+        if (right != null) {
+            right.collectInputs(inputs);
+        }
+    }
+
+    private NDArray evalEager(List<NDArray> temporaries) {
+        if (op == Op.INPUT) {
+            return array;
+        }
+        if (op == Op.CONSTANT || left.op == Op.CONSTANT && (right == null || right.op == Op.CONSTANT)) {
+            throw new IllegalArgumentException("constants have no NDArray to run on");
+        }
+        NDArray a = left.op == Op.CONSTANT ? null : left.evalEager(temporaries);
+        NDArray result;
+        if (right == null) {
+            switch (op) {
+                case NEG:
+                    result = a.neg();
+                    break;
+                case SQUARE:
+                    result = a.square();
+                    break;
+                case SQRT:
+                    result = a.sqrt();
+                    break;
+                case ABS:
+                    result = a.abs();
+                    break;
+                case MAP:
+                    result = function.apply(a);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown operation " + op);
+            }
+        } else if (right.op == Op.CONSTANT) {
+            float value = right.constant;
+            switch (op) {
+                case ADD:
+                    result = a.add(value);
+                    break;
+                case SUB:
+                    result = a.sub(value);
+                    break;
+                case MUL:
+                    result = a.mul(value);
+                    break;
+                case DIV:
+                    result = a.div(value);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown operation " + op);
+            }
+        } else {
+            NDArray b = right.evalEager(temporaries);
+            if (a == null) {
+                // constant op array
+                NDManager manager = b.getManager();
+                a = manager.create(left.constant);
+                temporaries.add(a);
+            }
+            switch (op) {
+                case ADD:
+                    result = a.add(b);
+                    break;
+                case SUB:
+                    result = a.sub(b);
+                    break;
+                case MUL:
+                    result = a.mul(b);
+                    break;
+                case DIV:
+                    result = a.div(b);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown operation " + op);
+            }
+        }
+        // a function of map may return its argument, an input must not be closed
+        if (result != a) {
+            temporaries.add(result);
+        }
+        return result;
+    }
+
+    private static Shape broadcast(Shape a, Shape b) {
+        int dims = Math.max(a.dimension(), b.dimension());
+        long[] result = new long[dims];
+        for (int d = 0; d < dims; d++) {
+            long x = d < dims - a.dimension() ? 1 : a.get(d - (dims - a.dimension()));
+            long y = d < dims - b.dimension() ? 1 : b.get(d - (dims - b.dimension()));
+            if (x != y && x != 1 && y != 1) {
+                throw new IllegalArgumentException("shapes " + a + " and " + b + " do not broadcast");
+            }
+            result[d] = x == 1 ? y : x;
+        }
+        return new Shape(result);
+    }
+}
@@ -7,6 +7,7 @@ import ai.djl.ndarray.types.Shape;
 public class LinearAlgebra {
 
     public static void main(String[] args) {
+        Engines.select();
         try (NDManager manager = NDManager.newBaseManager()) {
             // A scalar is represented by a NDArray with just one element.
             NDArray x = manager.create(3f);
@@ -57,7 +58,8 @@ public class LinearAlgebra {
             System.out.println("AA , to reduce the row dimension (mean) (axis 0) = " + AA.mean(new int[]{0}));
             System.out.println("AA , to reduce the row dimension (mean) (axis 0) = " + A.sum(new int[]{0}).div(A.getShape().get(0)));
             System.out.println("AA , to reduce the row dimension (mean) (axis 1) = " + AA.mean(new int[]{1}));
-            System.out.println("AA , to reduce the row dimension (mean) (axis 0 and 1) same as mean = " + AA.mean(new int[]{0, 1}));
+            // PyTorch takes the mean over one axis at a time, the sum over both divided by the size is the same
+            System.out.println("AA , to reduce the row dimension (mean) (axis 0 and 1) same as mean = " + AA.sum(new int[]{0, 1}).div(AA.size()));
 
             // dot product
 
@@ -0,0 +1,290 @@
+package net.devk;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the arrays that are alive on a manager and on all the sub managers opened from it, by the scope
+ * that holds them and the line that opened the scope.
+ * <p>
+ * The audit only reads what the manager reports through {@link NDManager#getManagedArrays()}, the manager itself is
+ * left alone. A scope is a sub manager opened with {@link #newScope()}: the arrays allocated in it are attributed
+ * to the line that opened it, and it counts as a leak for as long as it stays open. The arrays of a sub manager
+ * opened any other way belong to the closest scope above it, the manager given to {@link #of(NDManager)} is the
+ * outermost one.
+ * <p>
+ * The sites are per scope, not per allocation. DJL tells nobody when an array is allocated, the results of an
+ * operation are attached by the engine to the manager of its input, so the audit can not know the line of a single
+ * array. An array that is not in a scope, on the audited manager or on a sub manager opened outside
+ * {@link #newScope()}, is reported without a site. To find the line of a leak, open scopes around the code that
+ * leaks, nested ones narrow it down further.
+ * <pre>
+ * MemoryAudit audit = MemoryAudit.of(manager);
+ * MemoryAudit.Mark mark = audit.mark();
+ * try (NDManager iteration = audit.newScope()) {
+ *     // one iteration of the loop
+ * }
+ * List&lt;MemoryAudit.Leak&gt; leaks = audit.leaksSince(mark);
+ * </pre>
+ * Finding the scope of every array is a walk over the live arrays, an audit is meant to be looked at between
+ * iterations, not on every allocation.
+ */
+public final class MemoryAudit {
+
+    // the site of a leak outside the scopes opened through the audit
+    private static final String NO_SCOPE = "no scope, open one around the code to find the line";
+
+    private final Scope root;
+    // the scopes opened through the audit, closed ones are dropped whenever the scopes are listed
+    private final List<Scope> scopes = new CopyOnWriteArrayList<>();
+    private final AtomicInteger scopeCount = new AtomicInteger();
+
+    private MemoryAudit(NDManager manager) {
+        root = new Scope("root", site(), manager);
+    }
+
+    public static MemoryAudit of(NDManager manager) {
+        return new MemoryAudit(manager);
+    }
+
+    /**
+     * A manager opened through the audit, or the audited manager itself.
+     */
+    public final class Scope {
+        private final String name;
+        private final String site;
+        private final NDManager manager;
+
+        private Scope(String name, String site, NDManager manager) {
+            this.name = name;
+            this.site = site;
+            this.manager = manager;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The line that opened the manager.
+         */
+        public String getSite() {
+            return site;
+        }
+
+        public List<NDArray> getArrays() {
+            return arraysByScope().getOrDefault(this, Collections.emptyList());
+        }
+
+        public long getBytes() {
+            return sum(getArrays());
+        }
+    }
+
+    /**
+     * An array that is still alive, or a scope that is still open, with the line that opened its scope. The site of an
+     * array outside every scope says so instead of naming a line.
+     */
+    public static final class Leak {
+        private final String scope;
+        private final String site;
+        private final String description;
+        private final long bytes;
+
+        private Leak(String scope, String site, String description, long bytes) {
+            this.scope = scope;
+            this.site = site;
+            this.description = description;
+            this.bytes = bytes;
+        }
+
+        public String getScope() {
+            return scope;
+        }
+
+        public String getSite() {
+            return site;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s in %s (%d bytes) at %s", description, scope, bytes, site);
+        }
+    }
+
+    /**
+     * The arrays and scopes alive at one point, see {@link #leaksSince(Mark)}.
+     */
+    public static final class Mark {
+        private final Set<String> uids;
+        private final Set<Scope> scopes;
+
+        private Mark(Set<String> uids, Set<Scope> scopes) {
+            this.uids = uids;
+            this.scopes = scopes;
+        }
+    }
+
+    /**
+     * A sub manager of the audited manager whose arrays are attributed to the caller's line.
+     */
+    public NDManager newScope() {
+        return newScope(root.manager);
+    }
+
+    /**
+     * A sub manager of {@code parent}, which is the audited manager or one of the managers opened from it.
+     */
+    public NDManager newScope(NDManager parent) {
+        NDManager manager = parent.newSubManager();
+        scopes.add(new Scope(scopeOf(parent).name + "/" + scopeCount.incrementAndGet(), site(), manager));
+        return manager;
+    }
+
+    public List<Scope> getScopes() {
+        scopes.removeIf(scope -> !scope.manager.isOpen());
+        List<Scope> open = new ArrayList<>();
+        open.add(root);
+        open.addAll(scopes);
+        return open;
+    }
+
+    public Mark mark() {
+        Set<String> uids = new HashSet<>();
+        for (NDArray array : root.manager.getManagedArrays()) {
+            uids.add(array.getUid());
+        }
+        Set<Scope> open = Collections.newSetFromMap(new IdentityHashMap<>());
+        open.addAll(getScopes());
+        return new Mark(uids, open);
+    }
+
+    /**
+     * The arrays and scopes that were created after the mark and are still alive.
+     */
+    public List<Leak> leaksSince(Mark mark) {
+        List<Leak> leaks = new ArrayList<>();
+        Map<Scope, List<NDArray>> arrays = arraysByScope();
+        for (Scope scope : getScopes()) {
+            List<NDArray> inScope = arrays.getOrDefault(scope, Collections.emptyList());
+            if (!mark.scopes.contains(scope)) {
+                leaks.add(new Leak(scope.name, scope.site, "open manager", sum(inScope)));
+            }
+            String site = scope == root ? NO_SCOPE : scope.site;
+            for (NDArray array : inScope) {
+                if (!mark.uids.contains(array.getUid())) {
+                    leaks.add(new Leak(scope.name, site, array.getDataType() + " " + array.getShape(),
+                            bytes(array)));
+                }
+            }
+        }
+        return leaks;
+    }
+
+    /**
+     * Closes what {@link #leaksSince(Mark)} would report, the scopes with all their arrays.
+     */
+    public void closeSince(Mark mark) {
+        for (NDArray array : root.manager.getManagedArrays()) {
+            if (!mark.uids.contains(array.getUid())) {
+                array.close();
+            }
+        }
+        for (Scope scope : getScopes()) {
+            if (!mark.scopes.contains(scope)) {
+                scope.manager.close();
+            }
+        }
+    }
+
+    /**
+     * One line per open scope with its arrays and bytes, then the lines that opened the scopes, the ones holding
+     * the most bytes first. A loop that opens a scope per iteration adds up on a single line.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        Map<String, long[]> bySite = new TreeMap<>();
+        Map<Scope, List<NDArray>> arrays = arraysByScope();
+        for (Scope scope : getScopes()) {
+            List<NDArray> inScope = arrays.getOrDefault(scope, Collections.emptyList());
+            long bytes = sum(inScope);
+            long[] total = bySite.computeIfAbsent(scope.site, k -> new long[2]);
+            total[0] += inScope.size();
+            total[1] += bytes;
+            report.append(String.format("%s: %d arrays, %d bytes, opened at %s%n", scope.name, inScope.size(), bytes,
+                    scope.site));
+        }
+        List<Map.Entry<String, long[]>> sorted = new ArrayList<>(bySite.entrySet());
+        sorted.sort(Collections.reverseOrder((a, b) -> Long.compare(a.getValue()[1], b.getValue()[1])));
+        for (Map.Entry<String, long[]> site : sorted) {
+            report.append(String.format("  %d arrays, %d bytes at %s%n", site.getValue()[0], site.getValue()[1],
+                    site.getKey()));
+        }
+        return report.toString();
+    }
+
+    // every live array under the audited manager, by the closest scope above the manager that holds it
+    private Map<Scope, List<NDArray>> arraysByScope() {
+        Map<Scope, List<NDArray>> arrays = new LinkedHashMap<>();
+        for (NDArray array : root.manager.getManagedArrays()) {
+            arrays.computeIfAbsent(scopeOf(array.getManager()), k -> new ArrayList<>()).add(array);
+        }
+        return arrays;
+    }
+
+    private Scope scopeOf(NDManager manager) {
+        for (NDManager current = manager; current != null; current = current.getParentManager()) {
+            if (current == root.manager) {
+                return root;
+            }
+            for (Scope scope : scopes) {
+                if (scope.manager == current) {
+                    return scope;
+                }
+            }
+        }
+        // an array attached temporarily to a manager outside the audit
+        return root;
+    }
+
+    private static long sum(List<NDArray> arrays) {
+        long bytes = 0;
+        for (NDArray array : arrays) {
+            bytes += bytes(array);
+        }
+        return bytes;
+    }
+
+    private static long bytes(NDArray array) {
+        return array.getShape().size() * array.getDataType().getNumOfBytes();
+    }
+
+    // the first frame of the caller, outside DJL, the JDK and the audit
+    private static String site() {
+        return StackWalker.getInstance().walk(frames -> frames
+                .filter(frame -> !frame.getClassName().startsWith("ai.djl.")
+                        && !frame.getClassName().startsWith("java.")
+                        && !frame.getClassName().startsWith("jdk.")
+                        && !frame.getClassName().equals(MemoryAudit.class.getName())
+                        && !frame.getClassName().startsWith(MemoryAudit.class.getName() + "$"))
+                .findFirst()
+                .map(frame -> frame.toStackTraceElement().toString())
+                .orElse("unknown"));
+    }
+}
@@ -12,6 +12,7 @@ import ai.djl.ndarray.types.Shape;
  */
 public class NDArrayOperations {
     public static void main(String[] args) {
+        Engines.select();
         try (NDManager manager = NDManager.newBaseManager()) {
             var x = manager.create(new float[]{1f, 2f, 4f, 8f});
             var y = manager.create(new float[]{2f, 2f, 2f, 2f});
@@ -36,6 +37,10 @@ public class NDArrayOperations {
             System.out.println("a= " + a);
             System.out.println("b= " + b);
             System.out.println("a+b= " + a.add(b));
+            // the same chains recorded and run into one result array, without a temporary per operation
+            System.out.println("fused a+b= " + FusedExpression.of(a).add(b).eval());
+            System.out.println("fused (a+b)*(a-b)/2= " + FusedExpression.of(a).add(b)
+                    .mul(FusedExpression.of(a).sub(b)).div(2).eval());
 
             // indexing?
             System.out.println("x[-1] = " + x.get(":-1"));
@@ -6,6 +6,7 @@ import ai.djl.ndarray.types.Shape;
 
 public class NDArraySamples {
     public static void main(String[] args) {
+        Engines.select();
         try (NDManager manager = NDManager.newBaseManager()) {
             var x = manager.arange(12);
             x = x.reshape(3, 4);
@@ -0,0 +1,346 @@
+package net.devk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.tablesaw.plotly.Plot;
+import tech.tablesaw.plotly.components.Figure;
+
+import java.awt.Desktop;
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Plots of large series without handing every point to Tablesaw or the browser.
+ * <p>
+ * A series is cut down to about {@link #maxPoints()} points before it is plotted: lines with
+ * largest-triangle-three-buckets (LTTB), which keeps the peaks and the shape, or with min/max bucketing, which keeps
+ * the extremes of every bucket; scatter plots with an even stride, which keeps the density. The page is written
+ * straight to a file, point by point, instead of being built as one string by the templates.
+ * <p>
+ * {@code -Dheadless=true} (or a JVM without a display) only writes the files, under {@code -Dplot.dir} (default
+ * {@code target/plots}, out of the sources like the rest of the build output), and never opens a browser, so batch
+ * jobs can plot too.
+ */
+public final class Plots {
+
+    private static final Logger logger = LoggerFactory.getLogger(Plots.class);
+
+    private static final String PLOTLY = "https://cdn.plot.ly/plotly-latest.min.js";
+
+    private Plots() {
+    }
+
+    /**
+     * How many points a plotted series keeps, {@code -Dplot.points=<n>}, 2000 by default.
+     */
+    public static int maxPoints() {
+        return Integer.getInteger("plot.points", 2000);
+    }
+
+    public static boolean isHeadless() {
+        return Boolean.getBoolean("headless") || GraphicsEnvironment.isHeadless();
+    }
+
+    public static Path outputDirectory() {
+        return Paths.get(System.getProperty("plot.dir", "target/plots"));
+    }
+
+    /**
+     * Largest-triangle-three-buckets: the first and the last point and, for every bucket in between, the point that
+     * makes the largest triangle with the point kept before it and the mean of the next bucket. {@code x} has to be
+     * sorted.
+     *
+     * @return the indices of the kept points, ascending
+     */
+    public static int[] lttb(double[] x, double[] y, int target) {
+        int n = x.length;
+        if (target >= n || target < 3) {
+            return all(n);
+        }
+        int[] kept = new int[target];
+        double every = (double) (n - 2) / (target - 2);
+        int a = 0;
+        for (int i = 0; i < target - 2; i++) {
+            int nextFrom = (int) ((i + 1) * every) + 1;
+            int nextTo = Math.min((int) ((i + 2) * every) + 1, n);
+            double meanX = 0;
+            double meanY = 0;
+            for (int j = nextFrom; j < nextTo; j++) {
+                meanX += x[j];
+                meanY += y[j];
+            }
+            int count = nextTo - nextFrom;
+            meanX /= count;
+            meanY /= count;
+
+            int from = (int) (i * every) + 1;
+            int to = nextFrom;
+            double maxArea = -1;
+            int max = from;
+            for (int j = from; j < to; j++) {
+                // twice the area, only the comparison matters
+                double area = Math.abs((x[a] - meanX) * (y[j] - y[a]) - (x[a] - x[j]) * (meanY - y[a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    max = j;
+                }
+            }
+            kept[i + 1] = max;
+            a = max;
+        }
+        kept[target - 1] = n - 1;
+        return kept;
+    }
+
+    /**
+     * The smallest and the largest value of every bucket, in their order, so no spike disappears. Cheaper than
+     * {@link #lttb} and exact about the range of the values, but keeps up to two points per bucket.
+     *
+     * @return the indices of the kept points, ascending
+     */
+    public static int[] minMax(double[] y, int target) {
+        int n = y.length;
+        int buckets = target / 2;
+        if (target >= n || buckets < 1) {
+            return all(n);
+        }
+        int[] kept = new int[buckets * 2];
+        int size = 0;
+        for (int b = 0; b < buckets; b++) {
+            int from = (int) ((long) b * n / buckets);
+            int to = (int) ((long) (b + 1) * n / buckets);
+            int min = from;
+            int max = from;
+            for (int j = from + 1; j < to; j++) {
+                if (y[j] < y[min]) {
+                    min = j;
+                } else if (y[j] > y[max]) {
+                    max = j;
+                }
+            }
+            kept[size++] = Math.min(min, max);
+            if (min != max) {
+                kept[size++] = Math.max(min, max);
+            }
+        }
+        return Arrays.copyOf(kept, size);
+    }
+
+    /**
+     * Every k-th point, for scatter plots where the order of the points means nothing.
+     */
+    public static int[] stride(int n, int target) {
+        if (target >= n || target < 1) {
+            return all(n);
+        }
+        int[] kept = new int[target];
+        for (int i = 0; i < target; i++) {
+            kept[i] = (int) ((long) i * n / target);
+        }
+        return kept;
+    }
+
+    public static double[] select(double[] values, int[] indices) {
+        double[] selected = new double[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            selected[i] = values[indices[i]];
+        }
+        return selected;
+    }
+
+    public static double[] select(float[] values, int[] indices) {
+        double[] selected = new double[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            selected[i] = values[indices[i]];
+        }
+        return selected;
+    }
+
+    private static int[] all(int n) {
+        int[] indices = new int[n];
+        for (int i = 0; i < n; i++) {
+            indices[i] = i;
+        }
+        return indices;
+    }
+
+    /**
+     * A trace of a plot that is already small enough to draw.
+     */
+    public static final class Series {
+        private final String name;
+        private final String mode;
+        private final double[] x;
+        private final double[] y;
+
+        private Series(String name, String mode, double[] x, double[] y) {
+            if (x.length != y.length) {
+                throw new IllegalArgumentException("x and y need the same length");
+            }
+            this.name = name;
+            this.mode = mode;
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * A line through sorted {@code x}, cut down with {@link #lttb}.
+         */
+        public static Series line(String name, double[] x, double[] y) {
+            int[] kept = lttb(x, y, maxPoints());
+            return new Series(name, "lines", select(x, kept), select(y, kept));
+        }
+
+        /**
+         * A line cut down with {@link #minMax}, for when every spike has to stay visible.
+         */
+        public static Series minMaxLine(String name, double[] x, double[] y) {
+            int[] kept = minMax(y, maxPoints());
+            return new Series(name, "lines", select(x, kept), select(y, kept));
+        }
+
+        /**
+         * Unordered points, cut down with {@link #stride}.
+         */
+        public static Series markers(String name, float[] x, float[] y) {
+            int[] kept = stride(x.length, maxPoints());
+            return new Series(name, "markers", select(x, kept), select(y, kept));
+        }
+
+        public int size() {
+            return x.length;
+        }
+    }
+
+    /**
+     * Writes the plot as a standalone page, one point at a time.
+     */
+    public static void write(Path file, String title, String xLabel, String yLabel, Series... series)
+            throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("<!DOCTYPE html>\n<html lang=\"en-US\">\n<head>\n<meta charset=\"UTF-8\">\n<title>");
+            out.write(title);
+            out.write("</title>\n<script src=\"" + PLOTLY + "\"></script>\n</head>\n<body>\n");
+            out.write("<div id=\"plot\"></div>\n<script>\nPlotly.newPlot('plot', [");
+            for (int i = 0; i < series.length; i++) {
+                Series s = series[i];
+                out.write(i == 0 ? "\n{" : ",\n{");
+                out.write("\"name\":");
+                writeString(out, s.name);
+                out.write(",\"mode\":\"" + s.mode + "\",\"type\":\"scatter\",\"x\":");
+                writeNumbers(out, s.x);
+                out.write(",\"y\":");
+                writeNumbers(out, s.y);
+                out.write("}");
+            }
+            out.write("\n], {\"title\":");
+            writeString(out, title);
+            out.write(",\"xaxis\":{\"title\":");
+            writeString(out, xLabel);
+            out.write("},\"yaxis\":{\"title\":");
+            writeString(out, yLabel);
+            out.write("}});\n</script>\n</body>\n</html>\n");
+        }
+    }
+
+    private static void writeNumbers(Writer out, double[] values) throws IOException {
+        out.write('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            double value = values[i];
+            out.write(Double.isFinite(value) ? Double.toString(value) : "null");
+        }
+        out.write(']');
+    }
+
+    private static void writeString(Writer out, String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < ' ' || c == '<') {
+                // '<' so a name can not close the script tag
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * Writes the plot to {@code <plot.dir>/<name>.html} and opens it, unless headless.
+     *
+     * @return the file that was written
+     */
+    public static Path show(String name, String title, String xLabel, String yLabel, Series... series)
+            throws IOException {
+        Path file = outputDirectory().resolve(name + ".html");
+        write(file, title, xLabel, yLabel, series);
+        open(file);
+        return file;
+    }
+
+    /**
+     * Shows a Tablesaw figure like {@link Plot#show}, but only writes it when headless. Its traces should already
+     * be cut down, Tablesaw builds the whole page in memory.
+     */
+    public static Path show(Figure figure, String name) throws IOException {
+        Path file = outputDirectory().resolve(name + ".html");
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("<!DOCTYPE html>\n<html lang=\"en-US\">\n<head>\n<meta charset=\"UTF-8\">\n<title>");
+            out.write(name);
+            out.write("</title>\n<script src=\"" + PLOTLY + "\"></script>\n</head>\n<body>\n");
+            out.write(figure.divString(name));
+            out.write(figure.asJavascript(name));
+            out.write("\n</body>\n</html>\n");
+        }
+        open(file);
+        return file;
+    }
+
+    private static void open(Path file) throws IOException {
+        if (isHeadless() || !Desktop.isDesktopSupported()
+                || !Desktop.getDesktop().isSupported(Desktop.Action.BROWSE)) {
+            logger.info("plot written to {}", file.toAbsolutePath());
+            return;
+        }
+        Desktop.getDesktop().browse(file.toUri());
+    }
+
+    // -Dpoints=<n> plots a noisy sine of that many points
+    public static void main(String[] args) throws IOException {
+        int points = Integer.getInteger("points", 1_000_000);
+        double[] x = new double[points];
+        double[] y = new double[points];
+        Random random = new Random(42);
+        for (int i = 0; i < points; i++) {
+            x[i] = i * 0.001;
+            y[i] = Math.sin(x[i]) + 0.1 * random.nextGaussian() + (i % 100_000 == 0 ? 2 : 0);
+        }
+        long start = System.nanoTime();
+        Series lttb = Series.line("lttb", x, y);
+        Series minMax = Series.minMaxLine("min/max", x, y);
+        Path file = show("downsampling", "Downsampling " + points + " points", "x", "y", lttb, minMax);
+        logger.info("{} points cut down to {} (lttb) and {} (min/max), written in {} ms, {} KB", points, lttb.size(),
+                minMax.size(), (System.nanoTime() - start) / 1_000_000, Files.size(file) / 1024);
+    }
+}
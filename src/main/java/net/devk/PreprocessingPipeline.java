@@ -0,0 +1,577 @@
+package net.devk;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import net.devk.regression.DataPoints;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Turns rows of text values into feature rows: imputation of missing numbers with the mean or the median, optional
+ * standardization, and one-hot encoding of text columns. {@link #fit(Path, int)} learns the statistics from a CSV
+ * file, {@link #save(Path)} and {@link #load(Path)} keep them, so serving transforms its rows exactly like the
+ * training data was. The file is split into fields like {@link CsvChunkReader} does, quoted fields included.
+ * <p>
+ * The fitted state is kept in primitive arrays, one entry per column, and {@link #transform(String[], float[], int)}
+ * writes a row straight into the caller's float buffer: no {@code double[][]}, no intermediate column objects and,
+ * once the values of the row are split, no allocation per row. {@link #transform(Path, NDManager)} fills one buffer
+ * for the whole file, which becomes the NDArray with a single copy.
+ * <pre>
+ * PreprocessingPipeline pipeline = PreprocessingPipeline.builder()
+ *         .numeric("NumRooms", PreprocessingPipeline.Impute.MEDIAN, true)
+ *         .categorical("Alley")
+ *         .label("Price")
+ *         .build()
+ *         .fit(file, 4);
+ * </pre>
+ * The values of {@link #transform(String[], float[], int)} are in the order the columns were added. A text value
+ * that was not seen by the fit sets none of the one-hot features, a missing one sets the {@code _nan} feature if the
+ * fit saw missing values in that column.
+ */
+public class PreprocessingPipeline {
+
+    private static final int MAGIC = 0x50504c4e; // "NLPP" read as a little-endian int
+    private static final int VERSION = 1;
+    // exact as doubles
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    public enum Impute {
+        MEAN, MEDIAN
+    }
+
+    private final String[] columns;
+    private final boolean[] numeric;
+    private final Impute[] impute;
+    private final boolean[] standardize;
+    private final String label;
+
+    // the fitted state, by column
+    private final float[] fill;
+    private final float[] mean;
+    private final float[] scale;
+    private final int[] offsets;
+    private final int[] widths;
+    private final Map<String, Integer>[] levels;
+    private final boolean[] hasMissing;
+    private int numFeatures;
+    private boolean fitted;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private PreprocessingPipeline(List<String> columns, List<Impute> impute, List<Boolean> standardize,
+                                  String label) {
+        int n = columns.size();
+        this.columns = columns.toArray(new String[0]);
+        this.impute = impute.toArray(new Impute[0]);
+        this.label = label;
+        numeric = new boolean[n];
+        this.standardize = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            numeric[i] = this.impute[i] != null;
+            this.standardize[i] = standardize.get(i);
+        }
+        fill = new float[n];
+        mean = new float[n];
+        scale = new float[n];
+        offsets = new int[n];
+        widths = new int[n];
+        levels = new Map[n];
+        hasMissing = new boolean[n];
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Learns the statistics of every column from the file. The file is read once, then the columns are fitted on
+     * {@code numThreads} threads, the median sorts the values of its column.
+     */
+    public PreprocessingPipeline fit(Path file, int numThreads) throws IOException {
+        int n = columns.length;
+        float[][] values = new float[n][];
+        int rows = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            int[] indices = indices(CsvChunkReader.split(CsvChunkReader.readRecord(reader)), file);
+            for (int i = 0; i < n; i++) {
+                if (numeric[i]) {
+                    values[i] = new float[1024];
+                } else {
+                    // insertion ordered, the order of the one-hot features is the order of first appearance
+                    levels[i] = new LinkedHashMap<>();
+                    hasMissing[i] = false;
+                }
+            }
+            String line;
+            while ((line = CsvChunkReader.readRecord(reader)) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] row = CsvChunkReader.split(line);
+                for (int i = 0; i < n; i++) {
+                    String value = indices[i] < row.length ? row[indices[i]] : "";
+                    boolean missing = CsvChunkReader.MISSING.contains(value);
+                    if (numeric[i]) {
+                        if (rows == values[i].length) {
+                            values[i] = Arrays.copyOf(values[i], rows * 2);
+                        }
+                        values[i][rows] = missing ? Float.NaN : parse(value, file, i);
+                    } else if (missing) {
+                        hasMissing[i] = true;
+                    } else {
+                        levels[i].putIfAbsent(value, levels[i].size());
+                    }
+                }
+                rows++;
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            int numRows = rows;
+            for (int i = 0; i < n; i++) {
+                if (numeric[i]) {
+                    int column = i;
+                    futures.add(executor.submit(() -> fitNumeric(column, values[column], numRows)));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while fitting " + file, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        layout();
+        return this;
+    }
+
+    private void fitNumeric(int column, float[] values, int rows) {
+        double sum = 0;
+        int count = 0;
+        for (int r = 0; r < rows; r++) {
+            if (!Float.isNaN(values[r])) {
+                sum += values[r];
+                count++;
+            }
+        }
+        double average = count == 0 ? 0 : sum / count;
+        double squares = 0;
+        for (int r = 0; r < rows; r++) {
+            if (!Float.isNaN(values[r])) {
+                double d = values[r] - average;
+                squares += d * d;
+            }
+        }
+        double std = count == 0 ? 0 : Math.sqrt(squares / count);
+        hasMissing[column] = count < rows;
+        mean[column] = (float) average;
+        // a constant column stays as it is instead of dividing by zero
+        scale[column] = standardize[column] && std > 0 ? (float) (1 / std) : 1;
+        if (!standardize[column]) {
+            mean[column] = 0;
+        }
+        if (impute[column] == Impute.MEDIAN) {
+            // NaN sorts last, the missing values are not part of the median
+            float[] sorted = Arrays.copyOf(values, rows);
+            Arrays.sort(sorted);
+            fill[column] = count == 0 ? 0 : count % 2 == 1
+                    ? sorted[count / 2]
+                    : (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+        } else {
+            fill[column] = (float) average;
+        }
+    }
+
+    private void layout() {
+        numFeatures = 0;
+        for (int i = 0; i < columns.length; i++) {
+            offsets[i] = numFeatures;
+            widths[i] = numeric[i] ? 1 : levels[i].size() + (hasMissing[i] ? 1 : 0);
+            numFeatures += widths[i];
+        }
+        fitted = true;
+    }
+
+    /**
+     * The columns the values of {@link #transform(String[], float[], int)} belong to, in their order.
+     */
+    public List<String> getColumns() {
+        return Arrays.asList(columns);
+    }
+
+    public int numColumns() {
+        return columns.length;
+    }
+
+    public int numFeatures() {
+        checkFitted();
+        return numFeatures;
+    }
+
+    public List<String> getFeatureNames() {
+        checkFitted();
+        List<String> names = new ArrayList<>(numFeatures);
+        for (int i = 0; i < columns.length; i++) {
+            if (numeric[i]) {
+                names.add(columns[i]);
+                continue;
+            }
+            for (String level : levels[i].keySet()) {
+                names.add(columns[i] + "_" + level);
+            }
+            if (hasMissing[i]) {
+                names.add(columns[i] + "_nan");
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Writes the {@link #numFeatures()} features of one row to {@code out}, starting at {@code offset}.
+     * A numeric column with a value that is not a number throws an {@link IllegalArgumentException}.
+     *
+     * @param values the values of the columns, in the order they were added to the builder
+     */
+    public void transform(String[] values, float[] out, int offset) {
+        for (int i = 0; i < columns.length; i++) {
+            String value = values[i];
+            boolean missing = value == null || CsvChunkReader.MISSING.contains(value);
+            int at = offset + offsets[i];
+            if (numeric[i]) {
+                float x = missing ? fill[i] : parse(value, i);
+                out[at] = (x - mean[i]) * scale[i];
+            } else {
+                Arrays.fill(out, at, at + widths[i], 0f);
+                if (missing) {
+                    if (hasMissing[i]) {
+                        out[at + widths[i] - 1] = 1f;
+                    }
+                } else {
+                    Integer level = levels[i].get(value);
+                    if (level != null) {
+                        out[at + level] = 1f;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Transforms every row of the file into one buffer of rows times {@link #numFeatures()} floats, the features
+     * and, if the pipeline has a label, the labels.
+     */
+    public DataPoints transform(Path file, NDManager manager) throws IOException {
+        checkFitted();
+        long rows = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            CsvChunkReader.readRecord(reader);
+            String line;
+            while ((line = CsvChunkReader.readRecord(reader)) != null) {
+                if (!line.isEmpty()) {
+                    rows++;
+                }
+            }
+        }
+        float[] x = new float[Math.toIntExact(rows * numFeatures)];
+        float[] y = new float[(int) rows];
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String headerRecord = CsvChunkReader.readRecord(reader);
+            String[] header = CsvChunkReader.split(headerRecord);
+            int[] indices = indices(header, file);
+            int labelIndex = label == null ? -1 : Arrays.asList(header).indexOf(label);
+            if (label != null && labelIndex < 0) {
+                throw new IllegalArgumentException("no column named " + label + " in " + file);
+            }
+            String[] values = new String[columns.length];
+            int row = 0;
+            // the line a record starts on, a quoted field may hold line breaks
+            int lineNumber = 1 + lineBreaks(headerRecord);
+            String line;
+            while ((line = CsvChunkReader.readRecord(reader)) != null && row < rows) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = CsvChunkReader.split(line);
+                for (int i = 0; i < columns.length; i++) {
+                    values[i] = indices[i] < fields.length ? fields[indices[i]] : null;
+                }
+                transform(values, x, row * numFeatures);
+                if (labelIndex >= 0) {
+                    y[row] = label(labelIndex < fields.length ? fields[labelIndex] : null, file, lineNumber);
+                }
+                row++;
+                lineNumber += lineBreaks(line);
+            }
+        }
+        NDArray features = manager.create(FloatBuffer.wrap(x), new Shape(rows, numFeatures));
+        NDArray labels = manager.create(FloatBuffer.wrap(y), new Shape(rows, 1));
+        return new DataPoints(features, labels);
+    }
+
+    private static int lineBreaks(String record) {
+        return (int) record.chars().filter(c -> c == '\n').count();
+    }
+
+    public void save(Path file) throws IOException {
+        checkFitted();
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(label != null);
+            if (label != null) {
+                out.writeUTF(label);
+            }
+            out.writeInt(columns.length);
+            for (int i = 0; i < columns.length; i++) {
+                out.writeUTF(columns[i]);
+                out.writeByte(numeric[i] ? impute[i].ordinal() : -1);
+                out.writeBoolean(standardize[i]);
+                out.writeFloat(fill[i]);
+                out.writeFloat(mean[i]);
+                out.writeFloat(scale[i]);
+                out.writeBoolean(hasMissing[i]);
+                if (!numeric[i]) {
+                    // in the order of their features
+                    out.writeInt(levels[i].size());
+                    for (String level : levels[i].keySet()) {
+                        out.writeUTF(level);
+                    }
+                }
+            }
+        }
+    }
+
+    public static PreprocessingPipeline load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a preprocessing pipeline of version " + VERSION);
+            }
+            Builder builder = builder();
+            if (in.readBoolean()) {
+                builder.label(in.readUTF());
+            }
+            int n = in.readInt();
+            float[][] state = new float[n][];
+            boolean[] missing = new boolean[n];
+            List<List<String>> levelNames = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                String column = in.readUTF();
+                int kind = in.readByte();
+                boolean standardize = in.readBoolean();
+                if (kind < 0) {
+                    builder.categorical(column);
+                } else {
+                    builder.numeric(column, Impute.values()[kind], standardize);
+                }
+                state[i] = new float[]{in.readFloat(), in.readFloat(), in.readFloat()};
+                missing[i] = in.readBoolean();
+                List<String> names = Collections.emptyList();
+                if (kind < 0) {
+                    names = new ArrayList<>();
+                    int count = in.readInt();
+                    for (int l = 0; l < count; l++) {
+                        names.add(in.readUTF());
+                    }
+                }
+                levelNames.add(names);
+            }
+            PreprocessingPipeline pipeline = builder.build();
+            for (int i = 0; i < n; i++) {
+                pipeline.fill[i] = state[i][0];
+                pipeline.mean[i] = state[i][1];
+                pipeline.scale[i] = state[i][2];
+                pipeline.hasMissing[i] = missing[i];
+                if (!pipeline.numeric[i]) {
+                    // only read from now on, a HashMap is enough
+                    Map<String, Integer> map = new HashMap<>();
+                    for (String level : levelNames.get(i)) {
+                        map.put(level, map.size());
+                    }
+                    pipeline.levels[i] = map;
+                }
+            }
+            pipeline.layout();
+            return pipeline;
+        }
+    }
+
+    private int[] indices(String[] header, Path file) {
+        List<String> names = Arrays.asList(header);
+        int[] indices = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indices[i] = names.indexOf(columns[i]);
+            if (indices[i] < 0) {
+                throw new IllegalArgumentException("no column named " + columns[i] + " in " + file);
+            }
+        }
+        return indices;
+    }
+
+    // a label is not imputed, a row without one cannot be trained on
+    private float label(String value, Path file, int lineNumber) {
+        if (value == null || CsvChunkReader.MISSING.contains(value)) {
+            throw new IllegalArgumentException("line " + lineNumber + " of " + file + " has no " + label);
+        }
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("line " + lineNumber + " of " + file + " has the " + label + " "
+                    + value, e);
+        }
+    }
+
+    private float parse(String value, int column) {
+        try {
+            return parseFloat(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("the numeric column " + columns[column] + " has the value " + value, e);
+        }
+    }
+
+    private float parse(String value, Path file, int column) {
+        try {
+            return parseFloat(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("the numeric column " + columns[column] + " of " + file
+                    + " has the value " + value, e);
+        }
+    }
+
+    /**
+     * {@link Float#parseFloat(String)} without its allocations for plain decimals ({@code -12.5}, {@code 3e-2}): at
+     * most 18 digits and an exponent of at most 22 are one exact long and one rounded double operation, anything
+     * else goes to {@code Float.parseFloat}. Rounding the double to a float once more can differ in the last bit in
+     * rare cases, the fit and the transform both parse here.
+     */
+    static float parseFloat(String value) {
+        int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            negative = value.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean point = false;
+        int start = i;
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (mantissa != 0 || c != '0') {
+                    digits++;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (point) {
+                    exponent--;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (i == start || i == start + 1 && point || digits > 18) {
+            return Float.parseFloat(value);
+        }
+        if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+                negativeExponent = value.charAt(i) == '-';
+                i++;
+            }
+            int e = 0;
+            int exponentStart = i;
+            for (; i < length && value.charAt(i) >= '0' && value.charAt(i) <= '9' && e < 1000; i++) {
+                e = e * 10 + (value.charAt(i) - '0');
+            }
+            if (i == exponentStart) {
+                return Float.parseFloat(value);
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (i != length || mantissa >= 1L << 53 || exponent < -22 || exponent > 22) {
+            return Float.parseFloat(value);
+        }
+        double result = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        return (float) (negative ? -result : result);
+    }
+
+    private void checkFitted() {
+        if (!fitted) {
+            throw new IllegalStateException("the pipeline has not been fitted");
+        }
+    }
+
+    public static final class Builder {
+        private final List<String> columns = new ArrayList<>();
+        private final List<Impute> impute = new ArrayList<>();
+        private final List<Boolean> standardize = new ArrayList<>();
+        private String label;
+
+        /**
+         * A number column, its missing values are imputed and, if {@code standardize}, it is scaled to a mean of 0
+         * and a standard deviation of 1.
+         */
+        public Builder numeric(String column, Impute impute, boolean standardize) {
+            columns.add(column);
+            this.impute.add(impute);
+            this.standardize.add(standardize);
+            return this;
+        }
+
+        /**
+         * A text column, one-hot encoded.
+         */
+        public Builder categorical(String column) {
+            columns.add(column);
+            impute.add(null);
+            standardize.add(false);
+            return this;
+        }
+
+        /**
+         * The column {@link #transform(Path, NDManager)} reads the labels from.
+         */
+        public Builder label(String column) {
+            label = column;
+            return this;
+        }
+
+        public PreprocessingPipeline build() {
+            if (columns.isEmpty()) {
+                throw new IllegalArgumentException("the pipeline has no columns");
+            }
+            return new PreprocessingPipeline(columns, impute, standardize, label);
+        }
+    }
+}
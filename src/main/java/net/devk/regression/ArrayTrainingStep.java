@@ -0,0 +1,120 @@
+package net.devk.regression;
+
+import java.util.Arrays;
+
+/**
+ * The minibatch step of {@link LinearRegressionFromScratch} (forward, squared loss, gradient and sgd) on plain
+ * float arrays, without the engine.
+ * <p>
+ * For small batches every NDArray operation is a native call on a handful of numbers, and the call, the new
+ * NDArray and its handle cost far more than the arithmetic. Here a step is a few loops over contiguous arrays
+ * without branches or calls inside, the JIT vectorizes the element-wise ones, and nothing is allocated.
+ * {@link #isFaster(int, int)} tells whether a batch is within the sizes where that was measured.
+ * <p>
+ * Rows are read from one row-major array of the whole dataset, a batch is a range of its rows.
+ */
+public class ArrayTrainingStep {
+
+    /**
+     * Batches of up to this many numbers (rows times features) train here: 1M rows of 16 features, the largest batch
+     * of {@code ArrayBackendBenchmark}. On a single core the arrays were faster at every size it measured (34 ms
+     * against 106 ms at the largest), larger batches were not measured and go to the engine.
+     * {@code -Darray.threshold=<numbers>} overrides it.
+     */
+    public static final int DEFAULT_THRESHOLD = 16_000_000;
+
+    private final int numFeatures;
+    private final float lr;
+    private final int batchSize;
+    private final float[] weights;
+    private float bias;
+
+    // reused between steps
+    private float[] residuals = new float[0];
+    private final float[] weightGradient;
+
+    public ArrayTrainingStep(float[] weights, float bias, float lr, int batchSize) {
+        this.weights = weights.clone();
+        this.bias = bias;
+        this.lr = lr;
+        this.batchSize = batchSize;
+        numFeatures = weights.length;
+        weightGradient = new float[numFeatures];
+    }
+
+    public static boolean isFaster(int batchSize, int numFeatures) {
+        return (long) batchSize * numFeatures <= Integer.getInteger("array.threshold", DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Trains on rows [from, from + rows) of {@code x} (row-major) and {@code y}.
+     *
+     * @return the summed squared loss of the rows, before the update
+     */
+    public float step(float[] x, float[] y, int from, int rows) {
+        if (residuals.length < rows) {
+            residuals = new float[rows];
+        }
+        float[] r = residuals;
+        float[] w = weights;
+        int d = numFeatures;
+
+        // forward: r = Xw + b - y
+        if (d == 1) {
+            float w0 = w[0];
+            for (int i = 0; i < rows; i++) {
+                r[i] = x[from + i] * w0 + bias - y[from + i];
+            }
+        } else {
+            for (int i = 0; i < rows; i++) {
+                int row = (from + i) * d;
+                float dot = 0;
+                for (int j = 0; j < d; j++) {
+                    dot += x[row + j] * w[j];
+                }
+                r[i] = dot + bias - y[from + i];
+            }
+        }
+
+        // loss and gradients: the gradient of (r^2)/2 is r times the input
+        float loss = 0;
+        float biasGradient = 0;
+        for (int i = 0; i < rows; i++) {
+            loss += r[i] * r[i];
+            biasGradient += r[i];
+        }
+        float[] g = weightGradient;
+        if (d == 1) {
+            float g0 = 0;
+            for (int i = 0; i < rows; i++) {
+                g0 += r[i] * x[from + i];
+            }
+            g[0] = g0;
+        } else {
+            Arrays.fill(g, 0);
+            for (int i = 0; i < rows; i++) {
+                int row = (from + i) * d;
+                float ri = r[i];
+                for (int j = 0; j < d; j++) {
+                    g[j] += ri * x[row + j];
+                }
+            }
+        }
+
+        // the same update as LinearRegressionFromScratch.sgd
+        float scale = lr / batchSize;
+        for (int j = 0; j < d; j++) {
+            w[j] -= scale * g[j];
+        }
+        bias -= scale * biasGradient;
+        return loss / 2;
+    }
+
+    public float[] getWeights() {
+        return weights;
+    }
+
+    public float getBias() {
+        return bias;
+    }
+}
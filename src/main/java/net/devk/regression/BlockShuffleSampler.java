@@ -0,0 +1,183 @@
+package net.devk.regression;
+
+import ai.djl.training.dataset.RandomAccessDataset;
+import ai.djl.training.dataset.Sampler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Nearly random batches that still read the data mostly in order, for {@code ArrayDataset.Builder.setSampling}.
+ * <p>
+ * The rows are cut into blocks of {@code blockSize} consecutive rows and the order of the blocks is shuffled. The
+ * blocks are then taken {@code windowBlocks} at a time, and the rows of such a window are shuffled together and cut
+ * into batches. A batch mixes rows of several distant parts of the data, like a fully shuffled one, but every batch
+ * of a window only touches the same few blocks, which stay in the cache (or the page cache, for a
+ * {@link MappedDataset}) while the window lasts, instead of a random row anywhere in the data for every row of every
+ * batch. The indices of a batch are in ascending order, the order of the rows inside a batch does not change its
+ * gradient and the gather reads forward. The rows a window can not fill a whole batch with are carried into the next
+ * window, only the last batch of the epoch is short.
+ * <p>
+ * Every epoch has a new order, the sequence of orders only depends on the seed.
+ */
+public class BlockShuffleSampler implements Sampler {
+
+    private static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private final int batchSize;
+    private final int blockSize;
+    private final int windowBlocks;
+    private final Random random;
+
+    /**
+     * @param blockSize    rows of a block, read as one contiguous run
+     * @param windowBlocks blocks shuffled together, the more the closer the batches are to a full shuffle
+     */
+    public BlockShuffleSampler(int batchSize, int blockSize, int windowBlocks, long seed) {
+        if (batchSize < 1 || blockSize < 1 || windowBlocks < 1) {
+            throw new IllegalArgumentException("the batch size, block size and window must be positive");
+        }
+        this.batchSize = batchSize;
+        this.blockSize = blockSize;
+        this.windowBlocks = windowBlocks;
+        random = new Random(seed);
+    }
+
+    /**
+     * Blocks of 1024 rows, shuffled in windows of 16 blocks or 4 batches, whichever is more. A window of 16K rows of
+     * 16 features is 1 MB and stays in the cache, one as large as the data would be a full shuffle.
+     */
+    public BlockShuffleSampler(int batchSize, long seed) {
+        this(batchSize, DEFAULT_BLOCK_SIZE, Math.max(16, (4 * batchSize + DEFAULT_BLOCK_SIZE - 1) / DEFAULT_BLOCK_SIZE),
+                seed);
+    }
+
+    @Override
+    public Iterator<List<Long>> sample(RandomAccessDataset dataset) {
+        long size = dataset.size();
+        int numBlocks = Math.toIntExact((size + blockSize - 1) / blockSize);
+        int[] blocks = new int[numBlocks];
+        for (int i = 0; i < numBlocks; i++) {
+            blocks[i] = i;
+        }
+        shuffle(blocks);
+        return new Batches(size, blocks, random.nextLong());
+    }
+
+    @Override
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    private void shuffle(int[] values) {
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = values[i];
+            values[i] = values[j];
+            values[j] = swap;
+        }
+    }
+
+    private final class Batches implements Iterator<List<Long>> {
+
+        private final long size;
+        private final int[] blocks;
+        private final Random windowRandom;
+        // the rows of the window, grouped by batch, every batch in ascending order
+        private final long[] window;
+        // the rows of the previous window that did not fill a batch, in ascending order
+        private final long[] carry;
+        private final int[] slots;
+        private final int[] fill;
+        private int nextBlock;
+        private int windowRows;
+        private int position;
+
+        Batches(long size, int[] blocks, long seed) {
+            this.size = size;
+            this.blocks = blocks;
+            int capacity = (int) Math.min((long) windowBlocks * blockSize + batchSize - 1, size);
+            window = new long[capacity];
+            carry = new long[batchSize];
+            slots = new int[capacity];
+            fill = new int[(capacity + batchSize - 1) / batchSize];
+            windowRandom = new Random(seed);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < windowRows || nextBlock < blocks.length;
+        }
+
+        @Override
+        public List<Long> next() {
+            if (windowRows - position < batchSize && nextBlock < blocks.length) {
+                fillWindow();
+            } else if (position == windowRows) {
+                throw new NoSuchElementException();
+            }
+            int count = Math.min(batchSize, windowRows - position);
+            List<Long> indices = new ArrayList<>(count);
+            for (int i = position; i < position + count; i++) {
+                indices.add(window[i]);
+            }
+            position += count;
+            return indices;
+        }
+
+        private int blockRows(int block) {
+            return (int) (Math.min((long) block * blockSize + blockSize, size) - (long) block * blockSize);
+        }
+
+        private void fillWindow() {
+            // what is left is the last batch of the window, its rows are still in ascending order
+            int carried = windowRows - position;
+            System.arraycopy(window, position, carry, 0, carried);
+            // the blocks of the window, and more if they do not fill a batch
+            windowRows = carried;
+            int count = 0;
+            while (nextBlock + count < blocks.length && (count < windowBlocks || windowRows < batchSize)) {
+                windowRows += blockRows(blocks[nextBlock + count++]);
+            }
+            int[] windowBlockIds = Arrays.copyOfRange(blocks, nextBlock, nextBlock + count);
+            nextBlock += count;
+            Arrays.sort(windowBlockIds);
+            position = 0;
+
+            // a random batch for every row, as many rows per batch as a shuffle cut into batches would give
+            for (int i = 0; i < windowRows; i++) {
+                slots[i] = i / batchSize;
+            }
+            for (int i = windowRows - 1; i > 0; i--) {
+                int j = windowRandom.nextInt(i + 1);
+                int swap = slots[i];
+                slots[i] = slots[j];
+                slots[j] = swap;
+            }
+            // dealing the rows out in ascending order leaves every batch sorted, without sorting
+            for (int b = 0; b < fill.length; b++) {
+                fill[b] = b * batchSize;
+            }
+            int i = 0;
+            int c = 0;
+            for (int block : windowBlockIds) {
+                long from = (long) block * blockSize;
+                long to = Math.min(from + blockSize, size);
+                for (long row = from; row < to; row++) {
+                    // the carried rows are merged in where they belong
+                    while (c < carried && carry[c] < row) {
+                        window[fill[slots[i++]]++] = carry[c++];
+                    }
+                    window[fill[slots[i++]]++] = row;
+                }
+            }
+            while (c < carried) {
+                window[fill[slots[i++]]++] = carry[c++];
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package net.devk.regression;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.ParameterList;
+import ai.djl.util.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Writes checkpoints without holding up the training loop. {@link #save} only queues copies of the arrays in the
+ * engine, a background thread copies them out and writes the file, so the training thread never waits for the disk
+ * or for the engine to finish the copies.
+ * <p>
+ * A checkpoint is written to a temporary file and renamed, a crash leaves either the previous checkpoint or the new
+ * one, never half a file. Only the {@code keep} most recent checkpoints are kept.
+ * <p>
+ * File layout, little-endian, only float32 arrays:
+ * <pre>
+ * header  magic "DJLC" (int), version (int), step (long), arrays (int)
+ * array   name length (int), name (utf-8), dimensions (int), shape (long each), values (float32)
+ * </pre>
+ * {@link #load} maps the file and creates the arrays straight from the mapping.
+ */
+public class Checkpointer implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Checkpointer.class);
+
+    static final int MAGIC = 0x434c4a44; // "DJLC" read as a little-endian int
+    static final int VERSION = 1;
+    private static final String PREFIX = "checkpoint-";
+    private static final String SUFFIX = ".bin";
+
+    private final Path directory;
+    private final int keep;
+    private final ExecutorService writer;
+    private Future<?> pending;
+    private long skipped;
+
+    public Checkpointer(Path directory, int keep) throws IOException {
+        if (keep < 1) {
+            throw new IllegalArgumentException("keep must be at least 1");
+        }
+        this.directory = directory;
+        this.keep = keep;
+        Files.createDirectories(directory);
+        writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Snapshots the named arrays of {@code state} as the checkpoint of {@code step}. When the previous checkpoint is
+     * still being written this one is skipped rather than queued, checkpoints never pile up behind a slow disk.
+     *
+     * @return false if the checkpoint was skipped
+     */
+    public boolean save(long step, NDList state) {
+        List<String> names = new ArrayList<>();
+        for (NDArray array : state) {
+            if (array.getName() == null) {
+                throw new IllegalArgumentException("the arrays of a checkpoint need names");
+            }
+            names.add(array.getName());
+        }
+        return save(step, names, state);
+    }
+
+    /**
+     * Same as {@link #save(long, NDList)} for the parameters of a block, saved under their names in the list.
+     */
+    public boolean save(long step, ParameterList parameters) {
+        List<String> names = new ArrayList<>();
+        List<NDArray> arrays = new ArrayList<>();
+        for (Pair<String, Parameter> pair : parameters) {
+            names.add(pair.getKey());
+            arrays.add(pair.getValue().getArray());
+        }
+        return save(step, names, arrays);
+    }
+
+    private boolean save(long step, List<String> names, List<NDArray> arrays) {
+        if (pending != null && !pending.isDone()) {
+            skipped++;
+            return false;
+        }
+        NDManager snapshot = NDManager.newBaseManager(arrays.get(0).getDevice());
+        List<NDArray> copies = new ArrayList<>();
+        for (int i = 0; i < arrays.size(); i++) {
+            // queued in the engine, the training thread does not wait for the copy
+            NDArray copy = arrays.get(i).duplicate();
+            copy.attach(snapshot);
+            copy.setName(names.get(i));
+            copies.add(copy);
+        }
+        pending = writer.submit(() -> {
+            try {
+                write(step, copies);
+                prune();
+            } catch (IOException | RuntimeException e) {
+                // the next checkpoint will try again, training goes on
+                logger.warn("failed to write the checkpoint of step {}", step, e);
+            } finally {
+                snapshot.close();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Waits until the checkpoint being written, if any, is on disk.
+     */
+    public void flush() throws InterruptedException {
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    private void write(long step, List<NDArray> arrays) throws IOException {
+        Path file = directory.resolve(String.format("%s%012d%s", PREFIX, step, SUFFIX));
+        Path tmp = directory.resolve(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(step).putInt(arrays.size()).flip();
+            writeFully(out, header);
+            for (NDArray array : arrays) {
+                byte[] name = array.getName().getBytes(StandardCharsets.UTF_8);
+                long[] shape = array.getShape().getShape();
+                ByteBuffer entry = ByteBuffer.allocate(8 + name.length + 8 * shape.length)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                entry.putInt(name.length).put(name).putInt(shape.length);
+                for (long dimension : shape) {
+                    entry.putLong(dimension);
+                }
+                writeFully(out, entry.flip());
+                NDArray values = array.getDataType() == DataType.FLOAT32 ? array : array.toType(DataType.FLOAT32, false);
+                writeFully(out, values.toByteBuffer().order(ByteOrder.LITTLE_ENDIAN));
+            }
+            out.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void prune() throws IOException {
+        List<Path> checkpoints = list(directory);
+        for (int i = 0; i < checkpoints.size() - keep; i++) {
+            Files.deleteIfExists(checkpoints.get(i));
+        }
+    }
+
+    // oldest first, the step in the file name is zero padded
+    private static List<Path> list(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> {
+                String name = file.getFileName().toString();
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }).sorted(Comparator.comparing(file -> file.getFileName().toString())).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return the most recent checkpoint of the directory, or {@code null} if there is none
+     */
+    public static Path latest(Path directory) throws IOException {
+        List<Path> checkpoints = list(directory);
+        return checkpoints.isEmpty() ? null : checkpoints.get(checkpoints.size() - 1);
+    }
+
+    public static class Checkpoint {
+        private final long step;
+        private final NDList arrays;
+
+        Checkpoint(long step, NDList arrays) {
+            this.step = step;
+            this.arrays = arrays;
+        }
+
+        public long getStep() {
+            return step;
+        }
+
+        public NDList getArrays() {
+            return arrays;
+        }
+
+        public NDArray get(String name) {
+            return arrays.get(name);
+        }
+
+        /**
+         * Copies the values into the parameters of the same name.
+         */
+        public void restore(ParameterList parameters) {
+            for (Pair<String, Parameter> pair : parameters) {
+                NDArray saved = get(pair.getKey());
+                if (saved == null) {
+                    throw new IllegalArgumentException("the checkpoint has no parameter " + pair.getKey());
+                }
+                pair.getValue().getArray().set(saved.toByteBuffer());
+            }
+        }
+    }
+
+    public static Checkpoint load(NDManager manager, Path file) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer in = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException(file + " is not a checkpoint written by Checkpointer");
+        }
+        long step = in.getLong();
+        int count = in.getInt();
+        NDList arrays = new NDList(count);
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[in.getInt()];
+            in.get(name);
+            long[] shape = new long[in.getInt()];
+            for (int d = 0; d < shape.length; d++) {
+                shape[d] = in.getLong();
+            }
+            Shape arrayShape = new Shape(shape);
+            int bytes = Math.toIntExact(arrayShape.size() * Float.BYTES);
+            ByteBuffer values = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+            values.limit(bytes);
+            in.position(in.position() + bytes);
+            NDArray array = manager.create(values, arrayShape, DataType.FLOAT32);
+            array.setName(new String(name, StandardCharsets.UTF_8));
+            arrays.add(array);
+        }
+        return new Checkpoint(step, arrays);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Waits for the checkpoint being written and stops the writer thread. An interrupted caller stops waiting and
+     * keeps its interrupt, the checkpoint is still finished by the writer.
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writer.shutdown();
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package net.devk.regression;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.dataset.ArrayDataset;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.dataset.RandomAccessDataset;
+import ai.djl.training.dataset.Record;
+import ai.djl.util.Progress;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A drop-in for the {@link ArrayDataset} of the regression samples that keeps the features on the heap in fewer bits
+ * than FLOAT32 and upcasts them to FLOAT32 only when a batch is built, the model and the labels stay FLOAT32.
+ * <p>
+ * {@link Precision#FLOAT16} and {@link Precision#BFLOAT16} halve the memory of the features, FLOAT16 keeps more
+ * digits (11 bits) in a smaller range (up to 65504), BFLOAT16 the range of a float with 8 bits. {@link Precision#INT8} quarters it,
+ * every column is mapped linearly from its own [min, max] onto the 256 values of a byte, so a column keeps its
+ * resolution whatever the scale of the others. Wide datasets are limited by how many bytes go through memory per
+ * epoch, not by the arithmetic of the step.
+ * <p>
+ * Sub datasets, for example the parts of {@link #randomSplit(int...)}, share the compact arrays and only keep the row
+ * numbers they are made of.
+ */
+public class CompactDataset extends ArrayDataset {
+
+    public enum Precision {
+        FLOAT32(Float.BYTES), FLOAT16(2), BFLOAT16(2), INT8(1);
+
+        private final int bytes;
+
+        Precision(int bytes) {
+            this.bytes = bytes;
+        }
+
+        public int getBytes() {
+            return bytes;
+        }
+
+        public static Precision of(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    // every half precision bit pattern, decoding is a lookup
+    private static final float[] FLOAT16_VALUES = new float[1 << 16];
+
+    static {
+        for (int i = 0; i < FLOAT16_VALUES.length; i++) {
+            FLOAT16_VALUES[i] = fromFloat16((short) i);
+        }
+    }
+
+    private final Precision precision;
+    private final int rows;
+    private final int numFeatures;
+    private final int numLabels;
+    private final float[] labels;
+    // only the one of the precision is set
+    private final float[] floats;
+    private final short[] halves;
+    private final byte[] bytes;
+    // INT8: x = q * scale + zero per column
+    private final float[] scale;
+    private final float[] zero;
+    // the rows of the arrays a sub dataset is made of, null for all of them in order
+    private final int[] sourceRows;
+
+    protected CompactDataset(Builder builder) {
+        super(builder);
+        precision = builder.precision;
+        float[] x = builder.features.toType(DataType.FLOAT32, false).toFloatArray();
+        labels = builder.labels.toType(DataType.FLOAT32, false).toFloatArray();
+        rows = Math.toIntExact(builder.features.getShape().get(0));
+        numFeatures = x.length / rows;
+        numLabels = labels.length / rows;
+        float[] floats = null;
+        short[] halves = null;
+        byte[] bytes = null;
+        float[] scale = null;
+        float[] zero = null;
+        switch (precision) {
+            case FLOAT32:
+                floats = x;
+                break;
+            case FLOAT16:
+                halves = new short[x.length];
+                for (int i = 0; i < x.length; i++) {
+                    halves[i] = toFloat16(x[i]);
+                }
+                break;
+            case BFLOAT16:
+                halves = new short[x.length];
+                for (int i = 0; i < x.length; i++) {
+                    halves[i] = toBFloat16(x[i]);
+                }
+                break;
+            case INT8:
+                scale = new float[numFeatures];
+                zero = new float[numFeatures];
+                bytes = quantize(x, numFeatures, scale, zero);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown precision " + precision);
+        }
+        this.floats = floats;
+        this.halves = halves;
+        this.bytes = bytes;
+        this.scale = scale;
+        this.zero = zero;
+        sourceRows = null;
+    }
+
+    private CompactDataset(CompactDataset parent, int[] sourceRows) {
+        super(new Builder().setSampling(parent.sampler)
+                .optDataBatchifier(parent.dataBatchifier)
+                .optLabelBatchifier(parent.labelBatchifier)
+                .optPipeline(parent.pipeline)
+                .optTargetPipeline(parent.targetPipeline)
+                .optPrefetchNumber(parent.prefetchNumber)
+                .optDevice(parent.device));
+        precision = parent.precision;
+        rows = sourceRows.length;
+        numFeatures = parent.numFeatures;
+        numLabels = parent.numLabels;
+        labels = parent.labels;
+        floats = parent.floats;
+        halves = parent.halves;
+        bytes = parent.bytes;
+        scale = parent.scale;
+        zero = parent.zero;
+        this.sourceRows = sourceRows;
+    }
+
+    private int sourceRow(long index) {
+        int row = Math.toIntExact(index);
+        return sourceRows == null ? row : sourceRows[row];
+    }
+
+    // q in [-128, 127] for [min, max] of every column, rounded to the nearest
+    static byte[] quantize(float[] x, int numFeatures, float[] scale, float[] zero) {
+        float[] min = new float[numFeatures];
+        float[] max = new float[numFeatures];
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+        for (int i = 0; i < x.length; i++) {
+            int j = i % numFeatures;
+            min[j] = Math.min(min[j], x[i]);
+            max[j] = Math.max(max[j], x[i]);
+        }
+        for (int j = 0; j < numFeatures; j++) {
+            // a constant column still has to come back as itself
+            scale[j] = max[j] > min[j] ? (max[j] - min[j]) / 255 : 1;
+            zero[j] = min[j] + 128 * scale[j];
+        }
+        byte[] q = new byte[x.length];
+        for (int i = 0; i < x.length; i++) {
+            int j = i % numFeatures;
+            int level = Math.round((x[i] - zero[j]) / scale[j]);
+            q[i] = (byte) Math.max(-128, Math.min(127, level));
+        }
+        return q;
+    }
+
+    /**
+     * The nearest half precision (IEEE 754 binary16) value, ties to even, as its bits.
+     */
+    public static short toFloat16(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+        if (exponent == 0xff) {
+            // infinity stays infinity, a NaN stays a (quiet) NaN
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 | mantissa >>> 13 : 0));
+        }
+        int e = exponent - 127 + 15;
+        if (e >= 0x1f) {
+            return (short) (sign | 0x7c00);
+        }
+        if (e <= 0) {
+            // subnormal or zero, the implicit bit becomes explicit
+            if (e < -10) {
+                return (short) sign;
+            }
+            mantissa |= 0x800000;
+            int shift = 14 - e;
+            int half = mantissa >>> shift;
+            int rest = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (rest > halfway || rest == halfway && (half & 1) != 0) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = e << 10 | mantissa >>> 13;
+        int rest = mantissa & 0x1fff;
+        // a carry out of the mantissa increments the exponent, up to infinity
+        if (rest > 0x1000 || rest == 0x1000 && (half & 1) != 0) {
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    public static float fromFloat16(short half) {
+        int bits = half & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = bits >>> 10 & 0x1f;
+        int mantissa = bits & 0x3ff;
+        if (exponent == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | mantissa << 13);
+        }
+        if (exponent == 0) {
+            float value = mantissa * 0x1p-24f;
+            return sign != 0 ? -value : value;
+        }
+        return Float.intBitsToFloat(sign | (exponent + 112) << 23 | mantissa << 13);
+    }
+
+    /**
+     * The upper half of the float rounded to the nearest, ties to even, as its bits.
+     */
+    public static short toBFloat16(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        if (Float.isNaN(value)) {
+            return (short) (bits >>> 16 | 0x40);
+        }
+        return (short) ((bits + 0x7fff + (bits >>> 16 & 1)) >>> 16);
+    }
+
+    public static float fromBFloat16(short bfloat) {
+        return Float.intBitsToFloat(bfloat << 16);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    public int getNumFeatures() {
+        return numFeatures;
+    }
+
+    /**
+     * Bytes of the stored features, the labels and the INT8 scales are not counted.
+     */
+    public long getFeatureBytes() {
+        return (long) rows * numFeatures * precision.getBytes();
+    }
+
+    @Override
+    protected long availableSize() {
+        return rows;
+    }
+
+    /**
+     * Upcasts {@code count} rows starting at {@code from} into x (row-major, from {@code xOffset}), the labels into y.
+     */
+    public void getRows(int from, int count, float[] x, int xOffset, float[] y, int yOffset) {
+        if (sourceRows == null) {
+            upcast(from * numFeatures, count * numFeatures, x, xOffset);
+            System.arraycopy(labels, from * numLabels, y, yOffset, count * numLabels);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            int row = sourceRows[from + i];
+            upcast(row * numFeatures, numFeatures, x, xOffset + i * numFeatures);
+            System.arraycopy(labels, row * numLabels, y, yOffset + i * numLabels, numLabels);
+        }
+    }
+
+    private void upcast(int from, int length, float[] x, int offset) {
+        switch (precision) {
+            case FLOAT32:
+                System.arraycopy(floats, from, x, offset, length);
+                break;
+            case FLOAT16:
+                for (int i = 0; i < length; i++) {
+                    x[offset + i] = FLOAT16_VALUES[halves[from + i] & 0xffff];
+                }
+                break;
+            case BFLOAT16:
+                for (int i = 0; i < length; i++) {
+                    x[offset + i] = Float.intBitsToFloat(halves[from + i] << 16);
+                }
+                break;
+            case INT8:
+                // whole rows, the column restarts at 0
+                for (int i = 0; i < length; i += numFeatures) {
+                    for (int j = 0; j < numFeatures; j++) {
+                        x[offset + i + j] = bytes[from + i + j] * scale[j] + zero[j];
+                    }
+                }
+                break;
+            default:
+                throw new IllegalStateException("unknown precision " + precision);
+        }
+    }
+
+    // a single label per row comes out as a vector, like the labels of DataPoints.syntheticData
+    private Shape labelShape(int size) {
+        return numLabels == 1 ? new Shape(size) : new Shape(size, numLabels);
+    }
+
+    @Override
+    public Record get(NDManager manager, long index) {
+        float[] x = new float[numFeatures];
+        float[] y = new float[numLabels];
+        getRows(Math.toIntExact(index), 1, x, 0, y, 0);
+        return new Record(new NDList(manager.create(x, new Shape(numFeatures))),
+                new NDList(manager.create(y, labelShape(1).slice(1))));
+    }
+
+    @Override
+    public Batch getByRange(NDManager manager, long fromIndex, long toIndex) {
+        int size = Math.toIntExact(toIndex - fromIndex);
+        float[] x = new float[size * numFeatures];
+        float[] y = new float[size * numLabels];
+        getRows(Math.toIntExact(fromIndex), size, x, 0, y, 0);
+        return new Batch(manager, new NDList(manager.create(x, new Shape(size, numFeatures))),
+                new NDList(manager.create(y, labelShape(size))), size, dataBatchifier, labelBatchifier, fromIndex,
+                rows);
+    }
+
+    @Override
+    public Batch getByIndices(NDManager manager, long... indices) {
+        int size = indices.length;
+        float[] x = new float[size * numFeatures];
+        float[] y = new float[size * numLabels];
+        for (int i = 0; i < size; i++) {
+            getRows(Math.toIntExact(indices[i]), 1, x, i * numFeatures, y, i * numLabels);
+        }
+        return new Batch(manager, new NDList(manager.create(x, new Shape(size, numFeatures))),
+                new NDList(manager.create(y, labelShape(size))), size, dataBatchifier, labelBatchifier, 0, rows);
+    }
+
+    @Override
+    protected RandomAccessDataset newSubDataset(int[] indices, int from, int to) {
+        int[] selected = new int[to - from];
+        for (int i = 0; i < selected.length; i++) {
+            selected[i] = sourceRow(indices[from + i]);
+        }
+        return new CompactDataset(this, selected);
+    }
+
+    @Override
+    protected RandomAccessDataset newSubDataset(List<Long> subIndices) {
+        return new CompactDataset(this, subIndices.stream().mapToInt(this::sourceRow).toArray());
+    }
+
+    @Override
+    public void prepare(Progress progress) {
+    }
+
+    public static final class Builder extends BaseBuilder<Builder> {
+
+        private NDArray features;
+        private NDArray labels;
+        private Precision precision = Precision.FLOAT16;
+
+        /**
+         * The rows to store, they are copied, the arrays can be closed once the dataset is built.
+         */
+        public Builder setData(NDArray features, NDArray labels) {
+            this.features = features;
+            this.labels = labels;
+            return this;
+        }
+
+        public Builder optPrecision(Precision precision) {
+            this.precision = precision;
+            return this;
+        }
+
+        @Override
+        protected Builder self() {
+            return this;
+        }
+
+        public CompactDataset build() {
+            if (features == null || labels == null) {
+                throw new IllegalArgumentException("features and labels are required");
+            }
+            if (features.getShape().dimension() != 2) {
+                throw new IllegalArgumentException("the features have to be rows of columns, not "
+                        + features.getShape());
+            }
+            return new CompactDataset(this);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package net.devk.regression;
+
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+
+/**
+ * A dataset that is read one chunk of rows at a time, so only the chunks being processed have to be in memory.
+ * Every chunk is a {@link DataPoints} created on the given manager, the caller closes the manager when it is done
+ * with the chunk.
+ */
+public interface DataChunks {
+
+    /**
+     * @return the next chunk of rows, or {@code null} once every row has been read
+     */
+    DataPoints nextChunk(NDManager manager);
+
+    int numFeatures();
+
+    /**
+     * Slices data that is already in memory, mostly useful to compare against the in-memory code paths.
+     */
+    static DataChunks of(DataPoints dataPoints, int chunkSize) {
+        long numExamples = dataPoints.getX().getShape().get(0);
+        int numFeatures = (int) dataPoints.getX().getShape().get(1);
+        return new DataChunks() {
+            private long next;
+
+            @Override
+            public DataPoints nextChunk(NDManager manager) {
+                if (next >= numExamples) {
+                    return null;
+                }
+                long end = Math.min(next + chunkSize, numExamples);
+                NDIndex rows = new NDIndex("{}:{}", next, end);
+                next = end;
+                DataPoints chunk = new DataPoints(dataPoints.getX().get(rows), dataPoints.getY().get(rows));
+                chunk.getX().attach(manager);
+                chunk.getY().attach(manager);
+                return chunk;
+            }
+
+            @Override
+            public int numFeatures() {
+                return numFeatures;
+            }
+        };
+    }
+
+    /**
+     * Generates {@link DataPoints#syntheticData} chunk by chunk, the full dataset never exists at once.
+     */
+    static DataChunks synthetic(float[] weights, float bias, long numExamples, int chunkSize) {
+        return new DataChunks() {
+            private long next;
+
+            @Override
+            public DataPoints nextChunk(NDManager manager) {
+                if (next >= numExamples) {
+                    return null;
+                }
+                int rows = (int) Math.min(chunkSize, numExamples - next);
+                next += rows;
+                return DataPoints.syntheticData(manager, weights, bias, rows);
+            }
+
+            @Override
+            public int numFeatures() {
+                return weights.length;
+            }
+        };
+    }
+}
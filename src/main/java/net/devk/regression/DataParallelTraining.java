@@ -0,0 +1,226 @@
+package net.devk.regression;
+
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.GradientCollector;
+import ai.djl.training.dataset.ArrayDataset;
+import ai.djl.training.dataset.Batch;
+import ai.djl.translate.TranslateException;
+import net.devk.Engines;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The minibatch loop of {@link LinearRegressionFromScratch} on several threads. Every worker owns an NDManager, a
+ * contiguous shard of the rows and a replica of the parameters, and computes gradients on its own batches.
+ * <ul>
+ * <li>{@link Mode#SYNC}: after every step the workers wait for each other, the gradients are averaged and applied
+ * once (all-reduce), which is the same as single thread sgd with a batch {@code numWorkers} times larger.</li>
+ * <li>{@link Mode#HOGWILD}: every worker applies its gradient to the shared parameters as soon as it has it,
+ * without locks, and reads whatever the others have written so far.</li>
+ * </ul>
+ * The shared parameters are plain float arrays, workers only touch NDArrays of their own manager.
+ */
+public class DataParallelTraining {
+
+    private static final Logger logger = LoggerFactory.getLogger(DataParallelTraining.class);
+
+    public enum Mode {
+        SYNC, HOGWILD
+    }
+
+    private final int numWorkers;
+    private final Mode mode;
+    private final float lr;
+    private final int batchSize;
+
+    public DataParallelTraining(int numWorkers, Mode mode, float lr, int batchSize) {
+        this.numWorkers = numWorkers;
+        this.mode = mode;
+        this.lr = lr;
+        this.batchSize = batchSize;
+    }
+
+    public static class Result {
+        private final float[] weights;
+        private final float bias;
+        private final long examples;
+        private final long nanos;
+
+        Result(float[] weights, float bias, long examples, long nanos) {
+            this.weights = weights;
+            this.bias = bias;
+            this.examples = examples;
+            this.nanos = nanos;
+        }
+
+        public float[] getWeights() {
+            return weights;
+        }
+
+        public float getBias() {
+            return bias;
+        }
+
+        public double getExamplesPerSecond() {
+            return examples * 1e9 / nanos;
+        }
+    }
+
+    public Result train(NDArray features, NDArray labels, float[] initialWeights, int numEpochs)
+            throws InterruptedException, ExecutionException {
+        long numExamples = features.getShape().get(0);
+        long shardSize = numExamples / numWorkers;
+        if (shardSize * numWorkers != numExamples) {
+            logger.warn("{} examples do not split evenly into {} shards, the last {} are not used", numExamples,
+                    numWorkers, numExamples - shardSize * numWorkers);
+        }
+        // the last element is the bias
+        float[] shared = Arrays.copyOf(initialWeights, initialWeights.length + 1);
+        float[][] gradients = new float[numWorkers][];
+        CyclicBarrier allReduce = new CyclicBarrier(numWorkers, () -> {
+            float scale = lr / batchSize / numWorkers;
+            for (float[] gradient : gradients) {
+                for (int i = 0; i < shared.length; i++) {
+                    shared[i] -= scale * gradient[i];
+                }
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+        List<NDManager> managers = new ArrayList<>();
+        // the copies of the shards and the workers that start first are part of the work
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int worker = 0; worker < numWorkers; worker++) {
+                NDManager manager = NDManager.newBaseManager();
+                managers.add(manager);
+                NDIndex rows = new NDIndex("{}:{}", worker * shardSize, (worker + 1) * shardSize);
+                NDArray x = features.get(manager, rows);
+                NDArray y = labels.get(manager, rows);
+                int id = worker;
+                futures.add(executor.submit(() -> {
+                    try {
+                        runWorker(id, manager, x, y, numEpochs, shared, gradients, allReduce);
+                    } catch (Exception e) {
+                        // the other workers would wait at the barrier forever
+                        allReduce.reset();
+                        throw e;
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long nanos = System.nanoTime() - start;
+            return new Result(Arrays.copyOf(shared, initialWeights.length), shared[initialWeights.length],
+                    shardSize * numWorkers * numEpochs, nanos);
+        } finally {
+            executor.shutdown();
+            managers.forEach(NDManager::close);
+        }
+    }
+
+    private void runWorker(int id, NDManager manager, NDArray x, NDArray y, int numEpochs, float[] shared,
+                           float[][] gradients, CyclicBarrier allReduce)
+            throws IOException, TranslateException, InterruptedException, BrokenBarrierException {
+        int numFeatures = shared.length - 1;
+        NDArray w = manager.zeros(new Shape(numFeatures));
+        NDArray b = manager.zeros(new Shape(1));
+        NDList params = new NDList(w, b);
+        params.forEach(param -> param.setRequiresGradient(true));
+        float[] wValues = new float[numFeatures];
+        float[] gradient = new float[shared.length];
+
+        ArrayDataset shard = new ArrayDataset.Builder()
+                .setData(x)
+                .optLabels(y)
+                .setSampling(batchSize, false)
+                .build();
+        for (int epoch = 0; epoch < numEpochs; epoch++) {
+            for (Batch batch : shard.getData(manager)) {
+                // load the current shared parameters into the replica
+                System.arraycopy(shared, 0, wValues, 0, numFeatures);
+                w.set(wValues);
+                b.set(new float[]{shared[numFeatures]});
+
+                NDManager batchManager = batch.getManager();
+                try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+                    NDArray yHat = LinearRegressionFromScratch.linearRegression(batch.getData().head(), w, b);
+                    gc.backward(LinearRegressionFromScratch.squaredLoss(yHat, batch.getLabels().head()));
+                }
+                NDArray wGrad = w.getGradient();
+                NDArray bGrad = b.getGradient();
+                wGrad.attach(batchManager);
+                bGrad.attach(batchManager);
+                System.arraycopy(wGrad.toFloatArray(), 0, gradient, 0, numFeatures);
+                gradient[numFeatures] = bGrad.getFloat();
+                // the next backward adds to the gradient on PyTorch
+                wGrad.subi(wGrad);
+                bGrad.subi(bGrad);
+                batch.close();
+
+                if (mode == Mode.SYNC) {
+                    gradients[id] = gradient;
+                    allReduce.await();
+                } else {
+                    // racy on purpose, lost or stale updates are what Hogwild trades for not waiting
+                    float scale = lr / batchSize;
+                    for (int i = 0; i < shared.length; i++) {
+                        shared[i] -= scale * gradient[i];
+                    }
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        Engines.select();
+        float[] weights = new float[]{2, -3.4f};
+        float bias = 4.2f;
+        logger.info("weights = {}", Arrays.toString(weights));
+        logger.info("bias = {}", bias);
+
+        int numberOfGeneratedExamples = 96_000;
+        int batchSize = 10;
+        float lr = 0.03f;
+        int numEpochs = 3;
+        int cores = Runtime.getRuntime().availableProcessors();
+        try (NDManager manager = NDManager.newBaseManager()) {
+            DataPoints dataPoints = DataPoints.syntheticData(manager, weights, bias, numberOfGeneratedExamples);
+            float[] initialWeights = new float[weights.length];
+
+            for (Mode mode : Mode.values()) {
+                double baseline = 0;
+                for (int workers = 1; workers <= cores; workers *= 2) {
+                    DataParallelTraining training = new DataParallelTraining(workers, mode, lr, batchSize);
+                    Result result = training.train(dataPoints.getX(), dataPoints.getY(), initialWeights, numEpochs);
+                    if (workers == 1) {
+                        baseline = result.getExamplesPerSecond();
+                    }
+                    logger.info("{} workers={} examples/s={} speedup={} weights={} bias={}", mode, workers,
+                            String.format("%.0f", result.getExamplesPerSecond()),
+                            String.format("%.2f", result.getExamplesPerSecond() / baseline),
+                            Arrays.toString(result.getWeights()), result.getBias());
+                }
+            }
+        }
+    }
+}
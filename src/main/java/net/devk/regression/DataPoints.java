@@ -27,11 +27,20 @@ public class DataPoints {
     public static DataPoints syntheticData(NDManager manager, float[] weights, float bias, int numExamples) {
         NDArray x = manager.randomNormal(new Shape(numExamples, weights.length));
         NDArray w = manager.create(weights);
-        NDArray y = x.dot(w).add(bias);
+        // matMul rather than dot, the dot of PyTorch only takes two vectors
+        NDArray y = x.matMul(w.reshape(-1, 1)).reshape(-1).add(bias);
         // generate some noise
         NDArray noise = manager.randomNormal(0, 0.01f, y.getShape(), DataType.FLOAT32);
         y = y.add(noise);
         return new DataPoints(x, y);
     }
 
+    // the same rows for the same seed, see SyntheticDataset for data that does not fit in memory
+    public static DataPoints syntheticData(NDManager manager, float[] weights, float bias, int numExamples, long seed) {
+        float[] x = new float[numExamples * weights.length];
+        float[] y = new float[numExamples];
+        SyntheticDataset.fill(weights, bias, 0.01f, seed, 0, numExamples, x, 0, y, 0);
+        return new DataPoints(manager.create(x, new Shape(numExamples, weights.length)), manager.create(y));
+    }
+
 }
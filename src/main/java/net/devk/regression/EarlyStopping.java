@@ -0,0 +1,45 @@
+package net.devk.regression;
+
+/**
+ * Stops training once the monitored loss has not improved for {@code patience} epochs in a row. An epoch only
+ * counts as an improvement when it beats the best loss so far by more than {@code minDelta}, relative to that loss,
+ * so a plateau that keeps creeping down by rounding noise still ends the run.
+ */
+public class EarlyStopping {
+
+    private final int patience;
+    private final double minDelta;
+
+    private double best = Double.POSITIVE_INFINITY;
+    private int bestEpoch = -1;
+    private int epochsWithoutImprovement;
+
+    public EarlyStopping(int patience, double minDelta) {
+        if (patience < 1) {
+            throw new IllegalArgumentException("patience must be at least 1");
+        }
+        this.patience = patience;
+        this.minDelta = minDelta;
+    }
+
+    /**
+     * @return true when training should stop after this epoch
+     */
+    public boolean update(int epoch, double loss) {
+        if (loss < best - Math.abs(best) * minDelta || bestEpoch < 0) {
+            best = loss;
+            bestEpoch = epoch;
+            epochsWithoutImprovement = 0;
+            return false;
+        }
+        return ++epochsWithoutImprovement >= patience;
+    }
+
+    public double getBestLoss() {
+        return best;
+    }
+
+    public int getBestEpoch() {
+        return bestEpoch;
+    }
+}
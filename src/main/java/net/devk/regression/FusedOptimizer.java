@@ -0,0 +1,167 @@
+package net.devk.regression;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.training.tracker.Tracker;
+
+import java.util.Locale;
+
+/**
+ * Momentum, Nesterov and Adam for the from-scratch trainer, on the parameters of {@link LinearRegressionFromScratch}
+ * after a backward pass.
+ * <p>
+ * The state of every parameter (velocity, or the first and second moments for Adam) is allocated once next to the
+ * parameter, and every update is a single fused engine operation per parameter that writes the parameter and its
+ * state in place, the same kernels DJL's own optimizers use. An update creates no arrays at all, apart from the
+ * handle of the gradient.
+ * <p>
+ * The learning rate follows a {@link Tracker}, asked with the number of updates so far, see {@link #schedule}. Only
+ * {@link Method#SGD} runs on engines other than MXNet.
+ */
+public class FusedOptimizer {
+
+    public enum Method {
+        SGD, MOMENTUM, NESTEROV, ADAM;
+
+        public static Method of(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final float NO_CLIPPING = -1;
+
+    private final NDList params;
+    private final Method method;
+    private final Tracker learningRate;
+    private final float momentum;
+    private final float beta2;
+    private final float epsilon;
+    private final NDList firstStates = new NDList();
+    private final NDList secondStates = new NDList();
+    private int updates;
+
+    /**
+     * With the usual defaults: momentum (and Adam's beta1) 0.9, Adam's beta2 0.999 and epsilon 1e-8.
+     */
+    public FusedOptimizer(NDList params, Method method, Tracker learningRate) {
+        this(params, method, learningRate, 0.9f, 0.999f, 1e-8f);
+    }
+
+    public FusedOptimizer(NDList params, Method method, Tracker learningRate, float momentum, float beta2,
+                          float epsilon) {
+        this.params = params;
+        this.method = method;
+        this.learningRate = learningRate;
+        this.momentum = momentum;
+        this.beta2 = beta2;
+        this.epsilon = epsilon;
+        // the momentum, Nesterov and Adam kernels are MXNet operators, PyTorch only has the plain sgd one
+        String engine = params.head().getManager().getEngine().getEngineName();
+        if (method != Method.SGD && !"MXNet".equals(engine)) {
+            throw new UnsupportedOperationException("the fused " + method + " update needs MXNet, not " + engine);
+        }
+        for (NDArray param : params) {
+            if (method != Method.SGD) {
+                firstStates.add(param.zerosLike());
+            }
+            if (method == Method.ADAM) {
+                secondStates.add(param.zerosLike());
+            }
+        }
+    }
+
+    /**
+     * A learning rate schedule by name: {@code fixed}, {@code cosine} (from {@code lr} down to 1% of it over
+     * {@code totalSteps}), {@code step} (halved every tenth of {@code totalSteps}) or {@code warmup} (linear for the
+     * first 5% of the steps, then fixed).
+     */
+    public static Tracker schedule(String name, float lr, int totalSteps) {
+        switch (name) {
+            case "fixed":
+                return Tracker.fixed(lr);
+            case "cosine":
+                return Tracker.cosine()
+                        .setBaseValue(lr)
+                        .optFinalValue(lr / 100)
+                        .setMaxUpdates(totalSteps)
+                        .build();
+            case "step":
+                int[] steps = new int[9];
+                for (int i = 0; i < steps.length; i++) {
+                    steps[i] = Math.max(i + 1, (i + 1) * totalSteps / 10);
+                }
+                return Tracker.multiFactor()
+                        .setBaseValue(lr)
+                        .setSteps(steps)
+                        .optFactor(0.5f)
+                        .build();
+            case "warmup":
+                return Tracker.warmUp()
+                        .optWarmUpBeginValue(0)
+                        .optWarmUpSteps(Math.max(1, totalSteps / 20))
+                        .setMainTracker(Tracker.fixed(lr))
+                        .build();
+            default:
+                throw new IllegalArgumentException("unknown schedule " + name);
+        }
+    }
+
+    /**
+     * Updates every parameter from its gradient, the gradients are the sums over a batch of {@code batchSize}.
+     */
+    public void update(int batchSize) {
+        updates++;
+        float lr = learningRate.getNewValue(updates);
+        float rescale = 1f / batchSize;
+        for (int i = 0; i < params.size(); i++) {
+            NDArray param = params.get(i);
+            // getGradient() hands out a new handle on every call
+            try (NDArray grad = param.getGradient()) {
+                switch (method) {
+                    case SGD:
+                        param.getNDArrayInternal().sgdUpdate(new NDList(param, grad), new NDList(param), lr, 0,
+                                rescale, NO_CLIPPING, 0, true);
+                        break;
+                    case MOMENTUM:
+                        NDArray velocity = firstStates.get(i);
+                        param.getNDArrayInternal().sgdUpdate(new NDList(param, grad, velocity),
+                                new NDList(param, velocity), lr, 0, rescale, NO_CLIPPING, momentum, true);
+                        break;
+                    case NESTEROV:
+                        NDArray state = firstStates.get(i);
+                        param.getNDArrayInternal().nagUpdate(new NDList(param, grad, state),
+                                new NDList(param, state), lr, 0, rescale, NO_CLIPPING, momentum);
+                        break;
+                    case ADAM:
+                        NDArray mean = firstStates.get(i);
+                        NDArray variance = secondStates.get(i);
+                        // the bias correction of both moments folded into the learning rate
+                        double correction = Math.sqrt(1 - Math.pow(beta2, updates)) / (1 - Math.pow(momentum, updates));
+                        param.getNDArrayInternal().adamUpdate(new NDList(param, grad, mean, variance),
+                                new NDList(param, mean, variance), lr, (float) (lr * correction), 0, rescale,
+                                NO_CLIPPING, momentum, beta2, epsilon, true, false);
+                        break;
+                    default:
+                        throw new IllegalStateException(method.toString());
+                }
+                // the next backward adds to the gradient on PyTorch
+                grad.subi(grad);
+            }
+        }
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the learning rate of the last update
+     */
+    public float getLearningRate() {
+        return learningRate.getNewValue(updates);
+    }
+
+    public int getUpdates() {
+        return updates;
+    }
+}
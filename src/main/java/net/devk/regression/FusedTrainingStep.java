@@ -0,0 +1,127 @@
+package net.devk.regression;
+
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.BaseNDManager;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.training.GradientCollector;
+
+/**
+ * One minibatch step of {@link LinearRegressionFromScratch} (forward, squared loss, backward and sgd) that keeps
+ * every temporary inside a sub manager of its own, so nothing outlives the step.
+ * <p>
+ * The parameters are updated in place through their gradient buffers: {@code grad *= lr / batchSize} and then
+ * {@code param -= grad}, that is safe because the next backward pass overwrites the gradients anyway.
+ */
+public class FusedTrainingStep {
+
+    private final NDList params;
+    private final float lr;
+    private final int batchSize;
+
+    private long lastStepArrays;
+    private long totalSteps;
+    private TrainingTelemetry telemetry;
+    private FusedOptimizer optimizer;
+
+    public FusedTrainingStep(NDList params, float lr, int batchSize) {
+        this.params = params;
+        this.lr = lr;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Splits every step into forward, backward and update for the telemetry, the caller begins and ends the step.
+     */
+    public void setTelemetry(TrainingTelemetry telemetry) {
+        this.telemetry = telemetry;
+    }
+
+    /**
+     * Updates the parameters with the optimizer instead of plain sgd at the fixed learning rate.
+     */
+    public void setOptimizer(FusedOptimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    public void step(NDArray X, NDArray y) {
+        step(X, y, false, null);
+    }
+
+    /**
+     * Same as {@link #step(NDArray, NDArray)} and adds the summed squared loss of the batch to {@code lossTotal}
+     * in place, without copying anything back.
+     */
+    public void step(NDArray X, NDArray y, NDArray lossTotal) {
+        step(X, y, false, lossTotal);
+    }
+
+    /**
+     * Same as {@link #step(NDArray, NDArray)} but also copies the loss back, which waits for the engine.
+     *
+     * @return the summed squared loss of the batch, before the update
+     */
+    public float stepWithLoss(NDArray X, NDArray y) {
+        return step(X, y, true, null);
+    }
+
+    private float step(NDArray X, NDArray y, boolean readLoss, NDArray lossTotal) {
+        NDManager parent = X.getManager();
+        try (NDManager scope = parent.newSubManager()) {
+            // results of operations are attached to the manager of their input, moving the batch into the scope
+            // for the duration of the step moves all the temporaries there too
+            X.tempAttach(scope);
+            y.tempAttach(scope);
+
+            NDArray loss;
+            try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+                NDArray yHat = LinearRegressionFromScratch.linearRegression(X, params.get(0), params.get(1));
+                loss = LinearRegressionFromScratch.squaredLoss(yHat, y);
+                mark(TrainingTelemetry.Phase.FORWARD);
+                gc.backward(loss);
+            }
+            mark(TrainingTelemetry.Phase.BACKWARD);
+
+            float lossSum = readLoss ? loss.sum().getFloat() : Float.NaN;
+            if (lossTotal != null) {
+                lossTotal.addi(loss.sum());
+            }
+            if (optimizer != null) {
+                optimizer.update(batchSize);
+            } else {
+                float scale = lr / batchSize;
+                for (NDArray param : params) {
+                    // getGradient() hands out a new handle on every call, it belongs to the step as well
+                    NDArray grad = param.getGradient();
+                    grad.attach(scope);
+                    param.subi(grad.muli(scale));
+                    // the next backward adds to the gradient on PyTorch
+                    grad.subi(grad);
+                }
+            }
+            mark(TrainingTelemetry.Phase.UPDATE);
+
+            lastStepArrays = ((BaseNDManager) scope).getManagedArrays().size();
+            totalSteps++;
+            return lossSum;
+        }
+    }
+
+    private void mark(TrainingTelemetry.Phase phase) {
+        if (telemetry != null) {
+            telemetry.endPhase(phase);
+        }
+    }
+
+    /**
+     * @return the number of NDArrays created by the last step, all of them were released when it ended
+     */
+    public long getLastStepArrays() {
+        return lastStepArrays;
+    }
+
+    public long getTotalSteps() {
+        return totalSteps;
+    }
+}
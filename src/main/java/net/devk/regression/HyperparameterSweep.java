@@ -0,0 +1,426 @@
+package net.devk.regression;
+
+import ai.djl.Model;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.DefaultTrainingConfig;
+import ai.djl.training.GradientCollector;
+import ai.djl.training.Trainer;
+import ai.djl.training.dataset.ArrayDataset;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.loss.Loss;
+import ai.djl.training.optimizer.Optimizer;
+import ai.djl.training.tracker.Tracker;
+import ai.djl.translate.TranslateException;
+import net.devk.Engines;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.tablesaw.api.DoubleColumn;
+import tech.tablesaw.api.IntColumn;
+import tech.tablesaw.api.StringColumn;
+import tech.tablesaw.api.Table;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tunes {@code lr}, {@code batchSize} and {@code numEpochs} of {@link LinearRegressionUsingDLJ} in one JVM instead of
+ * one run per setting. The features and labels are created once and only read by the trials, which run on a fixed
+ * number of threads, each with its own model and a sub manager for its batches.
+ * <p>
+ * The configurations that only differ in {@code numEpochs} share one run of the longest of them: a shorter one is a
+ * prefix of it and is read off the loss at its last step instead of being trained again. Progress is counted in
+ * optimizer steps, the same for every batch size, and the loss is that of the whole dataset, taken every
+ * {@link #CHECK_EVERY} steps and at the end of every configuration.
+ * <p>
+ * A run ends as soon as its loss reaches the target, the steps it took and the CPU time of its own thread are its
+ * result. Runs that can not win are cut off in rounds of twice as many steps as the round before: every run trains
+ * up to the same step, then, once all of them are there, a run stops when another one has reached the target by
+ * now, or when its loss is more than {@code cutoff} times the best loss at this step, or when the loss is no longer
+ * a number. Which run gets a thread first does not change what is cut.
+ */
+public class HyperparameterSweep {
+
+    private static final Logger logger = LoggerFactory.getLogger(HyperparameterSweep.class);
+
+    // the steps between two losses of the whole dataset, and the length of the first round
+    private static final int CHECK_EVERY = 10;
+
+    public static class Config {
+        private final float lr;
+        private final int batchSize;
+        private final int numEpochs;
+
+        public Config(float lr, int batchSize, int numEpochs) {
+            this.lr = lr;
+            this.batchSize = batchSize;
+            this.numEpochs = numEpochs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("lr %s, batch size %d, %d epochs", lr, batchSize, numEpochs);
+        }
+    }
+
+    public enum Status {
+        REACHED, FINISHED, CUT_OFF, DIVERGED
+    }
+
+    public static class Trial {
+        private final Config config;
+        private Status status = Status.FINISHED;
+        private int steps;
+        private int stepsToTarget = -1;
+        private long cpuMillisToTarget = -1;
+        private float loss = Float.NaN;
+
+        Trial(Config config) {
+            this.config = config;
+        }
+
+        public Config getConfig() {
+            return config;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * The optimizer steps the trial ran, up to the target, the cut-off or its last epoch.
+         */
+        public int getSteps() {
+            return steps;
+        }
+
+        public int getStepsToTarget() {
+            return stepsToTarget;
+        }
+
+        /**
+         * The CPU time of the threads that trained the trial until it reached the target, -1 if it did not.
+         */
+        public long getCpuMillisToTarget() {
+            return cpuMillisToTarget;
+        }
+
+        public float getLoss() {
+            return loss;
+        }
+    }
+
+    /**
+     * The training of one {@code lr} and batch size, for the most epochs any of its configurations asks for.
+     */
+    private final class Run implements AutoCloseable {
+        private final float lr;
+        private final int batchSize;
+        private final int stepsPerEpoch;
+        private final int maxSteps;
+        // the last step of every configuration of the run
+        private final Set<Integer> ends = new HashSet<>();
+        private final Map<Integer, Float> lossAtStep = new HashMap<>();
+        private final Model model;
+        private final NDManager manager;
+        private final Trainer trainer;
+        private final ArrayDataset dataset;
+        private final NDArray x;
+        private final NDArray y;
+        private Iterator<Batch> batches;
+        private Status status;
+        private int steps;
+        private float loss = Float.NaN;
+        private int stepsToTarget = -1;
+        private long cpuNanos;
+        private long cpuNanosToTarget = -1;
+
+        Run(float lr, int batchSize, List<Config> configs) {
+            this.lr = lr;
+            this.batchSize = batchSize;
+            long examples = features.getShape().get(0);
+            stepsPerEpoch = Math.toIntExact((examples + batchSize - 1) / batchSize);
+            int most = 0;
+            for (Config config : configs) {
+                ends.add(config.numEpochs * stepsPerEpoch);
+                most = Math.max(most, config.numEpochs * stepsPerEpoch);
+            }
+            maxSteps = most;
+            // the batches are copied out of the shared arrays into the run's own manager, nothing writes to them
+            dataset = new ArrayDataset.Builder()
+                    .setData(features)
+                    .optLabels(labels)
+                    .setSampling(batchSize, false)
+                    .build();
+            DefaultTrainingConfig trainingConfig = new DefaultTrainingConfig(Loss.l2Loss())
+                    .optOptimizer(Optimizer.sgd().setLearningRateTracker(Tracker.fixed(lr)).build());
+            model = LinearRegressionUsingDLJ.newModel();
+            manager = features.getManager().newSubManager();
+            trainer = model.newTrainer(trainingConfig);
+            trainer.initialize(new Shape(batchSize, features.getShape().get(1)));
+            x = features.duplicate();
+            x.attach(manager);
+            y = labels.duplicate();
+            y.attach(manager);
+            status = maxSteps > 0 ? null : Status.FINISHED;
+        }
+
+        boolean isRunning() {
+            return status == null;
+        }
+
+        /**
+         * Trains up to {@code untilStep}, or until the run reaches the target, diverges or ends.
+         */
+        Run advance(int untilStep) throws TranslateException, IOException {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long cpuStart = threads.getCurrentThreadCpuTime();
+            try {
+                while (isRunning() && steps < Math.min(untilStep, maxSteps)) {
+                    if (batches == null || !batches.hasNext()) {
+                        batches = dataset.getData(manager).iterator();
+                    }
+                    Batch batch = batches.next();
+                    try (GradientCollector gc = trainer.newGradientCollector()) {
+                        NDList predictions = trainer.forward(batch.getData());
+                        gc.backward(trainer.getLoss().evaluate(batch.getLabels(), predictions));
+                    }
+                    trainer.step();
+                    batch.close();
+                    steps++;
+                    if (steps % CHECK_EVERY == 0 || ends.contains(steps) || steps == maxSteps) {
+                        check(cpuNanos + threads.getCurrentThreadCpuTime() - cpuStart);
+                    }
+                }
+            } finally {
+                cpuNanos += threads.getCurrentThreadCpuTime() - cpuStart;
+            }
+            return this;
+        }
+
+        // the loss of the whole dataset after the current step
+        private void check(long cpuNow) {
+            try (NDManager scope = manager.newSubManager()) {
+                x.tempAttach(scope);
+                y.tempAttach(scope);
+                NDList predictions = trainer.forward(new NDList(x));
+                loss = trainer.getLoss().evaluate(new NDList(y), predictions).getFloat();
+            }
+            lossAtStep.put(steps, loss);
+            if (!Float.isFinite(loss)) {
+                status = Status.DIVERGED;
+            } else if (loss <= target) {
+                status = Status.REACHED;
+                stepsToTarget = steps;
+                cpuNanosToTarget = cpuNow;
+            } else if (steps == maxSteps) {
+                status = Status.FINISHED;
+            }
+        }
+
+        /**
+         * The configuration as a prefix of the run: it ends where the run stopped or after its own epochs.
+         */
+        Trial trial(Config config) {
+            Trial trial = new Trial(config);
+            int end = config.numEpochs * stepsPerEpoch;
+            if (stepsToTarget >= 0 && stepsToTarget <= end) {
+                trial.status = Status.REACHED;
+                trial.steps = stepsToTarget;
+                trial.stepsToTarget = stepsToTarget;
+                trial.cpuMillisToTarget = cpuNanosToTarget / 1_000_000;
+                trial.loss = lossAtStep.get(stepsToTarget);
+            } else if (steps < end) {
+                trial.status = status;
+                trial.steps = steps;
+                trial.loss = loss;
+            } else {
+                trial.status = Status.FINISHED;
+                trial.steps = end;
+                trial.loss = lossAtStep.get(end);
+            }
+            return trial;
+        }
+
+        @Override
+        public void close() {
+            trainer.close();
+            manager.close();
+            model.close();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("lr %s, batch size %d", lr, batchSize);
+        }
+    }
+
+    private final NDArray features;
+    private final NDArray labels;
+    private final int numThreads;
+    private final double target;
+    private final double cutoff;
+
+    /**
+     * @param target the loss of the whole dataset a trial has to reach
+     * @param cutoff how many times the best loss after the same number of steps a trial may have
+     */
+    public HyperparameterSweep(NDArray features, NDArray labels, int numThreads, double target, double cutoff) {
+        this.features = features;
+        this.labels = labels;
+        this.numThreads = numThreads;
+        this.target = target;
+        this.cutoff = cutoff;
+    }
+
+    public List<Trial> run(List<Config> configs) throws InterruptedException, ExecutionException {
+        Map<String, List<Config>> byRun = new LinkedHashMap<>();
+        for (Config config : configs) {
+            byRun.computeIfAbsent(config.lr + "/" + config.batchSize, k -> new ArrayList<>()).add(config);
+        }
+        List<Run> runs = new ArrayList<>();
+        Map<Config, Run> runOf = new IdentityHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (List<Config> group : byRun.values()) {
+                Run run = new Run(group.get(0).lr, group.get(0).batchSize, group);
+                runs.add(run);
+                group.forEach(config -> runOf.put(config, run));
+            }
+            for (int round = CHECK_EVERY; runs.stream().anyMatch(Run::isRunning); round *= 2) {
+                int until = round;
+                List<Future<Run>> futures = new ArrayList<>();
+                for (Run run : runs) {
+                    if (run.isRunning()) {
+                        futures.add(executor.submit(() -> run.advance(until)));
+                    }
+                }
+                for (Future<Run> future : futures) {
+                    future.get();
+                }
+                cutOff(runs, until);
+            }
+        } finally {
+            executor.shutdown();
+            runs.forEach(Run::close);
+        }
+        List<Trial> trials = new ArrayList<>();
+        for (Config config : configs) {
+            Trial trial = runOf.get(config).trial(config);
+            logger.info("{}: {} after {} steps, loss {}", config, trial.status, trial.steps, trial.loss);
+            trials.add(trial);
+        }
+        return trials;
+    }
+
+    // once every run is at the step, or has stopped before it
+    private void cutOff(List<Run> runs, int step) {
+        boolean reached = false;
+        double best = Double.POSITIVE_INFINITY;
+        for (Run run : runs) {
+            reached |= run.stepsToTarget >= 0;
+            Float loss = run.lossAtStep.get(step);
+            if (loss != null && Float.isFinite(loss)) {
+                best = Math.min(best, loss);
+            }
+        }
+        for (Run run : runs) {
+            // a run that has not reached the target yet can not reach it in fewer steps than one that has
+            if (run.isRunning() && (reached || run.loss > best * cutoff)) {
+                run.status = Status.CUT_OFF;
+                logger.debug("{} cut off after {} steps, loss {}, best {}", run, step, run.loss, best);
+            }
+        }
+    }
+
+    /**
+     * One row per trial, the ones that reached the target in the fewest steps first, then in the least CPU time.
+     */
+    public static Table toTable(List<Trial> trials) {
+        Table table = Table.create("sweep",
+                DoubleColumn.create("lr"),
+                IntColumn.create("batchSize"),
+                IntColumn.create("numEpochs"),
+                StringColumn.create("status"),
+                IntColumn.create("steps"),
+                IntColumn.create("stepsToTarget"),
+                DoubleColumn.create("cpuMsToTarget"),
+                DoubleColumn.create("loss"));
+        List<Trial> sorted = new ArrayList<>(trials);
+        // a missing int is the smallest one to Tablesaw, the trials are sorted before they go in
+        sorted.sort(Comparator.comparing((Trial trial) -> trial.stepsToTarget < 0)
+                .thenComparingInt(trial -> trial.stepsToTarget)
+                .thenComparingLong(trial -> trial.cpuMillisToTarget));
+        for (Trial trial : sorted) {
+            // through the decimal string, a float widened to a double prints as 0.30000001192092896
+            table.doubleColumn("lr").append(Double.parseDouble(Float.toString(trial.config.lr)));
+            table.intColumn("batchSize").append(trial.config.batchSize);
+            table.intColumn("numEpochs").append(trial.config.numEpochs);
+            table.stringColumn("status").append(trial.status.toString());
+            table.intColumn("steps").append(trial.steps);
+            IntColumn steps = table.intColumn("stepsToTarget");
+            DoubleColumn millis = table.doubleColumn("cpuMsToTarget");
+            if (trial.stepsToTarget < 0) {
+                steps.appendMissing();
+                millis.appendMissing();
+            } else {
+                steps.append(trial.stepsToTarget);
+                millis.append(trial.cpuMillisToTarget);
+            }
+            table.doubleColumn("loss").append(Double.parseDouble(Float.toString(trial.loss)));
+        }
+        return table;
+    }
+
+    // -Dthreads, -Dtarget (default 1e-4), -Dcutoff (default 10) and -Dout=<csv file> for the results
+    public static void main(String[] args) throws InterruptedException, ExecutionException, IOException {
+        Engines.select();
+        float[] weights = new float[]{2};
+        float bias = 3f;
+        float[] learningRates = {0.001f, 0.003f, 0.01f, 0.03f, 0.1f, 0.3f, 1f};
+        int[] batchSizes = {10, 50, 200};
+        int[] epochs = {5, 20};
+
+        List<Config> configs = new ArrayList<>();
+        for (float lr : learningRates) {
+            for (int batchSize : batchSizes) {
+                for (int numEpochs : epochs) {
+                    configs.add(new Config(lr, batchSize, numEpochs));
+                }
+            }
+        }
+        try (NDManager manager = NDManager.newBaseManager()) {
+            DataPoints dataPoints = DataPoints.syntheticData(manager, weights, bias, 1000, 42);
+            HyperparameterSweep sweep = new HyperparameterSweep(dataPoints.getX(), dataPoints.getY(),
+                    Integer.getInteger("threads", Runtime.getRuntime().availableProcessors()),
+                    Double.parseDouble(System.getProperty("target", "1e-4")),
+                    Double.parseDouble(System.getProperty("cutoff", "10")));
+            long start = System.nanoTime();
+            List<Trial> trials = sweep.run(configs);
+            logger.info("{} trials in {} ms", trials.size(), (System.nanoTime() - start) / 1_000_000);
+            Table table = toTable(trials);
+            System.out.println(table.printAll());
+            String out = System.getProperty("out");
+            if (out != null) {
+                table.write().csv(out);
+            }
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package net.devk.regression;
+
+import ai.djl.Model;
+import ai.djl.inference.Predictor;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.ParameterList;
+import ai.djl.translate.NoopTranslator;
+import ai.djl.translate.TranslateException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.devk.Engines;
+import net.devk.PreprocessingPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the predictions of a trained lin-reg model over HTTP with nothing but the JDK's {@link HttpServer}.
+ * <p>
+ * Every request carries one row, {@code POST /predict} with the features as comma separated numbers in the body.
+ * Instead of one engine call per request, the rows that arrive together are merged: the first row waits at most
+ * {@code maxLatencyMicros} for up to {@code maxBatch - 1} others, the batch goes through a single
+ * {@link Predictor#predict} call and every request gets its own row of the result back. Under light load a request
+ * pays at most the latency window, under heavy load the batches fill up before the window ends.
+ * <p>
+ * With a {@link PreprocessingPipeline} a request carries the raw values of the pipeline's columns instead
+ * ({@code NA,Pave}), the batcher transforms them straight into the batch buffer, which is reused between batches.
+ */
+public class InferenceServer implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(InferenceServer.class);
+
+    private static final long REQUEST_TIMEOUT_SECONDS = 10;
+
+    private final Model model;
+    private final PreprocessingPipeline pipeline;
+    private final int numFeatures;
+    private final int maxBatch;
+    private final long maxLatencyNanos;
+    private final BlockingQueue<Request> queue;
+    private final Thread batcher;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private volatile boolean running = true;
+    private HttpServer server;
+    private ExecutorService handlers;
+
+    private static class Request {
+        final float[] features;
+        final String[] values;
+        final CompletableFuture<float[]> result = new CompletableFuture<>();
+
+        Request(float[] features, String[] values) {
+            this.features = features;
+            this.values = values;
+        }
+    }
+
+    /**
+     * @param maxBatch         the largest number of rows of one engine call, 1 turns the batching off
+     * @param maxLatencyMicros how long the first row of a batch waits for more
+     */
+    public InferenceServer(Model model, int numFeatures, int maxBatch, long maxLatencyMicros) {
+        this(model, null, numFeatures, maxBatch, maxLatencyMicros);
+    }
+
+    /**
+     * Serves raw rows, transformed by the fitted pipeline into the features of the model.
+     */
+    public InferenceServer(Model model, PreprocessingPipeline pipeline, int maxBatch, long maxLatencyMicros) {
+        this(model, pipeline, pipeline.numFeatures(), maxBatch, maxLatencyMicros);
+    }
+
+    private InferenceServer(Model model, PreprocessingPipeline pipeline, int numFeatures, int maxBatch,
+                            long maxLatencyMicros) {
+        this.model = model;
+        this.pipeline = pipeline;
+        this.numFeatures = numFeatures;
+        this.maxBatch = maxBatch;
+        maxLatencyNanos = maxLatencyMicros * 1000;
+        // requests beyond this are rejected instead of waiting longer and longer
+        queue = new ArrayBlockingQueue<>(Math.max(1024, maxBatch * 64));
+        batcher = new Thread(this::runBatches, "inference-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    /**
+     * Queues a row for the next batch, for callers in the same JVM.
+     */
+    public CompletableFuture<float[]> predict(float[] features) {
+        if (features.length != numFeatures) {
+            throw new IllegalArgumentException("expected " + numFeatures + " features, got " + features.length);
+        }
+        return offer(new Request(features, null));
+    }
+
+    /**
+     * Queues a raw row, the values of the columns of the pipeline in their order.
+     */
+    public CompletableFuture<float[]> predict(String[] values) {
+        if (pipeline == null) {
+            throw new IllegalStateException("the server has no preprocessing pipeline");
+        }
+        if (values.length != pipeline.numColumns()) {
+            throw new IllegalArgumentException("expected " + pipeline.numColumns() + " values, got " + values.length);
+        }
+        return offer(new Request(null, values));
+    }
+
+    private CompletableFuture<float[]> offer(Request request) {
+        if (!queue.offer(request)) {
+            request.result.completeExceptionally(new IllegalStateException("too many requests waiting"));
+        }
+        return request.result;
+    }
+
+    /**
+     * The mean over the whole life of the server, take the difference of {@link #getBatches()} and
+     * {@link #getRows()} for a part of it.
+     */
+    public double getMeanBatchSize() {
+        long count = batches.get();
+        return count == 0 ? 0 : (double) rows.get() / count;
+    }
+
+    /**
+     * The batches predicted so far.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * The rows predicted so far, in all the batches.
+     */
+    public long getRows() {
+        return rows.get();
+    }
+
+    private void runBatches() {
+        List<Request> batch = new ArrayList<>(maxBatch);
+        float[] x = new float[maxBatch * numFeatures];
+        try (Predictor<NDList, NDList> predictor = model.newPredictor(new NoopTranslator())) {
+            while (running) {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxLatencyNanos;
+                // whatever is already waiting joins without waiting any longer
+                queue.drainTo(batch, maxBatch - batch.size());
+                while (batch.size() < maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+                run(predictor, batch, x);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Request request : queue) {
+            request.result.completeExceptionally(new IllegalStateException("the server was stopped"));
+        }
+    }
+
+    private void run(Predictor<NDList, NDList> predictor, List<Request> batch, float[] x) {
+        int size = 0;
+        for (Request request : batch) {
+            try {
+                if (request.values != null) {
+                    pipeline.transform(request.values, x, size * numFeatures);
+                } else {
+                    System.arraycopy(request.features, 0, x, size * numFeatures, numFeatures);
+                }
+                batch.set(size++, request);
+            } catch (RuntimeException e) {
+                // a row that does not transform fails its own request, not the batch and not the batcher
+                request.result.completeExceptionally(e);
+            }
+        }
+        batch.subList(size, batch.size()).clear();
+        if (size == 0) {
+            return;
+        }
+        try (NDManager manager = model.getNDManager().newSubManager()) {
+            NDArray input = manager.create(FloatBuffer.wrap(x, 0, size * numFeatures), new Shape(size, numFeatures));
+            NDList output = predictor.predict(new NDList(input));
+            NDArray result = output.head();
+            result.attach(manager);
+            float[] values = result.toFloatArray();
+            int width = values.length / size;
+            for (int i = 0; i < size; i++) {
+                float[] row = new float[width];
+                System.arraycopy(values, i * width, row, 0, width);
+                batch.get(i).result.complete(row);
+            }
+            batches.incrementAndGet();
+            rows.addAndGet(size);
+        } catch (TranslateException | RuntimeException e) {
+            for (Request request : batch) {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Starts serving {@code POST /predict} on the port, 0 picks a free one.
+     */
+    public void start(int port, int handlerThreads) throws IOException {
+        // small responses would otherwise wait for the client's delayed ack (Nagle), about 40 ms each
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        // a handler thread waits for the batch of its request, so there have to be at least maxBatch of them
+        handlers = Executors.newFixedThreadPool(Math.max(handlerThreads, maxBatch));
+        server.setExecutor(handlers);
+        server.createContext("/predict", this::handle);
+        server.start();
+        logger.info("serving predictions on port {}, batches of up to {} rows within {} us", getPort(), maxBatch,
+                maxLatencyNanos / 1000);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "use POST\n");
+                return;
+            }
+            CompletableFuture<float[]> result;
+            try (InputStream in = exchange.getRequestBody()) {
+                String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                if (pipeline != null) {
+                    String[] values = body.trim().split(",", -1);
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = values[i].trim();
+                    }
+                    if (values.length != pipeline.numColumns()) {
+                        respond(exchange, 400, "expected " + pipeline.getColumns() + "\n");
+                        return;
+                    }
+                    result = predict(values);
+                } else {
+                    float[] features = parse(body);
+                    if (features.length != numFeatures) {
+                        respond(exchange, 400, "expected " + numFeatures + " features\n");
+                        return;
+                    }
+                    result = predict(features);
+                }
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, "the body has to be comma separated numbers\n");
+                return;
+            }
+            try {
+                float[] prediction = result.get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                StringBuilder body = new StringBuilder();
+                for (int i = 0; i < prediction.length; i++) {
+                    body.append(i == 0 ? "" : ",").append(prediction[i]);
+                }
+                respond(exchange, 200, body.append('\n').toString());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                int status = cause instanceof IllegalArgumentException ? 400
+                        : cause instanceof IllegalStateException ? 503 : 500;
+                respond(exchange, status, cause.getMessage() + "\n");
+            } catch (TimeoutException e) {
+                respond(exchange, 503, "timed out\n");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, "interrupted\n");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static float[] parse(String body) {
+        String[] values = body.trim().split(",");
+        float[] features = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            features[i] = Float.parseFloat(values[i].trim());
+        }
+        return features;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // an interrupted caller stops waiting for the batcher and keeps its interrupt, the batcher still stops
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(1);
+            handlers.shutdown();
+        }
+        running = false;
+        try {
+            batcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The model of {@link LinearRegressionUsingDLJ} with the given parameters, for serving without a checkpoint.
+     */
+    public static Model newModel(float weight, float bias) {
+        Model model = LinearRegressionUsingDLJ.newModel();
+        model.getBlock().initialize(model.getNDManager(), DataType.FLOAT32, new Shape(1, 1));
+        ParameterList parameters = model.getBlock().getParameters();
+        parameters.valueAt(0).getArray().set(new float[]{weight});
+        parameters.valueAt(1).getArray().set(new float[]{bias});
+        return model;
+    }
+
+    // -Dcheckpoint=<dir> serves the latest checkpoint of LinearRegressionUsingDLJ, otherwise y = 2x + 3,
+    // -Dpipeline=<file> a saved PreprocessingPipeline in front of a checkpoint trained on its features
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Engines.select();
+        String checkpointDir = System.getProperty("checkpoint");
+        String pipelineFile = System.getProperty("pipeline");
+        if (pipelineFile != null && checkpointDir == null) {
+            throw new IllegalArgumentException("-Dpipeline needs the -Dcheckpoint of a model trained on its features");
+        }
+        Model model = checkpointDir == null
+                ? newModel(2, 3)
+                : LinearRegressionUsingDLJ.loadModel(Paths.get(checkpointDir));
+        int maxBatch = Integer.getInteger("maxBatch", 64);
+        long maxLatencyMicros = Long.getLong("maxLatencyMicros", 2000);
+        try (InferenceServer server = pipelineFile == null
+                ? new InferenceServer(model, 1, maxBatch, maxLatencyMicros)
+                : new InferenceServer(model, PreprocessingPipeline.load(Paths.get(pipelineFile)), maxBatch,
+                maxLatencyMicros)) {
+            server.start(Integer.getInteger("port", 8080), Integer.getInteger("threads", 64));
+            Thread.currentThread().join();
+        } finally {
+            model.close();
+        }
+    }
+}
@@ -1,25 +1,32 @@
 package net.devk.regression;
 
 import ai.djl.engine.Engine;
+import ai.djl.ndarray.BaseNDManager;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
 import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 import ai.djl.training.GradientCollector;
 import ai.djl.training.dataset.ArrayDataset;
 import ai.djl.training.dataset.Batch;
 import ai.djl.translate.TranslateException;
+import net.devk.Engines;
+import net.devk.FusedExpression;
+import net.devk.MemoryAudit;
+import net.devk.Plots;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import tech.tablesaw.api.FloatColumn;
-import tech.tablesaw.plotly.Plot;
 import tech.tablesaw.plotly.components.Axis;
 import tech.tablesaw.plotly.components.Figure;
 import tech.tablesaw.plotly.components.Layout;
 import tech.tablesaw.plotly.traces.ScatterTrace;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.function.Supplier;
 import java.util.stream.DoubleStream;
@@ -41,14 +48,16 @@ public class LinearRegressionFromScratch {
                 .build();
     }
 
+    // at most Plots.maxPoints() of the points, evenly spread
     public static ScatterTrace createScatterTrace(float[] features, float[] labels) {
-        return ScatterTrace.builder(FloatColumn.create("X", features), FloatColumn.create("y", labels))
+        int[] kept = Plots.stride(features.length, Plots.maxPoints());
+        return ScatterTrace.builder(Plots.select(features, kept), Plots.select(labels, kept))
                 .mode(ScatterTrace.Mode.MARKERS)
                 .name("Synthetic Data")
                 .build();
     }
 
-    public static void plot(ScatterTrace lineTrace, ScatterTrace scatterTrace) {
+    public static void plot(ScatterTrace lineTrace, ScatterTrace scatterTrace) throws IOException {
         // Combine into one figure
         Layout layout = Layout.builder()
                 .title("Linear Regression")
@@ -56,14 +65,21 @@ public class LinearRegressionFromScratch {
                 .yAxis(Axis.builder().title("y").build())
                 .build();
 
-        Plot.show(new Figure(layout, lineTrace, scatterTrace));
+        Plots.show(new Figure(layout, lineTrace, scatterTrace), "lin-reg");
     }
 
 
     public static void main(String[] args) throws TranslateException, IOException {
+        // -Dengine=pytorch trains on PyTorch instead of MXNet, see Engines
+        Engines.select();
 
         logger.info("the data set will be created based on the already selected best weights and bias");
-        float[] weights = new float[]{2};
+        // -Dweights=2,-3.4 trains on as many features as there are weights
+        String[] weightValues = System.getProperty("weights", "2").split(",");
+        float[] weights = new float[weightValues.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = Float.parseFloat(weightValues[i].trim());
+        }
         float bias = 3f;
         logger.info("weights = {}", Arrays.toString(weights));
         logger.info("bias = {}", bias);
@@ -71,13 +87,16 @@ public class LinearRegressionFromScratch {
         int indexOfSelectedFeature = 0;
         int numberOfGeneratedExamples = 1000;
         try (NDManager manager = NDManager.newBaseManager()) {
+            // -Daudit=true logs the arrays alive on the manager and its sub managers after every epoch
+            MemoryAudit audit = Boolean.getBoolean("audit") ? MemoryAudit.of(manager) : null;
             logger.info("generating examples...");
             DataPoints dataPoints = DataPoints.syntheticData(manager, weights, bias, numberOfGeneratedExamples);
             NDArray features = dataPoints.getX();
             NDArray labels = dataPoints.getY();
 //            NDArray selectedFeature = features.get(new NDIndex(String.format(":, %d", indexOfSelectedFeature)));
 //            logger.info("using the selected feature of the data points: {}", selectedFeature);
-            float[] floatArray = features.toFloatArray();
+            // the plot shows the selected feature, the others are a part of the noise around the line
+            float[] floatArray = features.get(new NDIndex(":, {}", indexOfSelectedFeature)).toFloatArray();
             ScatterTrace scatterTrace = createScatterTrace(floatArray, labels.toFloatArray());
             Supplier<DoubleStream> ds = () -> IntStream.range(0, floatArray.length)
                     .mapToDouble(i -> floatArray[i]);
@@ -87,53 +106,215 @@ public class LinearRegressionFromScratch {
 
             int batchSize = 10;
 
-            ArrayDataset dataset = new ArrayDataset.Builder()
-                    .setData(features) // Set the Features
-                    .optLabels(labels) // Set the Labels
-                    .setSampling(batchSize, false) // set the batch size and random sampling to false
-                    .build();
+            ArrayDataset dataset;
+            if (Boolean.getBoolean("mapped")) {
+                // -Dmapped=true reads the batches from a memory mapped copy of the data
+                Path file = Paths.get("../data/lin-reg.bin");
+                Files.createDirectories(file.getParent());
+                MappedDataset.write(file, features, labels);
+                dataset = MappedDataset.builder()
+                        .setFile(file)
+                        .setSampling(batchSize, false)
+                        .build();
+            } else if (System.getProperty("precision") != null) {
+                // -Dprecision=float16|bfloat16|int8 keeps the features in fewer bits, batches are FLOAT32
+                dataset = CompactDataset.builder()
+                        .setData(features, labels)
+                        .optPrecision(CompactDataset.Precision.of(System.getProperty("precision")))
+                        .setSampling(batchSize, false)
+                        .build();
+                logger.info("features stored in {} bytes as {}", ((CompactDataset) dataset).getFeatureBytes(),
+                        ((CompactDataset) dataset).getPrecision());
+            } else {
+                dataset = new ArrayDataset.Builder()
+                        .setData(features) // Set the Features
+                        .optLabels(labels) // Set the Labels
+                        .setSampling(batchSize, false) // set the batch size and random sampling to false
+                        .build();
+            }
 
             // we initialize weights by sampling random numbers from a normal distribution with mean 0 and
             // a standard deviation of  0.01, setting the bias  initialBias to  0
-            NDArray randomWeights = manager.randomNormal(0, 0.01f, new Shape(1), DataType.FLOAT32);
+            NDArray randomWeights = manager.randomNormal(0, 0.01f, new Shape(weights.length, 1), DataType.FLOAT32);
             logger.info("random weights: {}", randomWeights);
             NDArray initialBias = manager.zeros(new Shape(1));
             logger.info("selecting zero as the initial bias {}", initialBias);
             NDList params = new NDList(randomWeights, initialBias);
 
-            float lr = 0.03f;  // Learning Rate
+            float lr = Float.parseFloat(System.getProperty("lr", "0.03"));  // Learning Rate
             logger.info("selecting {} as the initial learning rate, this should be a small number", initialBias);
             int numEpochs = 10;  // Number of Iterations
 
             // Attach Gradients
             params.stream().forEach(param -> param.setRequiresGradient(true));
-            logger.info("training ...");
-            for (int epoch = 0; epoch < numEpochs; epoch++) {
-                // Assuming the number of examples can be divided by the batch size, all
-                // the examples in the training dataset are used once in one epoch
-                // iteration. The features and tags of minibatch examples are given by X
-                // and y respectively.
-                for (Batch batch : dataset.getData(manager)) {
-                    NDArray selectedDataInBatch = batch.getData().head();
-                    NDArray selectedLabelsInBatch = batch.getLabels().head();
-//                    logger.info("selected data in batch: {}", selectedDataInBatch);
-//                    logger.info("selected labels in batch: {}", selectedLabelsInBatch);
-
-                    try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
-                        // Minibatch loss in selectedDataInBatch and selectedLabelsInBatch
-                        NDArray linreg = linearRegression(selectedDataInBatch, params.get(0), params.get(1));
-                        NDArray squaredLoss = squaredLoss(linreg, selectedLabelsInBatch);
-//                        logger.info("squaredLoss: {} for the linear regression: {} for the params {} {} and the selected data in batch {}"
-//                                , squaredLoss, linreg, params.get(0), params.get(1), selectedDataInBatch);
-                        gc.backward(squaredLoss);  // Compute gradient on squaredLoss with respect to estimatedWeight and initialBias
-                    }
-                    sgd(params, lr, batchSize);  // Update parameters using their gradient
+            // -Dfused=true runs every batch through FusedTrainingStep, all of its temporaries die with the step
+            boolean fused = Boolean.getBoolean("fused");
+            FusedTrainingStep fusedStep = new FusedTrainingStep(params, lr, batchSize);
+            logger.info("training {}...", fused ? "with the fused step " : "");
+            // -Dprefetch=<depth> builds the next batches on a background thread while the current one trains
+            int prefetch = Integer.getInteger("prefetch", 0);
+            PrefetchingIterable prefetched = dataset instanceof MappedDataset
+                    ? PrefetchingIterable.of((MappedDataset) dataset, manager, Math.max(prefetch, 1))
+                    : PrefetchingIterable.of(() -> dataset.getData(manager), Math.max(prefetch, 1));
+            // -Dholdout=<examples> evaluates a separate set of examples after every epoch, -Dpatience=<epochs> stops
+            // once the monitored loss has not improved by more than -DminDelta (relative) for that many epochs
+            int holdout = Integer.getInteger("holdout", 0);
+            ArrayDataset heldOut = null;
+            if (holdout > 0) {
+                DataPoints heldOutPoints = DataPoints.syntheticData(manager, weights, bias, holdout);
+                heldOut = new ArrayDataset.Builder()
+                        .setData(heldOutPoints.getX())
+                        .optLabels(heldOutPoints.getY())
+                        .setSampling(100, false)
+                        .build();
+            }
+            int patience = Integer.getInteger("patience", 0);
+            EarlyStopping earlyStopping = patience > 0
+                    ? new EarlyStopping(patience, Double.parseDouble(System.getProperty("minDelta", "1e-3")))
+                    : null;
+            // -Dtelemetry=<directory> exports step latency, throughput and native memory there every 10 seconds
+            String telemetryDir = System.getProperty("telemetry");
+            TrainingTelemetry telemetry = new TrainingTelemetry(telemetryDir == null ? null : Paths.get(telemetryDir),
+                    10_000);
+            telemetry.register("root", manager);
+            fusedStep.setTelemetry(telemetry);
+            // -Doptimizer=momentum|nesterov|adam replaces sgd, -Dschedule=fixed|cosine|step|warmup changes the
+            // learning rate over the steps, -Dlr sets the initial one
+            String optimizerName = System.getProperty("optimizer", "sgd");
+            String schedule = System.getProperty("schedule", "fixed");
+            FusedOptimizer optimizer = null;
+            if (!"sgd".equals(optimizerName) || !"fixed".equals(schedule)) {
+                int totalSteps = numEpochs * (numberOfGeneratedExamples / batchSize);
+                optimizer = new FusedOptimizer(params, FusedOptimizer.Method.of(optimizerName),
+                        FusedOptimizer.schedule(schedule, lr, totalSteps));
+                fusedStep.setOptimizer(optimizer);
+                logger.info("updating with {}, {} learning rate", optimizer.getMethod(), schedule);
+            }
+            // -Dbackend=array trains on plain float arrays instead of the engine and autograd (see ArrayTrainingStep),
+            // -Dbackend=auto only for batches of data in memory up to ArrayTrainingStep.DEFAULT_THRESHOLD. The steps
+            // run in the engine by default, this sample is about autograd
+            String backend = System.getProperty("backend", "ndarray");
+            if ("array".equals(backend) && optimizer != null) {
+                throw new IllegalArgumentException("the array backend only trains with sgd at a fixed learning rate");
+            }
+            boolean arrays = "array".equals(backend) || "auto".equals(backend) && !fused && prefetch == 0
+                    && optimizer == null && !(dataset instanceof MappedDataset)
+                    && ArrayTrainingStep.isFaster(batchSize, weights.length);
+            ArrayTrainingStep arrayStep = null;
+            float[] xValues = null;
+            float[] yValues = null;
+            CompactDataset compact = dataset instanceof CompactDataset ? (CompactDataset) dataset : null;
+            if (arrays) {
+                logger.info("training on float arrays");
+                if (compact != null) {
+                    // one batch at a time is upcast into these
+                    xValues = new float[batchSize * weights.length];
+                    yValues = new float[batchSize];
+                } else {
+                    xValues = features.toFloatArray();
+                    yValues = labels.toFloatArray();
+                }
+                arrayStep = new ArrayTrainingStep(params.get(0).toFloatArray(), params.get(1).getFloat(), lr, batchSize);
+            }
+            // the summed loss of the batches, it stays in the engine until the epoch is over
+            NDArray epochLoss = manager.zeros(new Shape());
+            // stops the prefetching thread if a pass is left early
+            try (prefetched) {
+                for (int epoch = 0; epoch < numEpochs; epoch++) {
+                    epochLoss.set(new float[]{0});
+                    long epochExamples = 0;
+                    // Assuming the number of examples can be divided by the batch size, all
+                    // the examples in the training dataset are used once in one epoch
+                    // iteration. The features and tags of minibatch examples are given by X
+                    // and y respectively.
+                    if (arrayStep != null) {
+                        float lossSum = 0;
+                        int size = Math.toIntExact(dataset.size());
+                        for (int from = 0; from < size; from += batchSize) {
+                            int rows = Math.min(batchSize, size - from);
+                            telemetry.beginStep();
+                            if (compact != null) {
+                                compact.getRows(from, rows, xValues, 0, yValues, 0);
+                                lossSum += arrayStep.step(xValues, yValues, 0, rows);
+                            } else {
+                                lossSum += arrayStep.step(xValues, yValues, from, rows);
+                            }
+                            telemetry.endStep(rows);
+                        }
+                        epochLoss.set(new float[]{lossSum});
+                        epochExamples = size;
+                        // the evaluation and the final report read the NDArray parameters
+                        params.get(0).set(arrayStep.getWeights());
+                        params.get(1).set(new float[]{arrayStep.getBias()});
+                    } else {
+                        for (Batch batch : prefetch > 0 ? prefetched : dataset.getData(manager)) {
+                            NDArray selectedDataInBatch = batch.getData().head();
+                            NDArray selectedLabelsInBatch = batch.getLabels().head();
+    //                        logger.info("selected data in batch: {}", selectedDataInBatch);
+    //                        logger.info("selected labels in batch: {}", selectedLabelsInBatch);
+
+                            epochExamples += batch.getSize();
+                            telemetry.beginStep();
+                            if (fused) {
+                                fusedStep.step(selectedDataInBatch, selectedLabelsInBatch, epochLoss);
+                                batch.close();
+                                telemetry.endStep(batch.getSize());
+                                continue;
+                            }
+                            NDArray squaredLoss;
+                            try (GradientCollector gc = Engine.getInstance().newGradientCollector()) {
+                                // Minibatch loss in selectedDataInBatch and selectedLabelsInBatch
+                                NDArray linreg = linearRegression(selectedDataInBatch, params.get(0), params.get(1));
+                                squaredLoss = squaredLoss(linreg, selectedLabelsInBatch);
+                                telemetry.endPhase(TrainingTelemetry.Phase.FORWARD);
+    //                            logger.info("squaredLoss: {} for the linear regression: {} for the params {} {} and the selected data in batch {}"
+    //                                    , squaredLoss, linreg, params.get(0), params.get(1), selectedDataInBatch);
+                                gc.backward(squaredLoss);  // Compute gradient on squaredLoss with respect to estimatedWeight and initialBias
+                            }
+                            telemetry.endPhase(TrainingTelemetry.Phase.BACKWARD);
+                            epochLoss.addi(squaredLoss.sum());
+                            if (optimizer != null) {
+                                optimizer.update(batchSize);
+                            } else {
+                                sgd(params, lr, batchSize);  // Update parameters using their gradient
+                            }
+                            telemetry.endPhase(TrainingTelemetry.Phase.UPDATE);
 
-                    batch.close();
+                            batch.close();
+                            telemetry.endStep(batch.getSize());
+                        }
+                    }
+                    // the mean loss of the batches while they were trained, not a second pass over the features
+                    float trainLoss = epochLoss.getFloat() / epochExamples;
+                    double monitored = trainLoss;
+                    if (heldOut != null) {
+                        RunningStats heldOutLoss = evaluate(heldOut.getData(manager), params);
+                        logger.info("epoch {}, loss {}, held-out loss {}", epoch + 1, trainLoss, heldOutLoss);
+                        monitored = heldOutLoss.getMean();
+                    } else {
+                        logger.info("epoch {}, loss {}", epoch + 1, trainLoss);
+                    }
+                    if (prefetch > 0) {
+                        logger.info("waited {} ms for {} prefetched batches", prefetched.getBlockedNanos() / 1_000_000,
+                                prefetched.getBatches());
+                    }
+                    logger.info("telemetry: {}", telemetry);
+                    if (fused) {
+                        logger.info("arrays per step {}, arrays alive on the root manager {}",
+                                fusedStep.getLastStepArrays(), ((BaseNDManager) manager).getManagedArrays().size());
+                    }
+                    if (audit != null) {
+                        logger.info("arrays alive after epoch {}:{}{}", epoch + 1, System.lineSeparator(), audit.report());
+                    }
+                    if (earlyStopping != null && earlyStopping.update(epoch, monitored)) {
+                        logger.info("stopping after epoch {}, the loss has not improved since epoch {} ({})", epoch + 1,
+                                earlyStopping.getBestEpoch() + 1, earlyStopping.getBestLoss());
+                        break;
+                    }
                 }
-                NDArray trainL = squaredLoss(linearRegression(features, params.get(0), params.get(1)), labels);
-                logger.info("epoch {}, loss {}", epoch + 1, trainL.mean().getFloat());
+
             }
+            telemetry.close();
 
             NDArray trueW = manager.create(weights);
 //            float trueB = 4.2f;
@@ -142,22 +323,46 @@ public class LinearRegressionFromScratch {
             logger.info("estimated weight: {}", estimatedWeight);
             logger.info("estimated bias: {}", estimatedBias);
 //            float[] estimatedWeight = trueW.sub(estimatedWeight).toFloatArray();
-            logger.info("Error in estimating estimatedWeight: {}", String.format("%f", trueW.sub(estimatedWeight).toFloatArray()[0]));
+            logger.info("Error in estimating estimatedWeight: {}", Arrays.toString(trueW.sub(estimatedWeight).toFloatArray()));
             logger.info("Error in estimating initialBias: {}", String.format("%f", bias - estimatedBias));
 
 
         }
     }
 
+    /**
+     * Squared loss of every example of the batches, only the mean and the sum of squared differences of each batch
+     * are copied back.
+     */
+    public static RunningStats evaluate(Iterable<Batch> batches, NDList params) {
+        RunningStats stats = new RunningStats();
+        for (Batch batch : batches) {
+            NDArray loss = squaredLoss(linearRegression(batch.getData().head(), params.get(0), params.get(1)),
+                    batch.getLabels().head());
+            NDArray mean = loss.mean();
+            NDArray m2 = loss.sub(mean).square().sum();
+            float[] values = mean.reshape(1).concat(m2.reshape(1)).toFloatArray();
+            stats.add(loss.size(), values[0], values[1]);
+            batch.close();
+        }
+        return stats;
+    }
+
     public static NDArray linearRegression(NDArray X, NDArray w, NDArray b) {
-        return X.dot(w).add(b);
+        return X.matMul(w).add(b);
     }
 
     // we need to transform the true value y into the predicted value’s shape yHat.
     // The result returned by the following function will also be the same as the yHat shape.
     public static NDArray squaredLoss(NDArray yHat, NDArray y) {
-        return (yHat.sub(y.reshape(yHat.getShape()))).mul
-                ((yHat.sub(y.reshape(yHat.getShape())))).div(2);
+        return yHat.sub(y.reshape(yHat.getShape())).square().div(2);
+    }
+
+    // the same loss into one array instead of a temporary per operation, for losses that are not differentiated
+    public static NDArray squaredLossFused(NDArray yHat, NDArray y) {
+        try (NDArray labels = y.reshape(yHat.getShape())) {
+            return FusedExpression.of(yHat).sub(labels).square().div(2).eval();
+        }
     }
 
     // stochastic gradient descent
@@ -166,7 +371,13 @@ public class LinearRegressionFromScratch {
             NDArray param = params.get(i);
             // Update param
             // param = param - param.gradient * lr / batchSize
-            param.subi(param.getGradient().mul(lr).div(batchSize));
+            // the gradient handle and the step are attached to the manager of param, close them or every batch
+            // leaves them behind
+            try (NDArray gradient = param.getGradient(); NDArray step = gradient.mul(lr / batchSize)) {
+                param.subi(step);
+                // MXNet overwrites the gradient on the next backward, PyTorch adds to it
+                gradient.subi(gradient);
+            }
         }
     }
 
@@ -1,9 +1,9 @@
 package net.devk.regression;
 
 import ai.djl.Model;
-import ai.djl.metric.Metrics;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 import ai.djl.nn.Block;
 import ai.djl.nn.ParameterList;
@@ -14,31 +14,107 @@ import ai.djl.training.EasyTrain;
 import ai.djl.training.Trainer;
 import ai.djl.training.dataset.ArrayDataset;
 import ai.djl.training.dataset.Batch;
+import ai.djl.training.dataset.BatchSampler;
+import ai.djl.training.dataset.RandomSampler;
+import ai.djl.training.dataset.Sampler;
+import ai.djl.training.dataset.SequenceSampler;
 import ai.djl.training.listener.TrainingListener;
 import ai.djl.training.loss.Loss;
 import ai.djl.training.optimizer.Optimizer;
 import ai.djl.training.tracker.Tracker;
 import ai.djl.translate.TranslateException;
+import net.devk.Engines;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 
 public class LinearRegressionUsingDLJ {
 
     private static final Logger logger = LoggerFactory.getLogger(LinearRegressionUsingDLJ.class);
 
-    private static ArrayDataset loadArray(NDArray features, NDArray labels, int batchSize, boolean shuffle) {
+    private static ArrayDataset loadArray(NDArray features, NDArray labels, Sampler sampler) {
         return new ArrayDataset.Builder()
                 .setData(features) // set the features
                 .optLabels(labels) // set the labels
-                .setSampling(batchSize, shuffle) // set the batch size and random sampling
+                .setSampling(sampler) // set the batch size and the order of the examples
                 .build();
     }
 
+    // same batches as loadArray, read from a memory mapped copy of the data instead of from the NDArrays
+    private static ArrayDataset loadMapped(NDArray features, NDArray labels, Sampler sampler) throws IOException {
+        Path file = Paths.get("../data/lin-reg.bin");
+        Files.createDirectories(file.getParent());
+        MappedDataset.write(file, features, labels);
+        return MappedDataset.builder()
+                .setFile(file)
+                .setSampling(sampler)
+                .build();
+    }
 
-    public static void main(String[] args) throws TranslateException, IOException {
+    // the same batches again, upcast to FLOAT32 from features stored in fewer bits
+    private static ArrayDataset loadCompact(NDArray features, NDArray labels, Sampler sampler, String precision) {
+        CompactDataset dataset = CompactDataset.builder()
+                .setData(features, labels)
+                .optPrecision(CompactDataset.Precision.of(precision))
+                .setSampling(sampler)
+                .build();
+        logger.info("features stored in {} bytes as {}", dataset.getFeatureBytes(), dataset.getPrecision());
+        return dataset;
+    }
+
+    // -Dshuffle=random shuffles all the examples every epoch, -Dshuffle=block only the order of blocks of them and
+    // the examples within a few blocks, see BlockShuffleSampler. The batches come in order by default
+    private static Sampler sampler(int batchSize) {
+        String shuffle = System.getProperty("shuffle", "none");
+        switch (shuffle) {
+            case "none":
+                return new BatchSampler(new SequenceSampler(), batchSize, false);
+            case "random":
+                return new BatchSampler(new RandomSampler(), batchSize, false);
+            case "block":
+                return new BlockShuffleSampler(batchSize, 42);
+            default:
+                throw new IllegalArgumentException("unknown shuffle " + shuffle);
+        }
+    }
+
+
+    public static Model newModel() {
+        Model model = Model.newInstance("lin-reg");
+
+        SequentialBlock net = new SequentialBlock();
+        Linear linearBlock = Linear.builder().optBias(true).setUnits(1).build();
+        net.add(linearBlock);
+
+        model.setBlock(net);
+        return model;
+    }
+
+    /**
+     * A model for prediction with the parameters of the latest checkpoint in the directory, without a trainer.
+     */
+    public static Model loadModel(Path checkpointDir) throws IOException {
+        Path latest = Checkpointer.latest(checkpointDir);
+        if (latest == null) {
+            throw new IOException("no checkpoint in " + checkpointDir);
+        }
+        Model model = newModel();
+        NDManager manager = model.getNDManager();
+        model.getBlock().initialize(manager, DataType.FLOAT32, new Shape(1, 1));
+        try (NDManager loadManager = manager.newSubManager()) {
+            Checkpointer.load(loadManager, latest).restore(model.getBlock().getParameters());
+        }
+        return model;
+    }
+
+    public static void main(String[] args) throws TranslateException, IOException, InterruptedException {
+        // -Dengine=pytorch trains on PyTorch instead of MXNet, see Engines
+        Engines.select();
 
         logger.info("the data set will be created based on the already selected best weights and bias");
         float[] weights = new float[]{2};
@@ -49,22 +125,29 @@ public class LinearRegressionUsingDLJ {
         int numberOfGeneratedExamples = 1000;
         try (NDManager manager = NDManager.newBaseManager()) {
             logger.info("generating examples...");
-            DataPoints dataPoints = DataPoints.syntheticData(manager, weights, bias, numberOfGeneratedExamples);
+            // -Dcheckpoint=<directory> saves the parameters every 50 steps without blocking the training, keeps the
+            // 3 most recent checkpoints and resumes from the latest one. A resumed run has to see the same data, so
+            // it is generated from a fixed seed then
+            String checkpointDir = System.getProperty("checkpoint");
+            DataPoints dataPoints = checkpointDir == null
+                    ? DataPoints.syntheticData(manager, weights, bias, numberOfGeneratedExamples)
+                    : DataPoints.syntheticData(manager, weights, bias, numberOfGeneratedExamples, 42);
             NDArray features = dataPoints.getX();
             NDArray labels = dataPoints.getY();
 
             int batchSize = 10;
 
-            ArrayDataset dataset = loadArray(features, labels, batchSize, false);
-
-
-            Model model = Model.newInstance("lin-reg");
+            // -Dmapped=true trains from the binary file format instead of the in-memory arrays,
+            // -Dprecision=float16|bfloat16|int8 from features kept in fewer bits
+            String precision = System.getProperty("precision");
+            ArrayDataset dataset = Boolean.getBoolean("mapped")
+                    ? loadMapped(features, labels, sampler(batchSize))
+                    : precision != null
+                    ? loadCompact(features, labels, sampler(batchSize), precision)
+                    : loadArray(features, labels, sampler(batchSize));
 
-            SequentialBlock net = new SequentialBlock();
-            Linear linearBlock = Linear.builder().optBias(true).setUnits(1).build();
-            net.add(linearBlock);
 
-            model.setBlock(net);
+            Model model = newModel();
 
             Loss l2loss = Loss.l2Loss();
 
@@ -77,31 +160,98 @@ public class LinearRegressionUsingDLJ {
                     .optDevices(manager.getEngine().getDevices(1)) // single GPU
                     .addTrainingListeners(TrainingListener.Defaults.logging()); // Logging
 
+            Checkpointer checkpointer = checkpointDir == null ? null : new Checkpointer(Paths.get(checkpointDir), 3);
+            long step = 0;
+            if (checkpointer != null) {
+                Path latest = Checkpointer.latest(Paths.get(checkpointDir));
+                if (latest != null) {
+                    // before the trainer exists, it takes its own copy of the parameters when it is initialized
+                    model.getBlock().initialize(model.getNDManager(), DataType.FLOAT32, new Shape(batchSize, 1));
+                    try (NDManager loadManager = manager.newSubManager()) {
+                        Checkpointer.Checkpoint checkpoint = Checkpointer.load(loadManager, latest);
+                        checkpoint.restore(model.getBlock().getParameters());
+                        step = checkpoint.getStep();
+                    }
+                    logger.info("resumed from {} at step {}", latest, step);
+                }
+            }
+
             Trainer trainer = model.newTrainer(config);
 
             // First axis is batch size - won't impact parameter initialization
             // Second axis is the input size
             trainer.initialize(new Shape(batchSize, 1));
 
-            Metrics metrics = new Metrics();
-            trainer.setMetrics(metrics);
+            // -Dtelemetry=<directory> exports step latency, throughput and native memory there every 10 seconds
+            String telemetryDir = System.getProperty("telemetry");
+            TrainingTelemetry telemetry = new TrainingTelemetry(telemetryDir == null ? null : Paths.get(telemetryDir),
+                    10_000);
+            telemetry.register("root", manager);
+            telemetry.register("model", model.getNDManager());
+            trainer.setMetrics(telemetry.newMetrics());
 
 
             int numEpochs = 3;
 
-            for (int epoch = 1; epoch <= numEpochs; epoch++) {
-                System.out.printf("Epoch %d\n", epoch);
-                // Iterate over dataset
-                for (Batch batch : trainer.iterateDataset(dataset)) {
-                    // Update loss and evaulator
-                    EasyTrain.trainBatch(trainer, batch);
-                    // Update parameters
-                    trainer.step();
-
-                    batch.close();
+            long stepsPerEpoch = (dataset.size() + batchSize - 1) / batchSize;
+            // the batches of the epoch that were trained before the checkpoint
+            long skip = step % stepsPerEpoch;
+
+            // -Dprefetch=<depth> builds the next batches on a background thread while the current one trains
+            int prefetch = Integer.getInteger("prefetch", 0);
+            PrefetchingIterable prefetched =
+                    PrefetchingIterable.of(() -> trainer.iterateDataset(dataset), Math.max(prefetch, 1));
+
+            // stops the prefetching thread if a pass is left early
+            try (prefetched) {
+                for (int epoch = (int) (step / stepsPerEpoch) + 1; epoch <= numEpochs; epoch++) {
+                    System.out.printf("Epoch %d\n", epoch);
+                    // Iterate over dataset
+                    for (Batch batch : prefetch > 0 ? prefetched : trainer.iterateDataset(dataset)) {
+                        if (skip > 0) {
+                            skip--;
+                            batch.close();
+                            continue;
+                        }
+                        telemetry.beginStep();
+                        // Update loss and evaulator
+                        EasyTrain.trainBatch(trainer, batch);
+                        // Update parameters
+                        trainer.step();
+
+                        batch.close();
+                        telemetry.endStep(batch.getSize());
+                        step++;
+                        if (checkpointer != null && step % 50 == 0) {
+                            checkpointer.save(step, model.getBlock().getParameters());
+                        }
+                    }
+                    // reset training and validation evaluators at end of epoch
+                    trainer.notifyListeners(listener -> listener.onEpoch(trainer));
+                    if (prefetch > 0) {
+                        logger.info("waited {} ms for {} prefetched batches", prefetched.getBlockedNanos() / 1_000_000,
+                                prefetched.getBatches());
+                    }
+                    logger.info("telemetry: {}", telemetry);
+                }
+            }
+            telemetry.close();
+            if (checkpointer != null) {
+                // the last checkpoint is not skipped
+                checkpointer.flush();
+                checkpointer.save(step, model.getBlock().getParameters());
+                checkpointer.close();
+                logger.info("{} checkpoints skipped while the previous one was still being written",
+                        checkpointer.getSkipped());
+
+                long start = System.nanoTime();
+                Model predictorModel = loadModel(Paths.get(checkpointDir));
+                try {
+                    logger.info("loaded a model for prediction from the latest checkpoint in {} ms",
+                            (System.nanoTime() - start) / 1_000_000);
+                } finally {
+                    predictorModel.close();
                 }
-                // reset training and validation evaluators at end of epoch
-                trainer.notifyListeners(listener -> listener.onEpoch(trainer));
             }
 
             Block layer = model.getBlock();
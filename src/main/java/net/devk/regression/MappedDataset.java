@@ -0,0 +1,371 @@
+package net.devk.regression;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.dataset.ArrayDataset;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.dataset.RandomAccessDataset;
+import ai.djl.training.dataset.Record;
+import ai.djl.training.dataset.Sampler;
+import ai.djl.util.Progress;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A dataset backed by a memory mapped binary file, a drop-in for the {@link ArrayDataset} of the regression
+ * samples that does not parse anything or keep anything on the heap.
+ * <p>
+ * File layout, everything little-endian:
+ * <pre>
+ * header   magic "DJLR" (int), version (int), rows (long), features (int), labels (int), reserved (8 bytes)
+ * features rows * features float32, row-major
+ * labels   rows * labels float32, row-major
+ * </pre>
+ * A batch of consecutive rows is created straight from a slice of the mapping, the only copy is the one the engine
+ * makes into its own memory. Shuffled batches gather their rows into a direct buffer first.
+ * <p>
+ * Sub datasets, for example the parts of {@link #randomSplit(int...)}, share the mapping and only keep the row
+ * numbers they are made of.
+ */
+public class MappedDataset extends ArrayDataset {
+
+    static final int MAGIC = 0x524c4a44; // "DJLR" read as a little-endian int
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+
+    private final long rows;
+    private final int numFeatures;
+    private final int numLabels;
+    private final MappedRegion features;
+    private final MappedRegion labels;
+    // the rows of the file this dataset is made of, null for all of them in order
+    private final long[] fileRows;
+
+    // a big file is mapped in several segments of whole rows, a single mapping is limited to 2GB
+    private static class MappedRegion {
+        final int rowBytes;
+        final long rowsPerSegment;
+        final MappedByteBuffer[] segments;
+
+        MappedRegion(FileChannel channel, long offset, long rows, int rowBytes, int segmentBytes) throws IOException {
+            this.rowBytes = rowBytes;
+            rowsPerSegment = segmentBytes / rowBytes;
+            int count = (int) Math.max(1, (rows + rowsPerSegment - 1) / rowsPerSegment);
+            segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long first = i * rowsPerSegment;
+                long size = Math.min(rowsPerSegment, rows - first) * rowBytes;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + first * rowBytes, size);
+            }
+        }
+
+        boolean sameSegment(long from, long to) {
+            return from / rowsPerSegment == (to - 1) / rowsPerSegment;
+        }
+
+        // rows [from, to) of a single segment, without copying
+        ByteBuffer slice(long from, long to) {
+            ByteBuffer segment = segments[(int) (from / rowsPerSegment)].duplicate();
+            int start = (int) (from % rowsPerSegment) * rowBytes;
+            segment.position(start);
+            segment.limit(start + (int) (to - from) * rowBytes);
+            return segment.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        ByteBuffer gather(long[] indices) {
+            return gather(indices, ByteBuffer.allocateDirect(indices.length * rowBytes));
+        }
+
+        ByteBuffer gather(long[] indices, ByteBuffer into) {
+            into.clear().order(ByteOrder.LITTLE_ENDIAN);
+            for (long index : indices) {
+                into.put(slice(index, index + 1));
+            }
+            return into.flip();
+        }
+    }
+
+    protected MappedDataset(Builder builder) throws IOException {
+        super(builder);
+        // the mappings stay valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(builder.file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(builder.file + " is not a dataset written by MappedDataset.write");
+            }
+            rows = header.getLong();
+            fileRows = null;
+            numFeatures = header.getInt();
+            numLabels = header.getInt();
+            features = new MappedRegion(channel, HEADER_BYTES, rows, numFeatures * Float.BYTES,
+                    builder.segmentBytes);
+            labels = new MappedRegion(channel, HEADER_BYTES + rows * numFeatures * Float.BYTES, rows,
+                    numLabels * Float.BYTES, builder.segmentBytes);
+        }
+    }
+
+    private MappedDataset(MappedDataset parent, long[] fileRows) {
+        super(new Builder().setSampling(parent.sampler)
+                .optDataBatchifier(parent.dataBatchifier)
+                .optLabelBatchifier(parent.labelBatchifier)
+                .optPipeline(parent.pipeline)
+                .optTargetPipeline(parent.targetPipeline)
+                .optPrefetchNumber(parent.prefetchNumber)
+                .optDevice(parent.device));
+        rows = fileRows.length;
+        numFeatures = parent.numFeatures;
+        numLabels = parent.numLabels;
+        features = parent.features;
+        labels = parent.labels;
+        this.fileRows = fileRows;
+    }
+
+    private long fileRow(long index) {
+        return fileRows == null ? index : fileRows[Math.toIntExact(index)];
+    }
+
+    private long[] fileRows(long[] indices) {
+        if (fileRows == null) {
+            return indices;
+        }
+        long[] result = new long[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            result[i] = fileRows[Math.toIntExact(indices[i])];
+        }
+        return result;
+    }
+
+    // a single label per row comes out as a vector, like the labels of DataPoints.syntheticData
+    private Shape labelShape(int size) {
+        return numLabels == 1 ? new Shape(size) : new Shape(size, numLabels);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int getNumFeatures() {
+        return numFeatures;
+    }
+
+    @Override
+    protected long availableSize() {
+        return rows;
+    }
+
+    @Override
+    public Record get(NDManager manager, long index) {
+        long row = fileRow(index);
+        NDArray x = manager.create(features.slice(row, row + 1), new Shape(numFeatures), DataType.FLOAT32);
+        NDArray y = manager.create(labels.slice(row, row + 1), labelShape(1).slice(1), DataType.FLOAT32);
+        return new Record(new NDList(x), new NDList(y));
+    }
+
+    @Override
+    public Batch getByRange(NDManager manager, long fromIndex, long toIndex) {
+        int size = Math.toIntExact(toIndex - fromIndex);
+        if (fileRows != null || !features.sameSegment(fromIndex, toIndex)
+                || !labels.sameSegment(fromIndex, toIndex)) {
+            long[] indices = new long[size];
+            for (int i = 0; i < size; i++) {
+                indices[i] = fromIndex + i;
+            }
+            return getByIndices(manager, indices);
+        }
+        NDArray x = manager.create(features.slice(fromIndex, toIndex), new Shape(size, numFeatures), DataType.FLOAT32);
+        NDArray y = manager.create(labels.slice(fromIndex, toIndex), labelShape(size), DataType.FLOAT32);
+        return new Batch(manager, new NDList(x), new NDList(y), size, dataBatchifier, labelBatchifier,
+                fromIndex, rows);
+    }
+
+    @Override
+    public Batch getByIndices(NDManager manager, long... indices) {
+        int size = indices.length;
+        long[] inFile = fileRows(indices);
+        NDArray x = manager.create(features.gather(inFile), new Shape(size, numFeatures), DataType.FLOAT32);
+        NDArray y = manager.create(labels.gather(inFile), labelShape(size), DataType.FLOAT32);
+        return new Batch(manager, new NDList(x), new NDList(y), size, dataBatchifier, labelBatchifier, 0, rows);
+    }
+
+    public Sampler getSampler() {
+        return sampler;
+    }
+
+    /**
+     * Copies batches into NDArrays that already exist instead of creating new ones, see {@link PrefetchingIterable}.
+     * Shuffled batches are gathered through direct buffers that are reused as well, a filler is meant for one thread.
+     */
+    public Filler newFiller() {
+        return new Filler();
+    }
+
+    public final class Filler {
+
+        private ByteBuffer featureRows;
+        private ByteBuffer labelRows;
+
+        private Filler() {
+        }
+
+        public void fill(long[] indices, NDArray x, NDArray y) {
+            indices = fileRows(indices);
+            long from = indices[0];
+            long to = from + indices.length;
+            if (isRange(indices) && features.sameSegment(from, to) && labels.sameSegment(from, to)) {
+                x.set(features.slice(from, to));
+                y.set(labels.slice(from, to));
+                return;
+            }
+            if (featureRows == null || featureRows.capacity() < indices.length * features.rowBytes) {
+                featureRows = ByteBuffer.allocateDirect(indices.length * features.rowBytes);
+                labelRows = ByteBuffer.allocateDirect(indices.length * labels.rowBytes);
+            }
+            x.set(features.gather(indices, featureRows));
+            y.set(labels.gather(indices, labelRows));
+        }
+
+        public Shape featureShape(int size) {
+            return new Shape(size, numFeatures);
+        }
+
+        public Shape labelShape(int size) {
+            return MappedDataset.this.labelShape(size);
+        }
+    }
+
+    private static boolean isRange(long[] indices) {
+        for (int i = 1; i < indices.length; i++) {
+            if (indices[i] != indices[0] + i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected RandomAccessDataset newSubDataset(int[] indices, int from, int to) {
+        long[] inFile = new long[to - from];
+        for (int i = 0; i < inFile.length; i++) {
+            inFile[i] = fileRow(indices[from + i]);
+        }
+        return new MappedDataset(this, inFile);
+    }
+
+    @Override
+    protected RandomAccessDataset newSubDataset(List<Long> subIndices) {
+        return new MappedDataset(this, subIndices.stream().mapToLong(this::fileRow).toArray());
+    }
+
+    @Override
+    public void prepare(Progress progress) {
+    }
+
+    /**
+     * Converts chunks of rows, for example from a {@link net.devk.CsvChunkReader}, into the binary format. Only one
+     * chunk is in memory at a time, the labels go through a temporary file because the number of rows is only
+     * known at the end.
+     *
+     * @return the number of rows written
+     */
+    public static long write(Path file, NDManager manager, DataChunks chunks) throws IOException {
+        Path labelsFile = Files.createTempFile(file.toAbsolutePath().getParent(), "labels", ".tmp");
+        long rows = 0;
+        int numLabels = 1;
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             FileChannel labelsOut = FileChannel.open(labelsFile, StandardOpenOption.WRITE)) {
+            out.position(HEADER_BYTES);
+            while (true) {
+                try (NDManager chunkManager = manager.newSubManager()) {
+                    DataPoints chunk = chunks.nextChunk(chunkManager);
+                    if (chunk == null) {
+                        break;
+                    }
+                    NDArray x = chunk.getX().toType(DataType.FLOAT32, false);
+                    NDArray y = chunk.getY().toType(DataType.FLOAT32, false);
+                    rows += x.getShape().get(0);
+                    numLabels = (int) (y.size() / x.getShape().get(0));
+                    writeFully(out, littleEndian(x));
+                    writeFully(labelsOut, littleEndian(y));
+                }
+            }
+            try (FileChannel labelsIn = FileChannel.open(labelsFile, StandardOpenOption.READ)) {
+                long copied = 0;
+                long size = labelsIn.size();
+                while (copied < size) {
+                    copied += labelsIn.transferTo(copied, size - copied, out);
+                }
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(rows).putInt(chunks.numFeatures()).putInt(numLabels);
+            header.position(HEADER_BYTES).flip();
+            out.write(header, 0);
+        } finally {
+            Files.deleteIfExists(labelsFile);
+        }
+        return rows;
+    }
+
+    public static long write(Path file, NDArray features, NDArray labels) throws IOException {
+        try (NDManager manager = features.getManager().newSubManager()) {
+            return write(file, manager, DataChunks.of(new DataPoints(features, labels), 65536));
+        }
+    }
+
+    // the engine hands its bytes out in the native order, they are only swapped on a big-endian machine
+    private static ByteBuffer littleEndian(NDArray array) {
+        ByteBuffer bytes = array.toByteBuffer();
+        if (bytes.order() == ByteOrder.LITTLE_ENDIAN) {
+            return bytes;
+        }
+        ByteBuffer swapped = ByteBuffer.allocate(bytes.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        swapped.asFloatBuffer().put(bytes.asFloatBuffer());
+        return swapped;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public static final class Builder extends BaseBuilder<Builder> {
+
+        private Path file;
+        private int segmentBytes = Integer.MAX_VALUE;
+
+        public Builder setFile(Path file) {
+            this.file = file;
+            return this;
+        }
+
+        // smaller segments, so that a test file of a few rows is mapped in several of them
+        Builder optSegmentBytes(int segmentBytes) {
+            this.segmentBytes = segmentBytes;
+            return this;
+        }
+
+        @Override
+        protected Builder self() {
+            return this;
+        }
+
+        public MappedDataset build() throws IOException {
+            return new MappedDataset(this);
+        }
+    }
+}
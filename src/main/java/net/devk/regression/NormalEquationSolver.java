@@ -0,0 +1,210 @@
+package net.devk.regression;
+
+import ai.djl.ndarray.NDManager;
+import net.devk.Engines;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Least squares in a single pass: instead of running sgd for several epochs, every chunk of rows adds its share to
+ * X<sup>T</sup>X and X<sup>T</sup>y, and the weights come out of the normal equation
+ * (X<sup>T</sup>X) w = X<sup>T</sup>y once all the chunks were read.
+ * <p>
+ * X is augmented with a column of ones so the last element of w is the bias. The sums are kept in double,
+ * they are only (d + 1)<sup>2</sup> numbers no matter how many rows there are, which is why the data can be
+ * larger than the memory: only one chunk per worker is materialized at a time.
+ */
+public class NormalEquationSolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(NormalEquationSolver.class);
+
+    private final int numWorkers;
+
+    public NormalEquationSolver(int numWorkers) {
+        this.numWorkers = numWorkers;
+    }
+
+    public static class Solution {
+        private final float[] weights;
+        private final float bias;
+        private final long numExamples;
+
+        Solution(float[] weights, float bias, long numExamples) {
+            this.weights = weights;
+            this.bias = bias;
+            this.numExamples = numExamples;
+        }
+
+        public float[] getWeights() {
+            return weights;
+        }
+
+        public float getBias() {
+            return bias;
+        }
+
+        public long getNumExamples() {
+            return numExamples;
+        }
+    }
+
+    // X^T X and X^T y of the rows seen by one worker, only the upper triangle of xtx is filled
+    private static class Sums {
+        final double[][] xtx;
+        final double[] xty;
+        long rows;
+
+        Sums(int n) {
+            xtx = new double[n][n];
+            xty = new double[n];
+        }
+
+        void add(float[] x, float[] y, int numFeatures) {
+            int n = numFeatures + 1;
+            double[] row = new double[n];
+            row[numFeatures] = 1;
+            for (int r = 0; r < y.length; r++) {
+                for (int j = 0; j < numFeatures; j++) {
+                    row[j] = x[r * numFeatures + j];
+                }
+                double label = y[r];
+                for (int i = 0; i < n; i++) {
+                    double ri = row[i];
+                    double[] xtxRow = xtx[i];
+                    for (int j = i; j < n; j++) {
+                        xtxRow[j] += ri * row[j];
+                    }
+                    xty[i] += ri * label;
+                }
+            }
+            rows += y.length;
+        }
+
+        void merge(Sums other) {
+            for (int i = 0; i < xty.length; i++) {
+                for (int j = i; j < xty.length; j++) {
+                    xtx[i][j] += other.xtx[i][j];
+                }
+                xty[i] += other.xty[i];
+            }
+            rows += other.rows;
+        }
+    }
+
+    public Solution solve(NDManager manager, DataChunks chunks) throws InterruptedException, ExecutionException {
+        int numFeatures = chunks.numFeatures();
+        ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+        try {
+            List<Future<Sums>> futures = new ArrayList<>();
+            for (int i = 0; i < numWorkers; i++) {
+                futures.add(executor.submit(() -> accumulate(manager, chunks, numFeatures)));
+            }
+            Sums total = new Sums(numFeatures + 1);
+            for (Future<Sums> future : futures) {
+                total.merge(future.get());
+            }
+            double[] w = solveSymmetric(total.xtx, total.xty);
+            float[] weights = new float[numFeatures];
+            for (int i = 0; i < numFeatures; i++) {
+                weights[i] = (float) w[i];
+            }
+            return new Solution(weights, (float) w[numFeatures], total.rows);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Sums accumulate(NDManager manager, DataChunks chunks, int numFeatures) {
+        Sums sums = new Sums(numFeatures + 1);
+        while (true) {
+            float[] x;
+            float[] y;
+            // reading the chunk goes through the engine one thread at a time, the arithmetic below runs in parallel
+            synchronized (chunks) {
+                try (NDManager chunkManager = manager.newSubManager()) {
+                    DataPoints chunk = chunks.nextChunk(chunkManager);
+                    if (chunk == null) {
+                        return sums;
+                    }
+                    x = chunk.getX().toFloatArray();
+                    y = chunk.getY().toFloatArray();
+                }
+            }
+            sums.add(x, y, numFeatures);
+        }
+    }
+
+    /**
+     * Solves A w = b with Gaussian elimination and partial pivoting, only the upper triangle of A is read.
+     */
+    static double[] solveSymmetric(double[][] upper, double[] b) {
+        int n = b.length;
+        double[][] a = new double[n][n + 1];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                a[i][j] = i <= j ? upper[i][j] : upper[j][i];
+            }
+            a[i][n] = b[i];
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < n; row++) {
+                if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) {
+                    pivot = row;
+                }
+            }
+            if (Math.abs(a[pivot][col]) < 1e-12) {
+                throw new IllegalStateException("X^T X is singular, the features are linearly dependent");
+            }
+            double[] tmp = a[col];
+            a[col] = a[pivot];
+            a[pivot] = tmp;
+            for (int row = col + 1; row < n; row++) {
+                double factor = a[row][col] / a[col][col];
+                for (int j = col; j <= n; j++) {
+                    a[row][j] -= factor * a[col][j];
+                }
+            }
+        }
+        double[] w = new double[n];
+        for (int i = n - 1; i >= 0; i--) {
+            double sum = a[i][n];
+            for (int j = i + 1; j < n; j++) {
+                sum -= a[i][j] * w[j];
+            }
+            w[i] = sum / a[i][i];
+        }
+        return w;
+    }
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        Engines.select();
+        float[] weights = new float[]{2};
+        float bias = 3f;
+        logger.info("weights = {}", Arrays.toString(weights));
+        logger.info("bias = {}", bias);
+
+        long numberOfGeneratedExamples = 10_000_000L;
+        int chunkSize = 100_000;
+        int numWorkers = Runtime.getRuntime().availableProcessors();
+        try (NDManager manager = NDManager.newBaseManager()) {
+            DataChunks chunks = DataChunks.synthetic(weights, bias, numberOfGeneratedExamples, chunkSize);
+            long start = System.nanoTime();
+            Solution solution = new NormalEquationSolver(numWorkers).solve(manager, chunks);
+            logger.info("solved {} examples with {} workers in {} ms", solution.getNumExamples(), numWorkers,
+                    (System.nanoTime() - start) / 1_000_000);
+            logger.info("estimated weight: {}", Arrays.toString(solution.getWeights()));
+            logger.info("estimated bias: {}", solution.getBias());
+            logger.info("Error in estimating estimatedWeight: {}", String.format("%f", weights[0] - solution.getWeights()[0]));
+            logger.info("Error in estimating initialBias: {}", String.format("%f", bias - solution.getBias()));
+        }
+    }
+}
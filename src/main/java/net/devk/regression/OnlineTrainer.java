@@ -0,0 +1,393 @@
+package net.devk.regression;
+
+import ai.djl.Model;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.ParameterList;
+import ai.djl.training.DefaultTrainingConfig;
+import ai.djl.training.EasyTrain;
+import ai.djl.training.Trainer;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.loss.Loss;
+import ai.djl.training.optimizer.Optimizer;
+import ai.djl.training.tracker.Tracker;
+import ai.djl.translate.Batchifier;
+import net.devk.Engines;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streaming sgd: trains the {@code Linear} model of {@link LinearRegressionUsingDLJ} on a {@link RowStream} batch by
+ * batch for as long as rows keep coming, instead of epochs over a dataset that is complete before the training starts.
+ * <p>
+ * After every update the parameters are copied into an immutable {@link Snapshot} and published through an
+ * {@link AtomicReference}. Any number of threads predict against {@link #snapshot()} at the same time: a reader gets
+ * the weights and the bias of one single update, never a mix of two, it takes no lock and the trainer never waits
+ * for it. The predictions run on the Java heap, the engine and its arrays stay with the training thread.
+ * <p>
+ * Like the batcher of {@link InferenceServer} a batch is trained once it is full or once its first row has waited
+ * {@code maxWaitMillis}, a slow stream is still learned from. How stale the readers are is in {@link #getSnapshotAge},
+ * {@link #getRowsBehind} and {@link #getUpdatesPerSecond}.
+ */
+public class OnlineTrainer implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OnlineTrainer.class);
+    // the publish times kept for the update rate, a faster trainer is measured over the last RATE_WINDOW updates
+    private static final int RATE_WINDOW = 4096;
+
+    private final int numFeatures;
+    private final int batchSize;
+    private final long maxWaitNanos;
+    private final Model model;
+    private final Trainer trainer;
+    private final AtomicReference<Snapshot> snapshot;
+    private final AtomicLong rowsReceived = new AtomicLong();
+    // the time each update was published, by version modulo RATE_WINDOW
+    private final AtomicLongArray publishedNanos = new AtomicLongArray(RATE_WINDOW);
+    private volatile boolean running = true;
+    private volatile Thread runner;
+
+    /**
+     * The parameters after one update, never changed once published.
+     */
+    public static final class Snapshot {
+        private final float[] weights;
+        private final float bias;
+        private final long version;
+        private final long rows;
+        private final long publishedNanos;
+
+        Snapshot(float[] weights, float bias, long version, long rows) {
+            this.weights = weights;
+            this.bias = bias;
+            this.version = version;
+            this.rows = rows;
+            publishedNanos = System.nanoTime();
+        }
+
+        public float predict(float[] x) {
+            if (x.length != weights.length) {
+                throw new IllegalArgumentException("expected " + weights.length + " features, got " + x.length);
+            }
+            float y = bias;
+            for (int j = 0; j < weights.length; j++) {
+                y += x[j] * weights[j];
+            }
+            return y;
+        }
+
+        public float[] getWeights() {
+            return weights.clone();
+        }
+
+        public float getBias() {
+            return bias;
+        }
+
+        /**
+         * The number of updates before this snapshot, 0 for the initial parameters.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * The rows trained on before this snapshot.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        public long getPublishedNanos() {
+            return publishedNanos;
+        }
+    }
+
+    public OnlineTrainer(int numFeatures, float lr, int batchSize, long maxWaitMillis) {
+        this.numFeatures = numFeatures;
+        this.batchSize = batchSize;
+        maxWaitNanos = maxWaitMillis * 1_000_000;
+        model = LinearRegressionUsingDLJ.newModel();
+        DefaultTrainingConfig config = new DefaultTrainingConfig(Loss.l2Loss())
+                .optOptimizer(Optimizer.sgd().setLearningRateTracker(Tracker.fixed(lr)).build());
+        trainer = model.newTrainer(config);
+        trainer.initialize(new Shape(batchSize, numFeatures));
+        snapshot = new AtomicReference<>(copyParameters(0, 0));
+    }
+
+    /**
+     * The parameters of the latest update, safe to call from any thread.
+     */
+    public Snapshot snapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Trains on the stream on the calling thread until it ends or the trainer is closed.
+     */
+    public void run(RowStream stream) throws IOException, InterruptedException {
+        if (stream.numFeatures() != numFeatures) {
+            throw new IllegalArgumentException("the stream has " + stream.numFeatures() + " features, not "
+                    + numFeatures);
+        }
+        runner = Thread.currentThread();
+        float[] x = new float[batchSize * numFeatures];
+        float[] y = new float[batchSize];
+        long version = snapshot.get().getVersion();
+        long rows = snapshot.get().getRows();
+        while (running) {
+            // the first row of a batch waits as long as it takes, the rest at most maxWaitNanos after it
+            int size = stream.read(x, y, 0, batchSize, maxWaitNanos);
+            if (size < 0) {
+                break;
+            }
+            if (size == 0) {
+                continue;
+            }
+            long first = System.nanoTime();
+            while (size < batchSize) {
+                long left = maxWaitNanos - (System.nanoTime() - first);
+                if (left <= 0) {
+                    break;
+                }
+                int more = stream.read(x, y, size, batchSize - size, left);
+                if (more < 0) {
+                    break;
+                }
+                size += more;
+            }
+            rowsReceived.addAndGet(size);
+            train(x, y, size);
+            rows += size;
+            Snapshot next = copyParameters(++version, rows);
+            publishedNanos.set((int) (version % RATE_WINDOW), next.getPublishedNanos());
+            snapshot.set(next);
+        }
+    }
+
+    private void train(float[] x, float[] y, int size) {
+        NDManager manager = trainer.getManager().newSubManager();
+        NDArray features = manager.create(FloatBuffer.wrap(x, 0, size * numFeatures), new Shape(size, numFeatures));
+        NDArray labels = manager.create(FloatBuffer.wrap(y, 0, size), new Shape(size));
+        // closing the batch closes its manager and everything the step created on it
+        Batch batch = new Batch(manager, new NDList(features), new NDList(labels), size, Batchifier.STACK,
+                Batchifier.STACK, 0, 0);
+        EasyTrain.trainBatch(trainer, batch);
+        trainer.step();
+        batch.close();
+    }
+
+    private Snapshot copyParameters(long version, long rows) {
+        ParameterList parameters = model.getBlock().getParameters();
+        float[] weights = parameters.valueAt(0).getArray().toFloatArray();
+        float bias = parameters.valueAt(1).getArray().getFloat();
+        return new Snapshot(weights, bias, version, rows);
+    }
+
+    /**
+     * How long ago the parameters the readers see were published.
+     */
+    public long getSnapshotAge(TimeUnit unit) {
+        return unit.convert(System.nanoTime() - snapshot.get().getPublishedNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Rows that were received and are not in the parameters the readers see yet.
+     */
+    public long getRowsBehind() {
+        return rowsReceived.get() - snapshot.get().getRows();
+    }
+
+    /**
+     * Updates published in the last second, 0 once the stream has stalled for a second.
+     */
+    public double getUpdatesPerSecond() {
+        long now = System.nanoTime();
+        long version = snapshot.get().getVersion();
+        long oldest = Math.max(1, version - RATE_WINDOW + 1);
+        int count = 0;
+        long first = now;
+        for (long v = version; v >= oldest; v--) {
+            long published = publishedNanos.get((int) (v % RATE_WINDOW));
+            if (now - published >= 1_000_000_000) {
+                break;
+            }
+            count++;
+            first = published;
+        }
+        if (count == RATE_WINDOW) {
+            // all the kept updates are from the last second, the rate is taken over the time they span
+            return count * 1e9 / Math.max(1, now - first);
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        Snapshot current = snapshot.get();
+        return String.format(Locale.ROOT, "version %d, %d rows, %.0f updates/s, snapshot age %d us, %d rows behind",
+                current.getVersion(), current.getRows(), getUpdatesPerSecond(), getSnapshotAge(TimeUnit.MICROSECONDS),
+                getRowsBehind());
+    }
+
+    /**
+     * Stops {@link #run} after the current batch, then closes the trainer. The last snapshot stays readable.
+     */
+    @Override
+    public void close() {
+        running = false;
+        Thread current = runner;
+        try {
+            if (current != null && current != Thread.currentThread()) {
+                current.join();
+            }
+        } catch (InterruptedException e) {
+            // an interrupted caller stops waiting for the training thread and keeps its interrupt
+            Thread.currentThread().interrupt();
+        } finally {
+            trainer.close();
+            model.close();
+        }
+    }
+
+    // -Dsource=queue|file, -Dseconds (default 5), -Drate (default 1000) rows per second, -Dreaders (default 4)
+    // threads predicting all the time, the true weights drift every second and the published parameters follow them
+    public static void main(String[] args) throws Exception {
+        Engines.select();
+        String source = System.getProperty("source", "queue");
+        int seconds = Integer.getInteger("seconds", 5);
+        int numReaders = Integer.getInteger("readers", 4);
+        int rate = Integer.getInteger("rate", 1000);
+        float[] weights = {2, -3.4f};
+        float bias = 4.2f;
+
+        BlockingQueue<float[]> queue = new ArrayBlockingQueue<>(10_000);
+        Path file = Paths.get("../data/stream.csv");
+        RowStream stream;
+        if ("file".equals(source)) {
+            Files.createDirectories(file.getParent());
+            Files.write(file, "x1,x2,y\n".getBytes(StandardCharsets.UTF_8));
+            stream = RowStream.tail(file, weights.length);
+        } else {
+            stream = RowStream.of(queue, weights.length);
+        }
+
+        try (OnlineTrainer trainer = new OnlineTrainer(weights.length, 0.03f, 32, 5)) {
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            float[] truth = weights.clone();
+            Thread producer = new Thread(() -> {
+                Random random = new Random(42);
+                try (BufferedWriter writer = "file".equals(source)
+                        ? Files.newBufferedWriter(file, StandardOpenOption.APPEND) : null) {
+                    long producerStart = System.nanoTime();
+                    long nextDrift = producerStart + 1_000_000_000;
+                    for (long produced = 0; System.nanoTime() < end; produced++) {
+                        // no faster than the rate, the trainer keeps up instead of working through a backlog
+                        long due = producerStart + produced * 1_000_000_000L / rate;
+                        if (due > System.nanoTime()) {
+                            TimeUnit.NANOSECONDS.sleep(due - System.nanoTime());
+                        }
+                        if (System.nanoTime() > nextDrift) {
+                            truth[0] += 0.5f;
+                            nextDrift += 1_000_000_000;
+                        }
+                        float[] row = new float[truth.length + 1];
+                        float label = bias;
+                        for (int j = 0; j < truth.length; j++) {
+                            row[j] = (float) random.nextGaussian();
+                            label += row[j] * truth[j];
+                        }
+                        row[truth.length] = label + 0.01f * (float) random.nextGaussian();
+                        if (writer != null) {
+                            writer.write(row[0] + "," + row[1] + "," + row[2] + "\n");
+                            writer.flush();
+                        } else {
+                            queue.put(row);
+                        }
+                    }
+                    if (writer == null) {
+                        queue.put(new float[0]);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    logger.warn("the producer stopped", e);
+                }
+            }, "producer");
+
+            // readers check that versions never go back and count their predictions
+            AtomicLong predictions = new AtomicLong();
+            AtomicLong regressions = new AtomicLong();
+            List<Thread> readers = new ArrayList<>();
+            for (int r = 0; r < numReaders; r++) {
+                Thread reader = new Thread(() -> {
+                    float[] x = {1, 1};
+                    long lastVersion = -1;
+                    long count = 0;
+                    while (System.nanoTime() < end) {
+                        Snapshot current = trainer.snapshot();
+                        if (current.getVersion() < lastVersion) {
+                            regressions.incrementAndGet();
+                        }
+                        lastVersion = current.getVersion();
+                        current.predict(x);
+                        count++;
+                    }
+                    predictions.addAndGet(count);
+                }, "reader-" + r);
+                readers.add(reader);
+            }
+
+            Thread training = new Thread(() -> {
+                try {
+                    trainer.run(stream);
+                } catch (IOException | InterruptedException e) {
+                    logger.warn("the training stopped", e);
+                }
+            }, "online-training");
+            training.setDaemon(true);
+            producer.start();
+            training.start();
+            readers.forEach(Thread::start);
+
+            while (System.nanoTime() < end) {
+                TimeUnit.SECONDS.sleep(1);
+                Snapshot current = trainer.snapshot();
+                logger.info("{}, weights {} bias {} (true {} {})", trainer,
+                        Arrays.toString(current.getWeights()), current.getBias(), Arrays.toString(truth), bias);
+            }
+            producer.join();
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            if ("queue".equals(source)) {
+                training.join();
+            }
+            logger.info("{} predictions by {} readers, {} saw an older version after a newer one", predictions.get(),
+                    numReaders, regressions.get());
+            logger.info("{}, {} lines of the stream skipped", trainer, stream.getSkippedLines());
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package net.devk.regression;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.training.dataset.Batch;
+import ai.djl.translate.Batchifier;
+import ai.djl.translate.TranslateException;
+import ai.djl.util.NativeResource;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds the next batches on a background thread while the trainer works on the current one, instead of taking
+ * turns with it. Up to {@code depth} batches wait in a queue.
+ * <p>
+ * Both loops close a batch before they ask for the next one, the iterator relies on that: when {@code next()} is
+ * called the previous batch is done. With a {@link MappedDataset} the batches are copied into a fixed pool of
+ * NDArrays that is reused for the whole run, any other {@code Iterable<Batch>} (for example
+ * {@code trainer.iterateDataset(dataset)}) is only read ahead. The pool only pays off in the from-scratch loop,
+ * DJL's {@code EasyTrain} moves the batch arrays to a manager of its own and frees them with it.
+ * <p>
+ * Each pass runs on a producer thread of its own and only one pass runs at a time. A caller that leaves a pass
+ * before the end closes the iterable, which stops the producer and frees the batches it was holding.
+ * <p>
+ * {@link #getBlockedNanos()} is the time the trainer spent waiting for data, close to zero means the data loading is
+ * fully hidden behind the training steps.
+ */
+public class PrefetchingIterable implements Iterable<Batch>, AutoCloseable {
+
+    private static final Object END = new Object();
+
+    private final int depth;
+    private final BatchSource source;
+    private final MappedDataset mapped;
+    private final NDManager manager;
+
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    private final BlockingQueue<Slot> free;
+    private volatile boolean poolCreated;
+    private Pass pass;
+
+    /**
+     * Opens the batches of one pass over the data, DJL's iterables can only be iterated once.
+     */
+    @FunctionalInterface
+    public interface BatchSource {
+        Iterable<Batch> open() throws IOException, TranslateException;
+    }
+
+    private PrefetchingIterable(int depth, BatchSource source, MappedDataset mapped, NDManager manager) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be at least 1");
+        }
+        this.depth = depth;
+        this.source = source;
+        this.mapped = mapped;
+        this.manager = manager;
+        free = new ArrayBlockingQueue<>(depth + 2);
+    }
+
+    public static PrefetchingIterable of(BatchSource source, int depth) {
+        return new PrefetchingIterable(depth, source, null, null);
+    }
+
+    /**
+     * Batches of the dataset's sampler, written into NDArrays of {@code manager} that are allocated once and reused
+     * by every pass. Only one pass may run at a time.
+     */
+    public static PrefetchingIterable of(MappedDataset dataset, NDManager manager, int depth) {
+        return new PrefetchingIterable(depth, null, dataset, manager);
+    }
+
+    public long getBlockedNanos() {
+        return blockedNanos.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Starts a pass over the data, a pass that is still running is stopped first.
+     */
+    @Override
+    public synchronized Iterator<Batch> iterator() {
+        if (pass != null) {
+            pass.close();
+        }
+        pass = new Pass();
+        return pass;
+    }
+
+    /**
+     * Stops the running pass: the producer thread is interrupted and joined, the batches it built and the one the
+     * caller still holds are closed. A loop that may leave a pass early (an exception, a break) calls this, the next
+     * {@link #iterator()} does it too.
+     */
+    @Override
+    public synchronized void close() {
+        if (pass != null) {
+            pass.close();
+            pass = null;
+        }
+    }
+
+    private class Pass implements Iterator<Batch> {
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(depth);
+        // one permit for every batch the caller is done with
+        private final Semaphore finished = new Semaphore(0);
+        private final Thread thread;
+        private Object next;
+        private Slot current;
+        private Batch last;
+        private boolean handedOut;
+        private boolean closed;
+
+        Pass() {
+            thread = new Thread(() -> {
+                try {
+                    if (mapped != null) {
+                        produceMapped(queue);
+                    } else {
+                        produce(queue, finished);
+                    }
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException | TranslateException | RuntimeException | Error e) {
+                    try {
+                        queue.put(e);
+                    } catch (InterruptedException ignored) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "batch-prefetch");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (closed) {
+                return false;
+            }
+            if (next == null) {
+                // the caller is done with the previous batch, its arrays can be filled again
+                if (current != null) {
+                    free.add(current);
+                    current = null;
+                }
+                last = null;
+                if (handedOut) {
+                    finished.release();
+                    handedOut = false;
+                }
+                long start = System.nanoTime();
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                } finally {
+                    blockedNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+            if (next instanceof RuntimeException) {
+                throw (RuntimeException) next;
+            } else if (next instanceof Error) {
+                throw (Error) next;
+            } else if (next instanceof Exception) {
+                throw new IllegalStateException("failed to prefetch a batch", (Exception) next);
+            }
+            return next != END;
+        }
+
+        @Override
+        public Batch next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (next instanceof Slot) {
+                current = (Slot) next;
+                last = current.batch;
+            } else {
+                last = (Batch) next;
+            }
+            next = null;
+            handedOut = true;
+            batches.incrementAndGet();
+            return last;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // whatever the producer left behind goes back to the pool
+            if (last != null) {
+                closeBatch(last);
+                last = null;
+            }
+            if (current != null) {
+                free.add(current);
+                current = null;
+            }
+            if (next != null) {
+                release(next);
+                next = null;
+            }
+            for (Object item = queue.poll(); item != null; item = queue.poll()) {
+                release(item);
+            }
+        }
+
+        private void release(Object item) {
+            if (item instanceof Slot) {
+                closeBatch(((Slot) item).batch);
+                free.add((Slot) item);
+            } else if (item instanceof Batch) {
+                closeBatch((Batch) item);
+            }
+        }
+    }
+
+    private void produce(BlockingQueue<Object> queue, Semaphore finished) throws IOException, TranslateException {
+        try {
+            Iterator<Batch> iterator = source.open().iterator();
+            int produced = 0;
+            while (iterator.hasNext()) {
+                Batch batch = iterator.next();
+                try {
+                    queue.put(batch);
+                } catch (InterruptedException e) {
+                    batch.close();
+                    throw e;
+                }
+                produced++;
+                if (batch.getProgress() >= batch.getProgressTotal()) {
+                    // once DJL's iterator runs out it closes the manager of all its batches, the caller has to be
+                    // done with them before it is asked for more
+                    finished.acquire(produced);
+                    produced = 0;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // a pooled pair of full size batch arrays
+    private static class Slot {
+        final NDArray x;
+        final NDArray y;
+        Batch batch;
+
+        Slot(NDArray x, NDArray y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private void produceMapped(BlockingQueue<Object> queue) {
+        MappedDataset.Filler filler = mapped.newFiller();
+        int batchSize = mapped.getSampler().getBatchSize();
+        if (!poolCreated) {
+            // depth batches in the queue, one with the caller and one being filled
+            for (int i = 0; i < depth + 2; i++) {
+                free.add(new Slot(manager.create(filler.featureShape(batchSize), DataType.FLOAT32),
+                        manager.create(filler.labelShape(batchSize), DataType.FLOAT32)));
+            }
+            poolCreated = true;
+        }
+        try {
+            Iterator<List<Long>> sample = mapped.getSampler().sample(mapped);
+            while (sample.hasNext()) {
+                long[] indices = sample.next().stream().mapToLong(Long::longValue).toArray();
+                int size = indices.length;
+                Slot slot = size == batchSize ? free.take() : null;
+                if (slot == null || isReleased(slot.x) || isReleased(slot.y)) {
+                    // the last, smaller batch, or arrays some consumer moved to a manager of its own and closed
+                    slot = new Slot(manager.create(filler.featureShape(size), DataType.FLOAT32),
+                            manager.create(filler.labelShape(size), DataType.FLOAT32));
+                }
+                filler.fill(indices, slot.x, slot.y);
+                // closing the batch hands the pooled arrays back to the pool manager instead of freeing them,
+                // the smaller last batch is not pooled and dies with it
+                NDManager batchManager = manager.newSubManager();
+                if (size == batchSize) {
+                    slot.x.tempAttach(batchManager);
+                    slot.y.tempAttach(batchManager);
+                } else {
+                    slot.x.attach(batchManager);
+                    slot.y.attach(batchManager);
+                }
+                slot.batch = new Batch(batchManager, new NDList(slot.x), new NDList(slot.y), size,
+                        Batchifier.STACK, Batchifier.STACK, indices[0], mapped.size());
+                try {
+                    queue.put(size == batchSize ? slot : slot.batch);
+                } catch (InterruptedException e) {
+                    slot.batch.close();
+                    if (size == batchSize) {
+                        free.add(slot);
+                    }
+                    throw e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // a batch forgets its manager once it is closed, closing it twice fails
+    private static void closeBatch(Batch batch) {
+        if (batch.getManager() != null) {
+            batch.close();
+        }
+    }
+
+    private static boolean isReleased(NDArray array) {
+        return array instanceof NativeResource && ((NativeResource<?>) array).isReleased();
+    }
+}
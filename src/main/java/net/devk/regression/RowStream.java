@@ -0,0 +1,202 @@
+package net.devk.regression;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An unbounded source of rows for {@link OnlineTrainer}, rows arrive while it is being read and there is no last
+ * epoch. Unlike {@link DataChunks} a read waits a while for rows instead of ending the dataset when none are there.
+ */
+public interface RowStream extends AutoCloseable {
+
+    /**
+     * Reads up to {@code maxRows} rows into x (row-major) and y from row {@code offset} on, waiting at most
+     * {@code timeoutNanos} for the first.
+     *
+     * @return the number of rows read, 0 when none arrived in time, -1 once the stream has ended
+     */
+    int read(float[] x, float[] y, int offset, int maxRows, long timeoutNanos) throws IOException,
+            InterruptedException;
+
+    int numFeatures();
+
+    /**
+     * The lines that were read and dropped because they are not a row of numbers, 0 for a stream of arrays.
+     */
+    default long getSkippedLines() {
+        return 0;
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * Rows put on an in-process queue by another thread, each one its features followed by its label. An empty
+     * array ends the stream.
+     */
+    static RowStream of(BlockingQueue<float[]> queue, int numFeatures) {
+        return new RowStream() {
+            private boolean ended;
+
+            @Override
+            public int read(float[] x, float[] y, int offset, int maxRows, long timeoutNanos)
+                    throws InterruptedException {
+                if (ended) {
+                    return -1;
+                }
+                float[] row = queue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+                int rows = 0;
+                while (row != null) {
+                    if (row.length == 0) {
+                        ended = true;
+                        break;
+                    }
+                    if (row.length != numFeatures + 1) {
+                        throw new IllegalArgumentException("expected " + numFeatures + " features and a label, got "
+                                + row.length + " numbers");
+                    }
+                    System.arraycopy(row, 0, x, (offset + rows) * numFeatures, numFeatures);
+                    y[offset + rows++] = row[numFeatures];
+                    if (rows == maxRows) {
+                        break;
+                    }
+                    row = queue.poll();
+                }
+                return rows == 0 && ended ? -1 : rows;
+            }
+
+            @Override
+            public int numFeatures() {
+                return numFeatures;
+            }
+        };
+    }
+
+    /**
+     * Follows a CSV file that another process appends to, like {@code tail -f}: numbers only, the label in the last
+     * column, a first line that is not a number is taken as the header. Only complete lines are read, a line that is
+     * still being written waits for its newline. Any other line that is not a row of finite numbers is logged with its
+     * line number, counted in {@link #getSkippedLines()} and skipped. The stream does not end by itself.
+     */
+    static RowStream tail(Path file, int numFeatures) throws IOException {
+        return new TailingCsv(file, numFeatures);
+    }
+
+    final class TailingCsv implements RowStream {
+
+        private static final Logger logger = LoggerFactory.getLogger(TailingCsv.class);
+        private static final long POLL_NANOS = 10_000_000;
+
+        private final FileChannel channel;
+        private final int numFeatures;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private final StringBuilder line = new StringBuilder();
+        private long lineNumber;
+        private long skippedLines;
+
+        private TailingCsv(Path file, int numFeatures) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.numFeatures = numFeatures;
+            buffer.flip();
+        }
+
+        @Override
+        public int read(float[] x, float[] y, int offset, int maxRows, long timeoutNanos) throws IOException,
+                InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            int rows = 0;
+            while (rows < maxRows) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    int read = channel.read(buffer);
+                    buffer.flip();
+                    if (read <= 0) {
+                        // nothing new yet, return what there is or wait for the writer
+                        long left = deadline - System.nanoTime();
+                        if (rows > 0 || left <= 0) {
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.sleep(Math.min(POLL_NANOS, left));
+                        continue;
+                    }
+                }
+                // the numbers are ASCII
+                byte b = buffer.get();
+                if (b != '\n') {
+                    line.append((char) b);
+                    continue;
+                }
+                if (parse(x, y, offset + rows)) {
+                    rows++;
+                }
+                line.setLength(0);
+            }
+            return rows;
+        }
+
+        // false for the header, an empty line or a line that is not a row, which is skipped
+        private boolean parse(float[] x, float[] y, int row) {
+            lineNumber++;
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') {
+                line.setLength(--length);
+            }
+            if (length == 0) {
+                return false;
+            }
+            String[] fields = line.toString().split(",", -1);
+            if (fields.length != numFeatures + 1) {
+                return skip("expected " + numFeatures + " features and a label");
+            }
+            try {
+                for (int j = 0; j <= numFeatures; j++) {
+                    float value = Float.parseFloat(fields[j]);
+                    if (!Float.isFinite(value)) {
+                        return skip("not a finite number in column " + (j + 1));
+                    }
+                    if (j < numFeatures) {
+                        x[row * numFeatures + j] = value;
+                    } else {
+                        y[row] = value;
+                    }
+                }
+                return true;
+            } catch (NumberFormatException e) {
+                // a first line of names is the header
+                return lineNumber > 1 && skip("not a number");
+            }
+        }
+
+        // a line the writer got wrong does not stop the training, it is only left out
+        private boolean skip(String reason) {
+            skippedLines++;
+            logger.warn("line {} skipped, {}: {}", lineNumber, reason, line);
+            return false;
+        }
+
+        @Override
+        public long getSkippedLines() {
+            return skippedLines;
+        }
+
+        @Override
+        public int numFeatures() {
+            return numFeatures;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
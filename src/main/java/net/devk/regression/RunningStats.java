@@ -0,0 +1,67 @@
+package net.devk.regression;
+
+/**
+ * Mean and variance of a stream of values in one pass (Welford's algorithm), without the cancellation of
+ * {@code sum(x^2) / n - mean^2} when the variance is small compared to the mean.
+ * <p>
+ * Whole batches are merged with {@link #add(long, double, double)} (Chan et al.), so the values of a batch can be
+ * reduced by the engine and only three numbers per batch are copied back.
+ */
+public class RunningStats {
+
+    private long count;
+    private double mean;
+    // sum of the squared differences from the mean
+    private double m2;
+
+    public void add(double value) {
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+    }
+
+    /**
+     * Merges {@code count} values with the given mean and sum of squared differences from that mean.
+     */
+    public void add(long count, double mean, double m2) {
+        if (count == 0) {
+            return;
+        }
+        long total = this.count + count;
+        double delta = mean - this.mean;
+        this.mean += delta * count / total;
+        this.m2 += m2 + delta * delta * this.count * count / total;
+        this.count = total;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return count == 0 ? Double.NaN : mean;
+    }
+
+    /**
+     * @return the sample variance, {@code NaN} for less than two values
+     */
+    public double getVariance() {
+        return count < 2 ? Double.NaN : m2 / (count - 1);
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    public void reset() {
+        count = 0;
+        mean = 0;
+        m2 = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mean %f, std %f, n %d", getMean(), getStandardDeviation(), count);
+    }
+}
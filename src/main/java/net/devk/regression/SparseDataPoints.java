@@ -0,0 +1,114 @@
+package net.devk.regression;
+
+import java.util.Arrays;
+
+/**
+ * Examples whose features are mostly zero, one-hot encoded categories for instance, stored by row in compressed
+ * sparse row (CSR) form: the non-zero values of row {@code i} and their feature indices are at
+ * [{@code rowStart(i)}, {@code rowEnd(i)}) of {@link #getValues()} and {@link #getColumns()}. The memory is
+ * proportional to the number of non-zeros, not to rows times features.
+ * <p>
+ * Rows are appended with {@link #add(int, float)} and {@link #endRow(float)}, the arrays grow as needed and
+ * {@link #clear()} keeps them for the next chunk.
+ */
+public class SparseDataPoints {
+
+    private final int numFeatures;
+    private int rows;
+    private int[] rowPointers;
+    private int[] columns;
+    private float[] values;
+    private float[] labels;
+
+    public SparseDataPoints(int numFeatures, int expectedRows, int expectedNonZeros) {
+        this.numFeatures = numFeatures;
+        rowPointers = new int[Math.max(expectedRows, 1) + 1];
+        columns = new int[Math.max(expectedNonZeros, 1)];
+        values = new float[columns.length];
+        labels = new float[Math.max(expectedRows, 1)];
+    }
+
+    /**
+     * Adds a feature to the row being built, zeros are skipped.
+     */
+    public void add(int column, float value) {
+        if (column < 0 || column >= numFeatures) {
+            throw new IndexOutOfBoundsException("feature " + column + " of " + numFeatures);
+        }
+        if (value == 0) {
+            return;
+        }
+        int next = rowPointers[rows + 1];
+        if (next == columns.length) {
+            columns = Arrays.copyOf(columns, next * 2);
+            values = Arrays.copyOf(values, next * 2);
+        }
+        columns[next] = column;
+        values[next] = value;
+        rowPointers[rows + 1] = next + 1;
+    }
+
+    /**
+     * Ends the row being built and starts the next one.
+     */
+    public void endRow(float label) {
+        if (rows + 2 == rowPointers.length) {
+            rowPointers = Arrays.copyOf(rowPointers, rowPointers.length * 2);
+            // one label per row, the row pointers have one more entry
+            labels = Arrays.copyOf(labels, rowPointers.length - 1);
+        }
+        labels[rows] = label;
+        rows++;
+        rowPointers[rows + 1] = rowPointers[rows];
+    }
+
+    public void clear() {
+        rows = 0;
+        rowPointers[1] = 0;
+    }
+
+    public int numRows() {
+        return rows;
+    }
+
+    public int numFeatures() {
+        return numFeatures;
+    }
+
+    public int nonZeros() {
+        return rowPointers[rows];
+    }
+
+    public int rowStart(int row) {
+        return rowPointers[row];
+    }
+
+    public int rowEnd(int row) {
+        return rowPointers[row + 1];
+    }
+
+    public int[] getColumns() {
+        return columns;
+    }
+
+    public float[] getValues() {
+        return values;
+    }
+
+    public float[] getLabels() {
+        return labels;
+    }
+
+    /**
+     * The rows as one row-major array of {@code numRows() * numFeatures()} floats, for the dense code paths.
+     */
+    public float[] toDense() {
+        float[] dense = new float[Math.multiplyExact(rows, numFeatures)];
+        for (int i = 0; i < rows; i++) {
+            for (int k = rowPointers[i]; k < rowPointers[i + 1]; k++) {
+                dense[i * numFeatures + columns[k]] = values[k];
+            }
+        }
+        return dense;
+    }
+}
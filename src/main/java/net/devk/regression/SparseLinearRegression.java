@@ -0,0 +1,130 @@
+package net.devk.regression;
+
+import net.devk.CsvChunkReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Linear regression on categorical data: a CSV file with a user, an item and a country column, tens of thousands of
+ * distinct values together, and one numeric column. {@link CsvChunkReader} one-hot encodes it into
+ * {@link SparseDataPoints}, 4 non-zeros per row instead of a row as wide as all the levels, and
+ * {@link SparseTrainingStep} trains on that.
+ * <p>
+ * {@code -Drows} (default 200000), {@code -DnumEpochs} (default 5), {@code -Dlr} (default 0.5). {@code -Ddense=true}
+ * also times the dense {@link ArrayTrainingStep} on the first batches, the whole file would not fit dense.
+ */
+public class SparseLinearRegression {
+
+    private static final Logger logger = LoggerFactory.getLogger(SparseLinearRegression.class);
+
+    private static final int USERS = 20_000;
+    private static final int ITEMS = 5_000;
+    private static final int COUNTRIES = 100;
+
+    public static void main(String[] args) throws IOException {
+        int rows = Integer.getInteger("rows", 200_000);
+        int numEpochs = Integer.getInteger("numEpochs", 5);
+        float lr = Float.parseFloat(System.getProperty("lr", "0.5"));
+        int batchSize = 100;
+
+        Path file = Paths.get("../data/categorical.csv");
+        Files.createDirectories(file.getParent());
+        write(file, rows, 42);
+
+        SparseDataPoints data;
+        long start = System.nanoTime();
+        try (CsvChunkReader reader = CsvChunkReader.open(file, "price", 10_000)) {
+            data = new SparseDataPoints(reader.numFeatures(), rows, rows * 4);
+            while (reader.nextSparseChunk(data) > 0) {
+                logger.debug("{} rows read", data.numRows());
+            }
+        }
+        long width = data.numFeatures();
+        logger.info("{} rows of {} features read in {} ms, {} non-zeros ({} MB) instead of {} MB dense",
+                data.numRows(), width, (System.nanoTime() - start) / 1_000_000, data.nonZeros(),
+                data.nonZeros() * 8L / (1 << 20), data.numRows() * width * 4 / (1 << 20));
+
+        SparseTrainingStep step = new SparseTrainingStep(new float[data.numFeatures()], 0, lr, batchSize);
+        for (int epoch = 0; epoch < numEpochs; epoch++) {
+            start = System.nanoTime();
+            double loss = 0;
+            for (int from = 0; from < data.numRows(); from += batchSize) {
+                loss += step.step(data, from, Math.min(batchSize, data.numRows() - from));
+            }
+            long nanos = System.nanoTime() - start;
+            logger.info("epoch {}, loss {}, {} us per step", epoch + 1, loss / data.numRows(),
+                    nanos / 1000 / ((data.numRows() + batchSize - 1) / batchSize));
+        }
+
+        if (Boolean.getBoolean("dense")) {
+            // the same rows, as wide as all the levels
+            int denseRows = Math.min(data.numRows(), 10 * batchSize);
+            SparseDataPoints head = new SparseDataPoints(data.numFeatures(), denseRows, denseRows * 4);
+            for (int i = 0; i < denseRows; i++) {
+                for (int k = data.rowStart(i); k < data.rowEnd(i); k++) {
+                    head.add(data.getColumns()[k], data.getValues()[k]);
+                }
+                head.endRow(data.getLabels()[i]);
+            }
+            float[] x = head.toDense();
+            float[] y = Arrays.copyOf(head.getLabels(), denseRows);
+            ArrayTrainingStep dense = new ArrayTrainingStep(new float[data.numFeatures()], 0, lr, batchSize);
+            SparseTrainingStep sparse = new SparseTrainingStep(new float[data.numFeatures()], 0, lr, batchSize);
+            long denseNanos = 0;
+            long sparseNanos = 0;
+            for (int from = 0; from < denseRows; from += batchSize) {
+                long t0 = System.nanoTime();
+                dense.step(x, y, from, batchSize);
+                long t1 = System.nanoTime();
+                sparse.step(head, from, batchSize);
+                sparseNanos += System.nanoTime() - t1;
+                denseNanos += t1 - t0;
+            }
+            int steps = denseRows / batchSize;
+            // the same sgd steps, only the order of the sums differs
+            float difference = Math.abs(dense.getBias() - sparse.getBias());
+            for (int j = 0; j < data.numFeatures(); j++) {
+                difference = Math.max(difference, Math.abs(dense.getWeights()[j] - sparse.getWeights()[j]));
+            }
+            logger.info("dense {} us per step, sparse {} us per step on the first {} rows, largest difference {}",
+                    denseNanos / 1000 / steps, sparseNanos / 1000 / steps, denseRows, difference);
+        }
+    }
+
+    // price = user + item + country effects + 3 * discount + noise
+    static void write(Path file, int rows, long seed) throws IOException {
+        Random random = new Random(seed);
+        float[] users = effects(random, USERS);
+        float[] items = effects(random, ITEMS);
+        float[] countries = effects(random, COUNTRIES);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("user,item,country,discount,price\n");
+            for (int i = 0; i < rows; i++) {
+                int user = random.nextInt(USERS);
+                int item = random.nextInt(ITEMS);
+                int country = random.nextInt(COUNTRIES);
+                float discount = random.nextFloat();
+                float price = users[user] + items[item] + countries[country] + 3 * discount
+                        + 0.01f * (float) random.nextGaussian();
+                writer.write("u" + user + ",i" + item + ",c" + country + "," + discount + "," + price + "\n");
+            }
+        }
+    }
+
+    private static float[] effects(Random random, int levels) {
+        float[] effects = new float[levels];
+        for (int i = 0; i < levels; i++) {
+            effects[i] = (float) random.nextGaussian();
+        }
+        return effects;
+    }
+}
@@ -0,0 +1,104 @@
+package net.devk.regression;
+
+/**
+ * The minibatch step of {@link ArrayTrainingStep} on {@link SparseDataPoints}: the forward pass, the gradient and the
+ * update only visit the non-zero features of the rows of the batch, so a step costs the number of non-zeros of the
+ * batch and not rows times features.
+ * <p>
+ * A zero feature adds nothing to the prediction and has a zero gradient, the weights of the features a batch does not
+ * use keep their value, the same as with a dense sgd step. The gradient is summed in one array as wide as the
+ * weights, the features a batch touched are remembered and only those are updated and cleared again.
+ */
+public class SparseTrainingStep {
+
+    private final float lr;
+    private final int batchSize;
+    private final float[] weights;
+    private float bias;
+
+    // reused between steps
+    private float[] residuals = new float[0];
+    private final float[] weightGradient;
+    private final boolean[] isTouched;
+    private final int[] touched;
+    private int numTouched;
+
+    public SparseTrainingStep(float[] weights, float bias, float lr, int batchSize) {
+        this.weights = weights.clone();
+        this.bias = bias;
+        this.lr = lr;
+        this.batchSize = batchSize;
+        weightGradient = new float[weights.length];
+        isTouched = new boolean[weights.length];
+        touched = new int[weights.length];
+    }
+
+    /**
+     * Trains on rows [from, from + rows) of {@code data}.
+     *
+     * @return the summed squared loss of the rows, before the update
+     */
+    public float step(SparseDataPoints data, int from, int rows) {
+        if (data.numFeatures() != weights.length) {
+            throw new IllegalArgumentException("the data has " + data.numFeatures() + " features, not "
+                    + weights.length);
+        }
+        if (residuals.length < rows) {
+            residuals = new float[rows];
+        }
+        float[] r = residuals;
+        float[] w = weights;
+        int[] columns = data.getColumns();
+        float[] values = data.getValues();
+        float[] y = data.getLabels();
+
+        // forward: r = Xw + b - y over the non-zeros of each row
+        float loss = 0;
+        float biasGradient = 0;
+        for (int i = 0; i < rows; i++) {
+            int row = from + i;
+            float dot = 0;
+            for (int k = data.rowStart(row); k < data.rowEnd(row); k++) {
+                dot += values[k] * w[columns[k]];
+            }
+            r[i] = dot + bias - y[row];
+            loss += r[i] * r[i];
+            biasGradient += r[i];
+        }
+
+        // gradient: r times the input, only where the input is not zero
+        float[] g = weightGradient;
+        for (int i = 0; i < rows; i++) {
+            int row = from + i;
+            float ri = r[i];
+            for (int k = data.rowStart(row); k < data.rowEnd(row); k++) {
+                int column = columns[k];
+                if (!isTouched[column]) {
+                    isTouched[column] = true;
+                    touched[numTouched++] = column;
+                }
+                g[column] += ri * values[k];
+            }
+        }
+
+        // the same update as LinearRegressionFromScratch.sgd, for the features of the batch
+        float scale = lr / batchSize;
+        for (int t = 0; t < numTouched; t++) {
+            int column = touched[t];
+            w[column] -= scale * g[column];
+            g[column] = 0;
+            isTouched[column] = false;
+        }
+        numTouched = 0;
+        bias -= scale * biasGradient;
+        return loss / 2;
+    }
+
+    public float[] getWeights() {
+        return weights;
+    }
+
+    public float getBias() {
+        return bias;
+    }
+}
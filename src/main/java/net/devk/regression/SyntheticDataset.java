@@ -0,0 +1,393 @@
+package net.devk.regression;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.dataset.ArrayDataset;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.dataset.RandomAccessDataset;
+import ai.djl.training.dataset.Record;
+import ai.djl.util.Progress;
+import net.devk.Engines;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The data of {@link DataPoints#syntheticData}, y = Xw + bias + noise, generated lazily: a batch is created when it
+ * is read and nothing is kept, so the number of rows is only limited by the patience of the trainer.
+ * <p>
+ * Every random number is a hash of the seed and its position in the dataset (a counter based generator), not the
+ * next value of a stream. Row {@code i} is therefore the same whichever batch, chunk or thread creates it, and large
+ * batches are split between threads without changing a single value.
+ * <p>
+ * Sub datasets, for example the parts of {@link #randomSplit(int...)}, are views that only keep the row numbers they
+ * are made of and generate the same rows as the dataset they come from.
+ */
+public class SyntheticDataset extends ArrayDataset implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SyntheticDataset.class);
+
+    // rows below this are not worth handing to another thread
+    private static final int MIN_ROWS_PER_TASK = 4096;
+
+    private final float[] weights;
+    private final float bias;
+    private final float noise;
+    private final long seed;
+    private final long rows;
+    private final int numThreads;
+    private final ExecutorService executor;
+    // the rows of the whole sequence a sub dataset is made of, null for all of them in order
+    private final long[] sourceRows;
+
+    protected SyntheticDataset(Builder builder) {
+        super(builder);
+        weights = builder.weights.clone();
+        bias = builder.bias;
+        noise = builder.noise;
+        seed = builder.seed;
+        rows = builder.numExamples;
+        numThreads = builder.numThreads;
+        executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads, runnable -> {
+            Thread thread = new Thread(runnable, "synthetic-data");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        sourceRows = null;
+    }
+
+    // the executor stays with the dataset the view comes from, so does closing it
+    private SyntheticDataset(SyntheticDataset parent, long[] sourceRows) {
+        super(new Builder().setSampling(parent.sampler)
+                .optDataBatchifier(parent.dataBatchifier)
+                .optLabelBatchifier(parent.labelBatchifier)
+                .optPipeline(parent.pipeline)
+                .optTargetPipeline(parent.targetPipeline)
+                .optPrefetchNumber(parent.prefetchNumber)
+                .optDevice(parent.device));
+        weights = parent.weights;
+        bias = parent.bias;
+        noise = parent.noise;
+        seed = parent.seed;
+        rows = sourceRows.length;
+        numThreads = parent.numThreads;
+        executor = parent.executor;
+        this.sourceRows = sourceRows;
+    }
+
+    private long sourceRow(long index) {
+        return sourceRows == null ? index : sourceRows[Math.toIntExact(index)];
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int getNumFeatures() {
+        return weights.length;
+    }
+
+    @Override
+    protected long availableSize() {
+        return rows;
+    }
+
+    /**
+     * Writes rows [from, from + count) into x (row-major) and y, single threaded.
+     */
+    public static void fill(float[] weights, float bias, float noise, long seed, long from, int count, float[] x,
+                            int xOffset, float[] y, int yOffset) {
+        int numFeatures = weights.length;
+        // every row uses numFeatures + 1 normal numbers, the last one is its noise
+        for (int r = 0; r < count; r++) {
+            long counter = (from + r) * (numFeatures + 1);
+            float label = bias;
+            for (int j = 0; j < numFeatures; j++) {
+                float value = (float) gaussian(seed, counter + j);
+                x[xOffset + r * numFeatures + j] = value;
+                label += value * weights[j];
+            }
+            y[yOffset + r] = label + noise * (float) gaussian(seed, counter + numFeatures);
+        }
+    }
+
+    // Box-Muller from two uniforms that only depend on the seed and the counter
+    private static double gaussian(long seed, long counter) {
+        double u1 = uniform(mix(seed + 0x9E3779B97F4A7C15L * (2 * counter + 1)));
+        double u2 = uniform(mix(seed + 0x9E3779B97F4A7C15L * (2 * counter + 2)));
+        return Math.sqrt(-2 * Math.log(u1)) * Math.cos(2 * Math.PI * u2);
+    }
+
+    // the finalizer of SplittableRandom (splitmix64)
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // in (0, 1], log(0) is not a number
+    private static double uniform(long bits) {
+        return ((bits >>> 11) + 1) * 0x1.0p-53;
+    }
+
+    private void fillRange(long from, int count, float[] x, float[] y) {
+        int tasks = executor == null ? 1 : Math.min(numThreads, Math.max(1, count / MIN_ROWS_PER_TASK));
+        if (tasks == 1) {
+            fill(weights, bias, noise, seed, from, count, x, 0, y, 0);
+            return;
+        }
+        int perTask = (count + tasks - 1) / tasks;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int start = 0; start < count; start += perTask) {
+            int offset = start;
+            int length = Math.min(perTask, count - start);
+            futures.add(executor.submit(() -> fill(weights, bias, noise, seed, from + offset, length, x,
+                    offset * weights.length, y, offset)));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("failed to generate rows", e.getCause());
+        }
+    }
+
+    /**
+     * Rows [from, from + count) as {@link DataPoints}, the labels are a vector like the ones of
+     * {@link DataPoints#syntheticData}.
+     */
+    public DataPoints generate(NDManager manager, long from, int count) {
+        float[] x = new float[count * weights.length];
+        float[] y = new float[count];
+        if (sourceRows == null) {
+            fillRange(from, count, x, y);
+        } else {
+            for (int i = 0; i < count; i++) {
+                fill(weights, bias, noise, seed, sourceRows[Math.toIntExact(from + i)], 1, x, i * weights.length, y,
+                        i);
+            }
+        }
+        return new DataPoints(manager.create(x, new Shape(count, weights.length)), manager.create(y));
+    }
+
+    @Override
+    public Record get(NDManager manager, long index) {
+        DataPoints row = generate(manager, index, 1);
+        return new Record(new NDList(row.getX().reshape(weights.length)), new NDList(row.getY().reshape()));
+    }
+
+    @Override
+    public Batch getByRange(NDManager manager, long fromIndex, long toIndex) {
+        int size = Math.toIntExact(toIndex - fromIndex);
+        DataPoints batch = generate(manager, fromIndex, size);
+        return new Batch(manager, new NDList(batch.getX()), new NDList(batch.getY()), size, dataBatchifier,
+                labelBatchifier, fromIndex, rows);
+    }
+
+    @Override
+    public Batch getByIndices(NDManager manager, long... indices) {
+        int size = indices.length;
+        float[] x = new float[size * weights.length];
+        float[] y = new float[size];
+        for (int i = 0; i < size; i++) {
+            fill(weights, bias, noise, seed, sourceRow(indices[i]), 1, x, i * weights.length, y, i);
+        }
+        NDArray features = manager.create(x, new Shape(size, weights.length));
+        return new Batch(manager, new NDList(features), new NDList(manager.create(y)), size, dataBatchifier,
+                labelBatchifier, 0, rows);
+    }
+
+    /**
+     * Reads the whole dataset in order, {@code chunkSize} rows at a time.
+     */
+    public DataChunks chunks(int chunkSize) {
+        return new DataChunks() {
+            private long next;
+
+            @Override
+            public DataPoints nextChunk(NDManager manager) {
+                if (next >= rows) {
+                    return null;
+                }
+                int count = (int) Math.min(chunkSize, rows - next);
+                DataPoints chunk = generate(manager, next, count);
+                next += count;
+                return chunk;
+            }
+
+            @Override
+            public int numFeatures() {
+                return weights.length;
+            }
+        };
+    }
+
+    /**
+     * Stores the dataset in the format of {@link MappedDataset}, one chunk in memory at a time.
+     *
+     * @return the number of rows written
+     */
+    public long write(Path file, int chunkSize) throws IOException {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            return MappedDataset.write(file, manager, chunks(chunkSize));
+        }
+    }
+
+    @Override
+    protected RandomAccessDataset newSubDataset(int[] indices, int from, int to) {
+        long[] selected = new long[to - from];
+        for (int i = 0; i < selected.length; i++) {
+            selected[i] = sourceRow(indices[from + i]);
+        }
+        return new SyntheticDataset(this, selected);
+    }
+
+    @Override
+    protected RandomAccessDataset newSubDataset(List<Long> subIndices) {
+        return new SyntheticDataset(this, subIndices.stream().mapToLong(this::sourceRow).toArray());
+    }
+
+    @Override
+    public void prepare(Progress progress) {
+    }
+
+    @Override
+    public void close() {
+        if (executor != null && sourceRows == null) {
+            executor.shutdown();
+        }
+    }
+
+    public static final class Builder extends BaseBuilder<Builder> {
+
+        private float[] weights;
+        private float bias;
+        private float noise = 0.01f;
+        private long seed;
+        private long numExamples;
+        private int numThreads = 1;
+
+        public Builder setWeights(float[] weights, float bias) {
+            this.weights = weights;
+            this.bias = bias;
+            return this;
+        }
+
+        public Builder setNumExamples(long numExamples) {
+            this.numExamples = numExamples;
+            return this;
+        }
+
+        /**
+         * Standard deviation of the noise added to the labels, 0.01 like {@link DataPoints#syntheticData}.
+         */
+        public Builder optNoise(float noise) {
+            this.noise = noise;
+            return this;
+        }
+
+        public Builder optSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder optNumThreads(int numThreads) {
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        @Override
+        protected Builder self() {
+            return this;
+        }
+
+        public SyntheticDataset build() {
+            if (weights == null) {
+                throw new IllegalArgumentException("weights are required");
+            }
+            if (numThreads < 1) {
+                throw new IllegalArgumentException("numThreads must be at least 1");
+            }
+            return new SyntheticDataset(this);
+        }
+    }
+
+    // -Drows=<n> rows, -Dfile=<path> also writes them in the MappedDataset format
+    public static void main(String[] args) throws IOException {
+        Engines.select();
+        float[] weights = new float[]{2, -3.4f};
+        float bias = 4.2f;
+        long numExamples = Long.getLong("rows", 10_000_000L);
+        int chunkSize = 1 << 20;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        try (SyntheticDataset single = builder().setWeights(weights, bias).setNumExamples(numExamples)
+                .optSeed(42).setSampling(chunkSize, false).build();
+             SyntheticDataset parallel = builder().setWeights(weights, bias).setNumExamples(numExamples)
+                     .optSeed(42).optNumThreads(cores).setSampling(chunkSize, false).build();
+             NDManager manager = NDManager.newBaseManager()) {
+
+            // same seed, different chunks and threads, the rows have to be the same
+            int sampleRows = 100_000;
+            long from = numExamples / 2;
+            float[] a;
+            float[] b;
+            try (NDManager sampleManager = manager.newSubManager()) {
+                a = single.generate(sampleManager, from, sampleRows).getY().toFloatArray();
+                DataPoints first = parallel.generate(sampleManager, from, sampleRows / 3);
+                DataPoints second = parallel.generate(sampleManager, from + sampleRows / 3, sampleRows - sampleRows / 3);
+                b = first.getY().concat(second.getY()).toFloatArray();
+            }
+            logger.info("rows {} to {} identical with 1 and {} threads: {}", from, from + sampleRows, cores,
+                    Arrays.equals(a, b));
+
+            for (SyntheticDataset dataset : Arrays.asList(single, parallel)) {
+                DataChunks chunks = dataset.chunks(chunkSize);
+                long start = System.nanoTime();
+                long generated = 0;
+                double sum = 0;
+                while (true) {
+                    try (NDManager chunkManager = manager.newSubManager()) {
+                        DataPoints chunk = chunks.nextChunk(chunkManager);
+                        if (chunk == null) {
+                            break;
+                        }
+                        generated += chunk.getY().size();
+                        sum += chunk.getY().sum().getFloat();
+                    }
+                }
+                long nanos = System.nanoTime() - start;
+                logger.info("{} threads: {} rows in {} ms, {} rows/s, mean label {}", dataset.numThreads, generated,
+                        nanos / 1_000_000, String.format("%.0f", generated * 1e9 / nanos), sum / generated);
+            }
+
+            String file = System.getProperty("file");
+            if (file != null) {
+                Path path = Paths.get(file);
+                if (path.toAbsolutePath().getParent() != null) {
+                    Files.createDirectories(path.toAbsolutePath().getParent());
+                }
+                long start = System.nanoTime();
+                long written = parallel.write(path, chunkSize);
+                logger.info("wrote {} rows to {} in {} ms", written, path, (System.nanoTime() - start) / 1_000_000);
+            }
+        }
+    }
+}
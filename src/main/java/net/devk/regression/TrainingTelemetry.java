@@ -0,0 +1,319 @@
+package net.devk.regression;
+
+import ai.djl.metric.Metrics;
+import ai.djl.ndarray.BaseNDManager;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Step latency, throughput, the time spent in forward, backward and the parameter update, and the live NDArrays of
+ * some managers, for both regression trainers.
+ * <p>
+ * Recording a step costs a few {@code System.nanoTime()} calls and array increments: latencies go into a fixed
+ * log-linear histogram (8 buckets per power of two, so a percentile is off by at most 12.5%) instead of a list, and
+ * the managers are only walked when the numbers are exported. Every {@code exportIntervalMillis} the snapshot is
+ * written to {@code telemetry.json} and {@code telemetry.prom} (Prometheus text format, for the node exporter's
+ * textfile collector) in the export directory, each replaced atomically.
+ * <p>
+ * The engine runs operations asynchronously, a phase measures until its operations were queued and the engine
+ * catches up whenever a value is copied back, so only the step latency is exact.
+ * <p>
+ * Meant to be used from the training thread, it is not thread safe.
+ */
+public class TrainingTelemetry implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrainingTelemetry.class);
+
+    public enum Phase {
+        FORWARD, BACKWARD, UPDATE
+    }
+
+    private final Path directory;
+    private final long exportIntervalNanos;
+    private final Map<String, NDManager> managers = new LinkedHashMap<>();
+
+    private final LatencyHistogram stepLatency = new LatencyHistogram();
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private final long start = System.nanoTime();
+    private long examples;
+    private long stepStart;
+    private long mark;
+    private long lastExport;
+    private long lastExportExamples;
+    private double recentExamplesPerSecond;
+
+    // log-linear buckets: values below 8 are exact, then 8 buckets per power of two
+    static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final long[] counts = new long[SUB_BUCKETS * (64 - SUB_BUCKET_BITS) + SUB_BUCKETS];
+        private long count;
+        private long sum;
+        private long max;
+
+        void record(long value) {
+            counts[index(Math.max(value, 0))]++;
+            count++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BUCKET_BITS;
+            return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        // the largest value of the bucket
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+            long lower = (long) (SUB_BUCKETS | (index & (SUB_BUCKETS - 1))) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(rank, 1)) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getSum() {
+            return sum;
+        }
+
+        long getMax() {
+            return max;
+        }
+    }
+
+    /**
+     * @param directory where the snapshots are written, {@code null} only keeps the numbers in memory
+     */
+    public TrainingTelemetry(Path directory, long exportIntervalMillis) {
+        this.directory = directory;
+        exportIntervalNanos = exportIntervalMillis * 1_000_000;
+        lastExport = start;
+    }
+
+    /**
+     * Reports the live NDArrays of the manager and its sub managers under the given name.
+     */
+    public void register(String name, NDManager manager) {
+        managers.put(name, manager);
+    }
+
+    public void beginStep() {
+        stepStart = System.nanoTime();
+        mark = stepStart;
+    }
+
+    /**
+     * Ends the phase that started with the step or with the previous phase.
+     */
+    public void endPhase(Phase phase) {
+        long now = System.nanoTime();
+        recordPhase(phase, now - mark);
+        mark = now;
+    }
+
+    public void recordPhase(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()] += nanos;
+    }
+
+    public void endStep(long batchExamples) {
+        long now = System.nanoTime();
+        stepLatency.record(now - stepStart);
+        examples += batchExamples;
+        if (directory != null && now - lastExport >= exportIntervalNanos) {
+            export();
+        }
+    }
+
+    /**
+     * Metrics for {@code Trainer.setMetrics}: DJL's forward, backward and step timings are added to the phases as
+     * they arrive instead of being kept in a list that grows with every batch, everything else is kept as usual.
+     */
+    public Metrics newMetrics() {
+        return new Metrics() {
+            @Override
+            public void addMetric(String metricName, Number value) {
+                switch (metricName) {
+                    case "forward":
+                        recordPhase(Phase.FORWARD, value.longValue());
+                        break;
+                    case "backward":
+                        recordPhase(Phase.BACKWARD, value.longValue());
+                        break;
+                    case "step":
+                        recordPhase(Phase.UPDATE, value.longValue());
+                        break;
+                    default:
+                        super.addMetric(metricName, value);
+                }
+            }
+        };
+    }
+
+    public long getExamples() {
+        return examples;
+    }
+
+    public double getExamplesPerSecond() {
+        return examples * 1e9 / Math.max(System.nanoTime() - start, 1);
+    }
+
+    public long getStepLatencyPercentile(double percentile) {
+        return stepLatency.percentile(percentile);
+    }
+
+    public long getMaxStepLatency() {
+        return stepLatency.getMax();
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * Writes the current snapshot now, even when the interval has not passed yet.
+     */
+    public void export() {
+        long now = System.nanoTime();
+        recentExamplesPerSecond = (examples - lastExportExamples) * 1e9 / Math.max(now - lastExport, 1);
+        lastExport = now;
+        lastExportExamples = examples;
+        Map<String, long[]> memory = new LinkedHashMap<>();
+        managers.forEach((name, manager) -> memory.put(name, liveArraysAndBytes(manager)));
+        try {
+            Files.createDirectories(directory);
+            write(directory.resolve("telemetry.json"), toJson(memory));
+            write(directory.resolve("telemetry.prom"), toPrometheus(memory));
+        } catch (IOException e) {
+            // telemetry must not stop the training
+            logger.warn("failed to export telemetry to {}", directory, e);
+        }
+    }
+
+    private static long[] liveArraysAndBytes(NDManager manager) {
+        long arrays = 0;
+        long bytes = 0;
+        if (manager.isOpen()) {
+            for (NDArray array : ((BaseNDManager) manager).getManagedArrays()) {
+                arrays++;
+                bytes += array.getShape().size() * array.getDataType().getNumOfBytes();
+            }
+        }
+        return new long[]{arrays, bytes};
+    }
+
+    private String toJson(Map<String, long[]> memory) {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append(String.format(Locale.ROOT, "  \"uptimeSeconds\": %.3f,%n", (System.nanoTime() - start) / 1e9));
+        json.append(String.format(Locale.ROOT, "  \"steps\": %d,%n", stepLatency.getCount()));
+        json.append(String.format(Locale.ROOT, "  \"examples\": %d,%n", examples));
+        json.append(String.format(Locale.ROOT, "  \"examplesPerSecond\": %.1f,%n", getExamplesPerSecond()));
+        json.append(String.format(Locale.ROOT, "  \"recentExamplesPerSecond\": %.1f,%n", recentExamplesPerSecond));
+        json.append(String.format(Locale.ROOT, "  \"stepLatencyMicros\": {\"p50\": %.1f, \"p99\": %.1f, \"max\": %.1f},%n",
+                stepLatency.percentile(50) / 1e3, stepLatency.percentile(99) / 1e3, stepLatency.getMax() / 1e3));
+        json.append("  \"phaseSeconds\": {");
+        for (Phase phase : Phase.values()) {
+            json.append(String.format(Locale.ROOT, "%s\"%s\": %.6f", phase.ordinal() == 0 ? "" : ", ",
+                    phase.name().toLowerCase(Locale.ROOT), phaseNanos[phase.ordinal()] / 1e9));
+        }
+        json.append("},\n  \"managers\": {");
+        String separator = "";
+        for (Map.Entry<String, long[]> entry : memory.entrySet()) {
+            json.append(String.format(Locale.ROOT, "%s\"%s\": {\"arrays\": %d, \"bytes\": %d}", separator,
+                    entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+            separator = ", ";
+        }
+        return json.append("}\n}\n").toString();
+    }
+
+    private String toPrometheus(Map<String, long[]> memory) {
+        StringBuilder prom = new StringBuilder();
+        prom.append("# HELP training_step_latency_seconds Time of one training step.\n");
+        prom.append("# TYPE training_step_latency_seconds summary\n");
+        for (double quantile : new double[]{0.5, 0.99}) {
+            prom.append(String.format(Locale.ROOT, "training_step_latency_seconds{quantile=\"%s\"} %.9f%n", quantile,
+                    stepLatency.percentile(quantile * 100) / 1e9));
+        }
+        prom.append(String.format(Locale.ROOT, "training_step_latency_seconds_sum %.9f%n", stepLatency.getSum() / 1e9));
+        prom.append(String.format(Locale.ROOT, "training_step_latency_seconds_count %d%n", stepLatency.getCount()));
+        prom.append("# TYPE training_step_latency_max_seconds gauge\n");
+        prom.append(String.format(Locale.ROOT, "training_step_latency_max_seconds %.9f%n", stepLatency.getMax() / 1e9));
+        prom.append("# TYPE training_examples_total counter\n");
+        prom.append(String.format(Locale.ROOT, "training_examples_total %d%n", examples));
+        prom.append("# TYPE training_examples_per_second gauge\n");
+        prom.append(String.format(Locale.ROOT, "training_examples_per_second %.1f%n", recentExamplesPerSecond));
+        prom.append("# TYPE training_phase_seconds_total counter\n");
+        for (Phase phase : Phase.values()) {
+            prom.append(String.format(Locale.ROOT, "training_phase_seconds_total{phase=\"%s\"} %.9f%n",
+                    phase.name().toLowerCase(Locale.ROOT), phaseNanos[phase.ordinal()] / 1e9));
+        }
+        prom.append("# TYPE training_live_ndarrays gauge\n");
+        memory.forEach((name, live) -> prom.append(String.format(Locale.ROOT,
+                "training_live_ndarrays{manager=\"%s\"} %d%n", name, live[0])));
+        prom.append("# TYPE training_live_ndarray_bytes gauge\n");
+        memory.forEach((name, live) -> prom.append(String.format(Locale.ROOT,
+                "training_live_ndarray_bytes{manager=\"%s\"} %d%n", name, live[1])));
+        return prom.toString();
+    }
+
+    // readers never see a half written file
+    private static void write(Path file, String content) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "steps %d, p50 %d us, p99 %d us, max %d us, %.0f examples/s, "
+                        + "forward %d ms, backward %d ms, update %d ms", stepLatency.getCount(),
+                stepLatency.percentile(50) / 1000, stepLatency.percentile(99) / 1000, stepLatency.getMax() / 1000,
+                getExamplesPerSecond(), phaseNanos[0] / 1_000_000, phaseNanos[1] / 1_000_000,
+                phaseNanos[2] / 1_000_000);
+    }
+
+    /**
+     * Writes the last snapshot.
+     */
+    @Override
+    public void close() {
+        if (directory != null) {
+            export();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package net.devk;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import java.util.function.DoubleUnaryOperator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+/**
+ * The integrals of {@link Calculus} over samples in the engine, against the same rules on primitives. The samples
+ * are left as they were and the temporaries are closed, see {@link NDManagerLeakExtension}.
+ */
+public class CalculusTest {
+
+    @RegisterExtension
+    static NDManagerLeakExtension leaks = new NDManagerLeakExtension();
+
+    private static final DoubleUnaryOperator F = x -> 3 * x * x - 4 * x;
+    // 31 samples of f over [0, 3], 30 intervals of 0.1
+    private static final int INTERVALS = 30;
+    private static final double DX = 3.0 / INTERVALS;
+
+    private static double[] samples() {
+        double[] y = new double[INTERVALS + 1];
+        for (int i = 0; i < y.length; i++) {
+            y[i] = F.applyAsDouble(i * DX);
+        }
+        return y;
+    }
+
+    private static void assertIntegrals(NDArray y, double tolerance) {
+        NDManager manager = y.getManager();
+        DataType type = y.getDataType();
+        double[] before = values(y);
+        assertEquals(Calculus.trapezoid(F, 0, 3, INTERVALS), Calculus.trapezoid(y, DX), tolerance);
+        // exact for a polynomial of degree 2
+        assertEquals(9, Calculus.simpson(y, DX), tolerance);
+        assertSame(manager, y.getManager());
+        assertSame(type, y.getDataType());
+        assertArrayEquals(before, values(y));
+    }
+
+    private static double[] values(NDArray y) {
+        try (NDArray copy = y.toType(DataType.FLOAT64, true)) {
+            return copy.toDoubleArray();
+        }
+    }
+
+    @Test
+    public void float32SamplesAreIntegratedInDoublePrecision() {
+        float[] y = new float[INTERVALS + 1];
+        double[] exact = samples();
+        for (int i = 0; i < y.length; i++) {
+            y[i] = (float) exact[i];
+        }
+        try (NDArray samples = leaks.getManager().create(y)) {
+            // the samples are rounded to float, the sums are not
+            assertIntegrals(samples, 1e-5);
+        }
+    }
+
+    @Test
+    public void float64SamplesAreIntegratedAsTheyAre() {
+        try (NDArray samples = leaks.getManager().create(samples())) {
+            assertIntegrals(samples, 1e-12);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package net.devk;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import net.devk.regression.SparseDataPoints;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tech.tablesaw.api.Table;
+
+/**
+ * The fields of {@link CsvChunkReader}, quoted ones included, plain Java, no engine needed.
+ */
+public class CsvChunkReaderTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void unquotedFieldsAreTrimmed() {
+        assertArrayEquals(new String[]{"1", "a b", "", ""}, CsvChunkReader.split(" 1 , a b ,, "));
+        assertArrayEquals(new String[]{""}, CsvChunkReader.split(""));
+    }
+
+    @Test
+    public void quotedFieldsKeepCommasQuotesAndSpaces() {
+        assertArrayEquals(new String[]{"1", "Pave, paved", "say \"hi\"", " x ", ""},
+                CsvChunkReader.split("1,\"Pave, paved\", \"say \"\"hi\"\"\" ,\" x \",\"\""));
+        assertArrayEquals(new String[]{"a\nb", "2"}, CsvChunkReader.split("\"a\nb\",2"));
+    }
+
+    @Test
+    public void brokenQuotesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> CsvChunkReader.split("1,\"open"));
+        assertThrows(IllegalArgumentException.class, () -> CsvChunkReader.split("\"a\"b,1"));
+    }
+
+    @Test
+    public void aQuotedLineBreakContinuesTheRecord() throws IOException {
+        BufferedReader reader = new BufferedReader(new StringReader("a,\"b\n\"\"c\"\"\nd\",e\n\"\"\"\",f\n"));
+        assertEquals("a,\"b\n\"\"c\"\"\nd\",e", CsvChunkReader.readRecord(reader));
+        assertEquals("\"\"\"\",f", CsvChunkReader.readRecord(reader));
+        assertNull(CsvChunkReader.readRecord(reader));
+    }
+
+    @Test
+    public void levelsAreTheValuesTablesawReads() throws IOException {
+        Path file = directory.resolve("quoted.csv");
+        Files.write(file, List.of(
+                "rooms,alley,price",
+                "3,\"Pave, old\",127500",
+                "2,Grvl,106000",
+                "4,\"Pave, old\",178100",
+                "NA,\"said \"\"no\"\"\",140000"), StandardCharsets.UTF_8);
+
+        Table table = Table.read().csv(file.toString());
+        try (CsvChunkReader reader = CsvChunkReader.open(file, "price", 10)) {
+            List<String> expected = List.of("rooms", "alley_" + table.stringColumn("alley").get(0),
+                    "alley_" + table.stringColumn("alley").get(1), "alley_" + table.stringColumn("alley").get(3));
+            assertEquals(expected, reader.getFeatureNames());
+            assertEquals(List.of("rooms", "alley_Pave, old", "alley_Grvl", "alley_said \"no\""),
+                    reader.getFeatureNames());
+
+            SparseDataPoints chunk = new SparseDataPoints(reader.numFeatures(), 4, 8);
+            assertEquals(4, reader.nextSparseChunk(chunk));
+            // the missing rooms are the mean of 3, 2 and 4
+            assertArrayEquals(new float[]{
+                    3, 1, 0, 0,
+                    2, 0, 1, 0,
+                    4, 1, 0, 0,
+                    3, 0, 0, 1}, chunk.toDense());
+            assertArrayEquals(new float[]{127500, 106000, 178100, 140000},
+                    Arrays.copyOf(chunk.getLabels(), 4));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package net.devk;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+/**
+ * {@link FusedExpression#eval()} gives the values of {@link FusedExpression#evalEager()} on every path through the
+ * in-place updates, leaves its inputs as they were and nothing else behind, see {@link NDManagerLeakExtension}.
+ */
+public class FusedExpressionTest {
+
+    @RegisterExtension
+    static NDManagerLeakExtension leaks = new NDManagerLeakExtension();
+
+    private static NDArray x;
+    private static NDArray y;
+    private static NDArray row;
+    private static NDArray column;
+
+    @BeforeAll
+    static void setUp() {
+        NDManager manager = leaks.getManager();
+        x = manager.create(new float[]{1, -2, 3.5f, 4, 0.25f, -6, 7, 8, -9.5f, 10, 11, 12}, new Shape(4, 3));
+        y = manager.create(new float[]{2, 3, -4, 5, 6, 7.5f, -8, 9, 10, 11, -0.5f, 13}, new Shape(4, 3));
+        row = manager.create(new float[]{0.5f, -1.5f, 3}, new Shape(3));
+        column = manager.create(new float[]{2, -3, 4, 0.75f}, new Shape(4, 1));
+    }
+
+    private static void assertSameAsEager(FusedExpression expression) {
+        NDArray[] inputs = {x, y, row, column};
+        float[][] before = new float[inputs.length][];
+        for (int i = 0; i < inputs.length; i++) {
+            before[i] = inputs[i].toFloatArray();
+        }
+        try (NDArray eager = expression.evalEager(); NDArray fused = expression.eval()) {
+            assertEquals(eager.getShape(), fused.getShape());
+            assertArrayEquals(eager.toFloatArray(), fused.toFloatArray());
+        }
+        for (int i = 0; i < inputs.length; i++) {
+            assertArrayEquals(before[i], inputs[i].toFloatArray(), "input " + i + " was changed");
+        }
+    }
+
+    @Test
+    public void constantOnTheLeft() {
+        // the right side is an input, then an intermediate that is updated in place
+        assertSameAsEager(FusedExpression.constant(3).sub(x));
+        assertSameAsEager(FusedExpression.constant(3).sub(FusedExpression.of(x).mul(y)));
+        assertSameAsEager(FusedExpression.constant(2).div(x));
+        assertSameAsEager(FusedExpression.constant(2).div(FusedExpression.of(y).add(0.5f)));
+        assertSameAsEager(FusedExpression.constant(-1).add(FusedExpression.of(x).square()));
+        assertSameAsEager(FusedExpression.constant(4).mul(FusedExpression.of(x).neg()));
+    }
+
+    @Test
+    public void rightHandSideHoldsTheResult() {
+        // the left side is an input, the right one an intermediate of the shape of the result
+        assertSameAsEager(FusedExpression.of(x).sub(FusedExpression.of(y).mul(2)));
+        assertSameAsEager(FusedExpression.of(x).add(FusedExpression.of(y).square()));
+        assertSameAsEager(FusedExpression.of(x).mul(FusedExpression.of(y).sub(1)));
+        // a division is not turned around
+        assertSameAsEager(FusedExpression.of(x).div(FusedExpression.of(y).add(20)));
+    }
+
+    @Test
+    public void equalSidesGivePositiveZero() {
+        // x holds 4 at [3, 0], the difference is +0 and the reciprocal +Infinity, like eager
+        assertSameAsEager(FusedExpression.constant(4).sub(x));
+        assertSameAsEager(FusedExpression.constant(1)
+                .div(FusedExpression.constant(4).sub(FusedExpression.of(x).mul(1))));
+        // the right side is an intermediate equal to the left one everywhere
+        assertSameAsEager(FusedExpression.of(x).sub(FusedExpression.of(x).add(0)));
+        assertSameAsEager(FusedExpression.of(y).div(FusedExpression.of(x).sub(FusedExpression.of(x).mul(1))));
+    }
+
+    @Test
+    public void broadcastingToALargerShape() {
+        // an intermediate smaller than the result can not hold it
+        assertSameAsEager(FusedExpression.of(row).mul(2).add(x));
+        assertSameAsEager(FusedExpression.of(row).square().sub(FusedExpression.of(x).mul(3)));
+        assertSameAsEager(FusedExpression.of(x).mul(3).div(FusedExpression.of(row).add(4)));
+        // neither side has the shape of the result
+        assertSameAsEager(FusedExpression.of(column).add(1).mul(FusedExpression.of(row).sub(2)));
+        assertSameAsEager(FusedExpression.of(column).sub(row).abs().sqrt());
+    }
+
+    @Test
+    public void mapReturningItsArgument() {
+        assertSameAsEager(FusedExpression.of(x).add(1).map(array -> array).mul(y));
+        assertSameAsEager(FusedExpression.of(x).map(array -> array).mul(2).sub(y));
+        assertSameAsEager(FusedExpression.of(x).sub(y).map(NDArray::exp).div(2));
+        // an input that comes back from map is the result, nothing is allocated
+        assertSame(x, FusedExpression.of(x).map(array -> array).eval());
+        assertSame(x, FusedExpression.of(x).map(array -> array).evalEager());
+    }
+}
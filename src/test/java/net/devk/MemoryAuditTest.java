@@ -0,0 +1,102 @@
+package net.devk;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.dataset.ArrayDataset;
+import ai.djl.training.tracker.Tracker;
+import java.util.List;
+import net.devk.regression.DataPoints;
+import net.devk.regression.FusedOptimizer;
+import net.devk.regression.FusedTrainingStep;
+import net.devk.regression.LinearRegressionFromScratch;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+/**
+ * The training steps leave nothing behind on the manager of their data, see {@link NDManagerLeakExtension}.
+ */
+public class MemoryAuditTest {
+
+    @RegisterExtension
+    static NDManagerLeakExtension leaks = new NDManagerLeakExtension();
+
+    private static NDArray x;
+    private static NDArray y;
+    private static NDList params;
+    private static FusedOptimizer adam;
+
+    @BeforeAll
+    static void setUp() {
+        NDManager manager = leaks.getManager();
+        DataPoints dataPoints = DataPoints.syntheticData(manager, new float[]{2, -3.4f}, 4.2f, 100, 42);
+        x = dataPoints.getX();
+        y = dataPoints.getY();
+        params = new NDList(manager.zeros(new Shape(2, 1)), manager.zeros(new Shape(1)));
+        params.forEach(param -> param.setRequiresGradient(true));
+        adam = new FusedOptimizer(params, FusedOptimizer.Method.ADAM, Tracker.fixed(0.03f));
+    }
+
+    @RepeatedTest(3)
+    public void fusedStepLeavesNothingBehind() {
+        new FusedTrainingStep(params, 0.03f, 100).step(x, y);
+    }
+
+    @RepeatedTest(3)
+    public void fusedOptimizerStepLeavesNothingBehind() {
+        FusedTrainingStep step = new FusedTrainingStep(params, 0.03f, 100);
+        step.setOptimizer(adam);
+        step.step(x, y);
+    }
+
+    @RepeatedTest(3)
+    public void sgdLeavesNothingBehind() {
+        LinearRegressionFromScratch.sgd(params, 0.03f, 100);
+    }
+
+    @RepeatedTest(3)
+    public void evaluateLeavesNothingBehind() throws Exception {
+        ArrayDataset dataset = new ArrayDataset.Builder()
+                .setData(x)
+                .optLabels(y)
+                .setSampling(10, false)
+                .build();
+        LinearRegressionFromScratch.evaluate(dataset.getData(leaks.getManager()), params);
+    }
+
+    @Test
+    public void aLeakOutsideTheScopesHasNoSite() {
+        MemoryAudit audit = leaks.getAudit();
+        MemoryAudit.Mark mark = audit.mark();
+        try (NDArray leaked = leaks.getManager().ones(new Shape(4))) {
+            List<MemoryAudit.Leak> found = audit.leaksSince(mark);
+            assertEquals(1, found.size());
+            assertEquals(16, found.get(0).getBytes());
+            assertEquals("root", found.get(0).getScope());
+            // not the line that created the audit
+            assertTrue(found.get(0).getSite().startsWith("no scope"), found.get(0).getSite());
+        }
+    }
+
+    @Test
+    public void auditReportsTheScopeOfALeak() {
+        MemoryAudit audit = leaks.getAudit();
+        MemoryAudit.Mark mark = audit.mark();
+        try (NDManager scope = audit.newScope(); NDManager nested = scope.newSubManager()) {
+            nested.ones(new Shape(2));
+            List<MemoryAudit.Leak> found = audit.leaksSince(mark);
+            // the open scope and the array of the sub manager opened in it
+            assertEquals(2, found.size());
+            assertEquals(8, found.get(1).getBytes());
+            assertEquals(found.get(0).getScope(), found.get(1).getScope());
+            assertTrue(found.get(1).getSite().startsWith(getClass().getName()), found.get(1).getSite());
+        }
+        assertTrue(audit.leaksSince(mark).isEmpty());
+    }
+}
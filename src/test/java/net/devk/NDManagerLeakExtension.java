@@ -0,0 +1,99 @@
+package net.devk;
+
+import ai.djl.engine.Engine;
+import ai.djl.engine.EngineException;
+import ai.djl.ndarray.NDManager;
+import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.AfterTestExecutionCallback;
+import org.junit.jupiter.api.extension.BeforeAllCallback;
+import org.junit.jupiter.api.extension.BeforeTestExecutionCallback;
+import org.junit.jupiter.api.extension.ConditionEvaluationResult;
+import org.junit.jupiter.api.extension.ExecutionCondition;
+import org.junit.jupiter.api.extension.ExtensionContext;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * An audited {@link NDManager} for the tests of a class, that fails every test which leaves arrays or open sub
+ * managers behind on it. A test is one iteration of a loop: what it allocates has to be closed by the time it
+ * returns, the state that outlives it is created in {@code @BeforeAll} or {@code @BeforeEach}. Run it as a
+ * {@code @RepeatedTest} to go through the loop a few times.
+ * <pre>
+ * &#64;RegisterExtension
+ * static NDManagerLeakExtension leaks = new NDManagerLeakExtension();
+ * </pre>
+ * The leaks are closed after the failure, so they do not fail the tests that follow. When the engine can not be
+ * loaded the tests of the class are reported as skipped, the tests that need no engine run anyway.
+ */
+public class NDManagerLeakExtension implements ExecutionCondition, BeforeAllCallback, AfterAllCallback,
+        BeforeTestExecutionCallback, AfterTestExecutionCallback {
+
+    private static final ExtensionContext.Namespace NAMESPACE =
+            ExtensionContext.Namespace.create(NDManagerLeakExtension.class);
+
+    // why the engine can not be loaded, null once it is, looked up once for all the test classes
+    private static volatile String missingEngine;
+    private static volatile boolean engineChecked;
+
+    private NDManager manager;
+    private MemoryAudit audit;
+
+    public NDManager getManager() {
+        return manager;
+    }
+
+    public MemoryAudit getAudit() {
+        return audit;
+    }
+
+    @Override
+    public ConditionEvaluationResult evaluateExecutionCondition(ExtensionContext context) {
+        if (!engineChecked) {
+            try {
+                Engine.getInstance();
+            } catch (EngineException | LinkageError e) {
+                // the native library is downloaded on first use, there is nothing to test without it
+                missingEngine = e.toString();
+            }
+            engineChecked = true;
+        }
+        return missingEngine == null
+                ? ConditionEvaluationResult.enabled("engine loaded")
+                : ConditionEvaluationResult.disabled("no engine: " + missingEngine);
+    }
+
+    @Override
+    public void beforeAll(ExtensionContext context) {
+        manager = NDManager.newBaseManager();
+        audit = MemoryAudit.of(manager);
+    }
+
+    @Override
+    public void afterAll(ExtensionContext context) {
+        if (manager != null) {
+            manager.close();
+        }
+    }
+
+    @Override
+    public void beforeTestExecution(ExtensionContext context) {
+        context.getStore(NAMESPACE).put(MemoryAudit.Mark.class, audit.mark());
+    }
+
+    @Override
+    public void afterTestExecution(ExtensionContext context) {
+        MemoryAudit.Mark mark = context.getStore(NAMESPACE).remove(MemoryAudit.Mark.class, MemoryAudit.Mark.class);
+        List<MemoryAudit.Leak> leaks = audit.leaksSince(mark);
+        if (leaks.isEmpty()) {
+            return;
+        }
+        audit.closeSince(mark);
+        StringBuilder message = new StringBuilder(leaks.size() + " arrays or managers left behind:");
+        for (MemoryAudit.Leak leak : leaks) {
+            message.append(System.lineSeparator()).append("  ").append(leak);
+        }
+        fail(message.toString());
+    }
+}
@@ -0,0 +1,115 @@
+package net.devk.regression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ai.djl.ndarray.NDManager;
+import ai.djl.training.dataset.RandomAccessDataset;
+import ai.djl.training.dataset.Record;
+import ai.djl.util.Progress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The batches of {@link BlockShuffleSampler}, plain Java, only the size of the dataset is read.
+ */
+public class BlockShuffleSamplerTest {
+
+    // a dataset of which the sampler only needs the size
+    private static final class Rows extends RandomAccessDataset {
+        private final long size;
+
+        Rows(long size) {
+            super(new Builder().setSampling(1, false));
+            this.size = size;
+        }
+
+        @Override
+        public Record get(NDManager manager, long index) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected long availableSize() {
+            return size;
+        }
+
+        @Override
+        public void prepare(Progress progress) {
+        }
+
+        private static final class Builder extends BaseBuilder<Builder> {
+            @Override
+            protected Builder self() {
+                return this;
+            }
+        }
+    }
+
+    private static List<List<Long>> epoch(BlockShuffleSampler sampler, long size) {
+        List<List<Long>> batches = new ArrayList<>();
+        Iterator<List<Long>> iterator = sampler.sample(new Rows(size));
+        while (iterator.hasNext()) {
+            batches.add(iterator.next());
+        }
+        return batches;
+    }
+
+    // every row once, every batch sorted and full but the last
+    private static void assertPermutation(List<List<Long>> batches, long size, int batchSize) {
+        boolean[] seen = new boolean[Math.toIntExact(size)];
+        for (int b = 0; b < batches.size(); b++) {
+            List<Long> batch = batches.get(b);
+            if (b < batches.size() - 1) {
+                assertEquals(batchSize, batch.size(), "batch " + b + " of " + batches.size());
+            } else {
+                assertTrue(batch.size() > 0 && batch.size() <= batchSize, "last batch of " + batch.size());
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                long row = batch.get(i);
+                assertTrue(row >= 0 && row < size, "row " + row);
+                assertTrue(!seen[(int) row], "row " + row + " twice");
+                seen[(int) row] = true;
+                if (i > 0) {
+                    assertTrue(batch.get(i - 1) < row, "batch " + b + " not sorted: " + batch);
+                }
+            }
+        }
+        for (int row = 0; row < seen.length; row++) {
+            assertTrue(seen[row], "row " + row + " missing");
+        }
+    }
+
+    @Test
+    public void everyEpochIsAPermutationInSortedBatches() {
+        // windows of 192 rows, not a multiple of the batch size, and a short last block
+        BlockShuffleSampler sampler = new BlockShuffleSampler(50, 64, 3, 42);
+        for (int epoch = 0; epoch < 3; epoch++) {
+            assertPermutation(epoch(sampler, 10_007), 10_007, 50);
+        }
+    }
+
+    @Test
+    public void onlyTheLastBatchIsShort() {
+        for (int batchSize : new int[]{1, 7, 64, 100, 1000, 5000}) {
+            BlockShuffleSampler sampler = new BlockShuffleSampler(batchSize, 32, 5, batchSize);
+            for (long size : new long[]{1, 31, 1000, 4321}) {
+                List<List<Long>> batches = epoch(sampler, size);
+                assertEquals((size + batchSize - 1) / batchSize, batches.size(), "size " + size);
+                assertPermutation(batches, size, batchSize);
+            }
+        }
+    }
+
+    @Test
+    public void epochsAreShuffledByTheSeed() {
+        List<List<Long>> first = epoch(new BlockShuffleSampler(50, 64, 3, 42), 10_000);
+        assertEquals(first, epoch(new BlockShuffleSampler(50, 64, 3, 42), 10_000));
+        assertNotEquals(first, epoch(new BlockShuffleSampler(50, 64, 3, 43), 10_000));
+        BlockShuffleSampler sampler = new BlockShuffleSampler(50, 64, 3, 42);
+        assertNotEquals(epoch(sampler, 10_000), epoch(sampler, 10_000));
+    }
+}
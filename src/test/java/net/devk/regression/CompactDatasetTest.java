@@ -0,0 +1,138 @@
+package net.devk.regression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The conversions of {@link CompactDataset}, plain Java, no engine needed. Rounding is checked against the nearest
+ * value found by going through every 16 bit pattern.
+ */
+public class CompactDatasetTest {
+
+    private static final int SAMPLES = 2000;
+
+    private static final float[] FLOAT16 = new float[1 << 16];
+    private static final float[] BFLOAT16 = new float[1 << 16];
+
+    static {
+        for (int i = 0; i < FLOAT16.length; i++) {
+            FLOAT16[i] = CompactDataset.fromFloat16((short) i);
+            BFLOAT16[i] = CompactDataset.fromBFloat16((short) i);
+        }
+    }
+
+    // the finite pattern closest to the value, of the two closest the one with an even mantissa
+    private static int nearest(float[] values, float value) {
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int bits = 0; bits < values.length; bits++) {
+            float candidate = values[bits];
+            if (Float.isNaN(candidate) || Float.isInfinite(candidate)
+                    || candidate == 0 && (bits != 0) != (Math.copySign(1f, value) < 0)) {
+                continue;
+            }
+            double distance = Math.abs((double) candidate - value);
+            if (distance < bestDistance || distance == bestDistance && (bits & 1) == 0) {
+                best = bits;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    // a random float of a random binade in [2^minExponent, 2^maxExponent), either sign
+    private static float randomFloat(Random random, int minExponent, int maxExponent) {
+        int exponent = minExponent + random.nextInt(maxExponent - minExponent);
+        float value = Math.scalb(1 + random.nextFloat(), exponent);
+        return random.nextBoolean() ? value : -value;
+    }
+
+    @Test
+    public void everyFloat16ComesBackAsItself() {
+        for (int bits = 0; bits < FLOAT16.length; bits++) {
+            if (!Float.isNaN(FLOAT16[bits])) {
+                assertEquals(bits, CompactDataset.toFloat16(FLOAT16[bits]) & 0xffff, "bits " + bits);
+            }
+        }
+    }
+
+    @Test
+    public void float16IsTheNearest() {
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            // normal and subnormal halves, up to the largest one, 65504
+            float value = randomFloat(random, -26, 15);
+            assertEquals(nearest(FLOAT16, value), CompactDataset.toFloat16(value) & 0xffff, "value " + value);
+        }
+    }
+
+    @Test
+    public void float16TiesGoToEven() {
+        for (int bits = 1; bits < 0x7bff; bits += 97) {
+            float low = FLOAT16[bits];
+            float high = FLOAT16[bits + 1];
+            float middle = (float) (((double) low + high) / 2);
+            if (middle == (double) low + ((double) high - low) / 2) {
+                int even = (bits & 1) == 0 ? bits : bits + 1;
+                assertEquals(even, CompactDataset.toFloat16(middle) & 0xffff, "between " + low + " and " + high);
+            }
+        }
+    }
+
+    @Test
+    public void float16OverflowsAndUnderflows() {
+        assertEquals(0x7c00, CompactDataset.toFloat16(65520f) & 0xffff);
+        assertEquals(0x7bff, CompactDataset.toFloat16(65519f) & 0xffff);
+        assertEquals(0xfc00, CompactDataset.toFloat16(Float.NEGATIVE_INFINITY) & 0xffff);
+        assertEquals(0, CompactDataset.toFloat16(0x1p-26f) & 0xffff);
+        assertEquals(1, CompactDataset.toFloat16(0x1.8p-25f) & 0xffff);
+        assertTrue(Float.isNaN(CompactDataset.fromFloat16(CompactDataset.toFloat16(Float.NaN))));
+    }
+
+    @Test
+    public void bfloat16IsTheNearest() {
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            float value = randomFloat(random, -126, 127);
+            assertEquals(nearest(BFLOAT16, value), CompactDataset.toBFloat16(value) & 0xffff, "value " + value);
+        }
+        assertTrue(Float.isNaN(CompactDataset.fromBFloat16(CompactDataset.toBFloat16(Float.NaN))));
+    }
+
+    @Test
+    public void int8KeepsEveryValueWithinHalfAStep() {
+        Random random = new Random(42);
+        int numFeatures = 3;
+        float[] x = new float[300 * numFeatures];
+        for (int i = 0; i < x.length; i += numFeatures) {
+            x[i] = random.nextFloat();
+            x[i + 1] = 1000 * (float) random.nextGaussian();
+            // a constant column
+            x[i + 2] = 7.5f;
+        }
+        float[] scale = new float[numFeatures];
+        float[] zero = new float[numFeatures];
+        byte[] q = CompactDataset.quantize(x, numFeatures, scale, zero);
+
+        int[] lowest = {127, 127, 127};
+        int[] highest = {-128, -128, -128};
+        for (int i = 0; i < x.length; i++) {
+            int j = i % numFeatures;
+            float value = q[i] * scale[j] + zero[j];
+            // half a step, and the rounding of the float arithmetic
+            assertTrue(Math.abs(value - x[i]) <= scale[j] / 2 + Math.ulp(Math.abs(x[i]) + scale[j]) * 4,
+                    "column " + j + ": " + x[i] + " came back as " + value);
+            lowest[j] = Math.min(lowest[j], q[i]);
+            highest[j] = Math.max(highest[j], q[i]);
+        }
+        // the whole range of a byte is used, the constant column comes back as itself
+        assertEquals(-128, lowest[0]);
+        assertEquals(127, highest[0]);
+        assertEquals(-128, lowest[1]);
+        assertEquals(127, highest[1]);
+        assertEquals(7.5f, q[2] * scale[2] + zero[2]);
+    }
+}
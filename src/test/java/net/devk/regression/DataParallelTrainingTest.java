@@ -0,0 +1,70 @@
+package net.devk.regression;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import java.util.Random;
+import net.devk.NDManagerLeakExtension;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+/**
+ * {@link DataParallelTraining.Mode#SYNC} on several workers against one worker, on the same data and seed. A step of
+ * {@code n} workers averages a batch of every shard, one worker with {@code n} times the batch size takes the same
+ * rows in one batch when they are laid out shard after shard, batch by batch.
+ */
+public class DataParallelTrainingTest {
+
+    @RegisterExtension
+    static NDManagerLeakExtension leaks = new NDManagerLeakExtension();
+
+    private static final int WORKERS = 4;
+    private static final int BATCH_SIZE = 5;
+    private static final int STEPS = 10;
+    private static final int FEATURES = 2;
+    private static final int ROWS = WORKERS * BATCH_SIZE * STEPS;
+
+    @Test
+    public void syncWorkersTakeTheStepsOfOneWorker() throws Exception {
+        Random random = new Random(42);
+        float[] x = new float[ROWS * FEATURES];
+        float[] y = new float[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            x[i * FEATURES] = (float) random.nextGaussian();
+            x[i * FEATURES + 1] = (float) random.nextGaussian();
+            y[i] = 2 * x[i * FEATURES] - 3.4f * x[i * FEATURES + 1] + 4.2f + 0.01f * (float) random.nextGaussian();
+        }
+        // the rows of step k of worker j are the rows k * BATCH_SIZE.. of shard j
+        int shardRows = ROWS / WORKERS;
+        float[] xInOneBatch = new float[x.length];
+        float[] yInOneBatch = new float[y.length];
+        int row = 0;
+        for (int step = 0; step < STEPS; step++) {
+            for (int worker = 0; worker < WORKERS; worker++) {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    int from = worker * shardRows + step * BATCH_SIZE + i;
+                    System.arraycopy(x, from * FEATURES, xInOneBatch, row * FEATURES, FEATURES);
+                    yInOneBatch[row++] = y[from];
+                }
+            }
+        }
+
+        NDManager manager = leaks.getManager();
+        float[] initialWeights = {0.5f, -0.5f};
+        try (NDArray features = manager.create(x, new Shape(ROWS, FEATURES));
+             NDArray labels = manager.create(y, new Shape(ROWS, 1));
+             NDArray oneBatchFeatures = manager.create(xInOneBatch, new Shape(ROWS, FEATURES));
+             NDArray oneBatchLabels = manager.create(yInOneBatch, new Shape(ROWS, 1))) {
+            DataParallelTraining.Result parallel = new DataParallelTraining(WORKERS, DataParallelTraining.Mode.SYNC,
+                    0.03f, BATCH_SIZE).train(features, labels, initialWeights, 3);
+            DataParallelTraining.Result single = new DataParallelTraining(1, DataParallelTraining.Mode.SYNC,
+                    0.03f, WORKERS * BATCH_SIZE).train(oneBatchFeatures, oneBatchLabels, initialWeights, 3);
+            // the gradients are summed in another order
+            assertArrayEquals(single.getWeights(), parallel.getWeights(), 1e-5f);
+            assertEquals(single.getBias(), parallel.getBias(), 1e-5f);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package net.devk.regression;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.dataset.RandomAccessDataset;
+import ai.djl.training.dataset.Record;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import net.devk.NDManagerLeakExtension;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The batches and sub datasets of {@link MappedDataset} on a file of a few rows, written with plain Java. The segments
+ * are made small, 4 rows of features and 8 rows of labels, so that ranges run over the end of one.
+ */
+public class MappedDatasetTest {
+
+    @RegisterExtension
+    static NDManagerLeakExtension leaks = new NDManagerLeakExtension();
+
+    @TempDir
+    Path directory;
+
+    private static final int ROWS = 10;
+    private static final int FEATURES = 2;
+    private static final int SEGMENT_BYTES = 4 * FEATURES * Float.BYTES;
+
+    // row i is (i, -i) with the label 10 i + 0.5, every value tells its row
+    private static float[] features(long... rows) {
+        float[] x = new float[rows.length * FEATURES];
+        for (int i = 0; i < rows.length; i++) {
+            x[i * FEATURES] = rows[i];
+            x[i * FEATURES + 1] = -rows[i];
+        }
+        return x;
+    }
+
+    private static float[] labels(long... rows) {
+        float[] y = new float[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            y[i] = 10 * rows[i] + 0.5f;
+        }
+        return y;
+    }
+
+    private static long[] range(long from, long to) {
+        long[] rows = new long[(int) (to - from)];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = from + i;
+        }
+        return rows;
+    }
+
+    // the layout of the class comment, by hand
+    private Path writeByHand() throws IOException {
+        long[] all = range(0, ROWS);
+        ByteBuffer bytes = ByteBuffer.allocate(MappedDataset.HEADER_BYTES + ROWS * (FEATURES + 1) * Float.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putInt(MappedDataset.MAGIC).putInt(MappedDataset.VERSION).putLong(ROWS).putInt(FEATURES).putInt(1);
+        bytes.position(MappedDataset.HEADER_BYTES);
+        bytes.asFloatBuffer().put(features(all)).put(labels(all));
+        Path file = directory.resolve("byHand.bin");
+        Files.write(file, bytes.array());
+        return file;
+    }
+
+    private static MappedDataset open(Path file) throws IOException {
+        return MappedDataset.builder().setFile(file).optSegmentBytes(SEGMENT_BYTES).setSampling(3, false).build();
+    }
+
+    // a batch closes the manager it was made with, like the batches of Dataset.getData it gets a sub manager
+    private static void assertRows(Batch batch, long... rows) {
+        try (batch) {
+            assertEquals(new Shape(rows.length, FEATURES), batch.getData().head().getShape());
+            assertArrayEquals(features(rows), batch.getData().head().toFloatArray());
+            assertArrayEquals(labels(rows), batch.getLabels().head().toFloatArray());
+        }
+    }
+
+    @Test
+    public void aFileWrittenByHandIsWhatWriteWrites() throws IOException {
+        Path byHand = writeByHand();
+        Path written = directory.resolve("written.bin");
+        NDManager manager = leaks.getManager();
+        try (NDManager dataManager = manager.newSubManager()) {
+            long[] all = range(0, ROWS);
+            assertEquals(ROWS, MappedDataset.write(written,
+                    dataManager.create(features(all), new Shape(ROWS, FEATURES)), dataManager.create(labels(all))));
+        }
+        assertArrayEquals(Files.readAllBytes(byHand), Files.readAllBytes(written));
+
+        MappedDataset dataset = open(written);
+        assertEquals(ROWS, dataset.size());
+        assertEquals(FEATURES, dataset.getNumFeatures());
+        assertRows(dataset.getByRange(manager.newSubManager(), 0, ROWS), range(0, ROWS));
+    }
+
+    @Test
+    public void rangesWithinAndAcrossSegments() throws IOException {
+        MappedDataset dataset = open(writeByHand());
+        NDManager manager = leaks.getManager();
+        assertRows(dataset.getByRange(manager.newSubManager(), 0, 4), range(0, 4));
+        assertRows(dataset.getByRange(manager.newSubManager(), 5, 7), range(5, 7));
+        // features 3..4 are in the first segment and 4..6 in the second, the labels are all in the first
+        assertRows(dataset.getByRange(manager.newSubManager(), 3, 6), range(3, 6));
+        // over two feature segments and both label segments
+        assertRows(dataset.getByRange(manager.newSubManager(), 2, ROWS), range(2, ROWS));
+        assertRows(dataset.getByRange(manager.newSubManager(), 9, 10), 9);
+    }
+
+    @Test
+    public void indicesInAnyOrder() throws IOException {
+        MappedDataset dataset = open(writeByHand());
+        NDManager manager = leaks.getManager();
+        assertRows(dataset.getByIndices(manager.newSubManager(), 9, 0, 4, 3, 8), 9, 0, 4, 3, 8);
+        assertRows(dataset.getByIndices(manager.newSubManager(), 5, 5), 5, 5);
+    }
+
+    @Test
+    public void splitsAreViewsOfTheirRows() throws Exception {
+        MappedDataset dataset = open(writeByHand());
+        NDManager manager = leaks.getManager();
+        RandomAccessDataset[] parts = dataset.randomSplit(6, 4);
+        assertEquals(6, parts[0].size());
+        assertEquals(4, parts[1].size());
+
+        long[] seen = new long[0];
+        for (RandomAccessDataset part : parts) {
+            MappedDataset view = (MappedDataset) part;
+            long[] rows = rowsOf(view);
+            assertRows(view.getByRange(manager.newSubManager(), 0, view.size()), rows);
+            assertRows(view.getByRange(manager.newSubManager(), 1, 3), rows[1], rows[2]);
+            assertRows(view.getByIndices(manager.newSubManager(), 3, 0), rows[3], rows[0]);
+            Record record = view.get(manager, 2);
+            try (NDList x = record.getData(); NDList y = record.getLabels()) {
+                assertArrayEquals(features(rows[2]), x.head().toFloatArray());
+                assertArrayEquals(labels(rows[2]), y.head().toFloatArray());
+            }
+
+            // the views of a view are made of its rows, not of the first rows of the file
+            RandomAccessDataset[] halves = view.randomSplit(1, 1);
+            long[] inHalves = concat(rowsOf(halves[0]), rowsOf(halves[1]));
+            Arrays.sort(inHalves);
+            seen = concat(seen, rows);
+            Arrays.sort(rows);
+            assertArrayEquals(rows, inHalves);
+        }
+        Arrays.sort(seen);
+        assertArrayEquals(range(0, ROWS), seen);
+    }
+
+    // the rows a dataset is made of, found from the first feature, (i, -i) is row i
+    private static long[] rowsOf(RandomAccessDataset dataset) {
+        MappedDataset view = (MappedDataset) dataset;
+        try (Batch batch = view.getByRange(leaks.getManager().newSubManager(), 0, view.size())) {
+            float[] x = batch.getData().head().toFloatArray();
+            long[] rows = new long[batch.getSize()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = (long) x[i * FEATURES];
+            }
+            return rows;
+        }
+    }
+
+    private static long[] concat(long[] a, long[] b) {
+        long[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
@@ -0,0 +1,67 @@
+package net.devk.regression;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import net.devk.NDManagerLeakExtension;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+/**
+ * {@link NormalEquationSolver} against sgd with {@link FusedTrainingStep} over the same chunks. The noise is large
+ * enough that the least squares weights are measurably off the true ones, sgd has to find the former.
+ */
+public class NormalEquationSolverTest {
+
+    @RegisterExtension
+    static NDManagerLeakExtension leaks = new NDManagerLeakExtension();
+
+    private static final float[] WEIGHTS = {2, -3.4f};
+    private static final float BIAS = 4.2f;
+    private static final int ROWS = 2000;
+    private static final int CHUNK_SIZE = 100;
+
+    @Test
+    public void solutionIsWhereSgdConverges() throws Exception {
+        NDManager manager = leaks.getManager();
+        float[] x = new float[ROWS * WEIGHTS.length];
+        float[] y = new float[ROWS];
+        SyntheticDataset.fill(WEIGHTS, BIAS, 0.5f, 42, 0, ROWS, x, 0, y, 0);
+        try (NDManager dataManager = manager.newSubManager()) {
+            DataPoints data = new DataPoints(dataManager.create(x, new Shape(ROWS, WEIGHTS.length)),
+                    dataManager.create(y));
+            NormalEquationSolver.Solution solution = new NormalEquationSolver(2)
+                    .solve(manager, DataChunks.of(data, CHUNK_SIZE));
+            assertEquals(ROWS, solution.getNumExamples());
+
+            NDList params = new NDList(dataManager.zeros(new Shape(WEIGHTS.length, 1)),
+                    dataManager.zeros(new Shape(1)));
+            params.forEach(param -> param.setRequiresGradient(true));
+            for (int epoch = 0; epoch < 100; epoch++) {
+                // the step shrinks so the noise of the batches averages out
+                FusedTrainingStep step = new FusedTrainingStep(params, 0.1f / (1 + epoch / 5f), CHUNK_SIZE);
+                DataChunks chunks = DataChunks.of(data, CHUNK_SIZE);
+                while (true) {
+                    try (NDManager chunkManager = manager.newSubManager()) {
+                        DataPoints chunk = chunks.nextChunk(chunkManager);
+                        if (chunk == null) {
+                            break;
+                        }
+                        step.step(chunk.getX(), chunk.getY());
+                    }
+                }
+            }
+            float[] sgdWeights = params.get(0).toFloatArray();
+            float sgdBias = params.get(1).getFloat();
+
+            assertArrayEquals(solution.getWeights(), sgdWeights, 2e-3f);
+            assertEquals(solution.getBias(), sgdBias, 2e-3f);
+            // the seeded noise moves the least squares weights ten times further from the true ones than that
+            assertTrue(Math.abs(WEIGHTS[1] - solution.getWeights()[1]) > 2e-2, "no noise to tell them apart");
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package net.devk.regression;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * {@link RowStream#tail} on a file that is still being written, plain Java, no engine needed.
+ */
+public class RowStreamTest {
+
+    @TempDir
+    Path directory;
+
+    private static void append(Path file, String text) throws IOException {
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    @Test
+    public void malformedLinesAreSkippedAndTheTailGoesOn() throws Exception {
+        Path file = directory.resolve("stream.csv");
+        append(file, "x1,x2,y\n1,2,3\n4,five,6\n7,8\n\nNaN,1,2\r\n9,10,11\n12,1");
+        float[] x = new float[20];
+        float[] y = new float[10];
+        try (RowStream stream = RowStream.tail(file, 2)) {
+            assertEquals(2, stream.read(x, y, 0, 10, 0));
+            assertArrayEquals(new float[]{1, 2, 9, 10}, Arrays.copyOf(x, 4));
+            assertArrayEquals(new float[]{3, 11}, Arrays.copyOf(y, 2));
+            assertEquals(3, stream.getSkippedLines());
+
+            // the line that was cut off is read once its newline is there, after a bad line
+            append(file, "3,14\nnot,a,row\n15,16,17\n");
+            assertEquals(2, stream.read(x, y, 2, 8, 0));
+            assertArrayEquals(new float[]{1, 2, 9, 10, 12, 13, 15, 16}, Arrays.copyOf(x, 8));
+            assertArrayEquals(new float[]{3, 11, 14, 17}, Arrays.copyOf(y, 4));
+            assertEquals(4, stream.getSkippedLines());
+        }
+    }
+
+    @Test
+    public void onlyTheFirstLineCanBeAHeader() throws Exception {
+        Path file = directory.resolve("numbers.csv");
+        append(file, "1,2,3\nx1,x2,y\n");
+        float[] x = new float[4];
+        float[] y = new float[2];
+        try (RowStream stream = RowStream.tail(file, 2)) {
+            assertEquals(1, stream.read(x, y, 0, 2, 0));
+            assertEquals(1, stream.getSkippedLines());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package net.devk.regression;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link SparseTrainingStep} against the dense {@link ArrayTrainingStep}, and the storage of {@link SparseDataPoints},
+ * plain Java, no engine needed.
+ */
+public class SparseTrainingStepTest {
+
+    private static final int ROWS = 500;
+    private static final int FEATURES = 40;
+
+    // about one feature in ten is not zero, some rows have none, the dense copy is filled alongside
+    private static SparseDataPoints randomData(Random random, float[] dense) {
+        SparseDataPoints data = new SparseDataPoints(FEATURES, 1, 1);
+        for (int i = 0; i < ROWS; i++) {
+            float label = 0;
+            for (int j = 0; j < FEATURES; j++) {
+                if (random.nextInt(10) == 0) {
+                    float value = (float) random.nextGaussian();
+                    data.add(j, value);
+                    dense[i * FEATURES + j] = value;
+                    label += (j % 3 - 1) * value;
+                }
+            }
+            data.endRow(label + 0.5f);
+        }
+        return data;
+    }
+
+    @Test
+    public void sparseStepEndsWithTheWeightsOfTheDenseStep() {
+        Random random = new Random(42);
+        float[] dense = new float[ROWS * FEATURES];
+        SparseDataPoints data = randomData(random, dense);
+        float[] y = data.getLabels();
+        int batchSize = 32;
+        float[] initial = new float[FEATURES];
+        for (int j = 0; j < FEATURES; j++) {
+            initial[j] = 0.1f * (float) random.nextGaussian();
+        }
+        SparseTrainingStep sparse = new SparseTrainingStep(initial, 0.2f, 0.05f, batchSize);
+        ArrayTrainingStep array = new ArrayTrainingStep(initial, 0.2f, 0.05f, batchSize);
+
+        for (int epoch = 0; epoch < 5; epoch++) {
+            for (int from = 0; from < ROWS; from += batchSize) {
+                int rows = Math.min(batchSize, ROWS - from);
+                float sparseLoss = sparse.step(data, from, rows);
+                float denseLoss = array.step(dense, y, from, rows);
+                assertEquals(denseLoss, sparseLoss, 1e-5f * Math.max(1, denseLoss), "loss at row " + from);
+            }
+        }
+        assertArrayEquals(array.getWeights(), sparse.getWeights(), 1e-5f);
+        assertEquals(array.getBias(), sparse.getBias(), 1e-5f);
+    }
+
+    @Test
+    public void sparseStepChecksTheNumberOfFeatures() {
+        SparseDataPoints data = new SparseDataPoints(3, 1, 1);
+        data.endRow(1);
+        SparseTrainingStep step = new SparseTrainingStep(new float[4], 0, 0.1f, 1);
+        assertThrows(IllegalArgumentException.class, () -> step.step(data, 0, 1));
+    }
+
+    @Test
+    public void dataPointsGrowPastTheExpectedSize() {
+        Random random = new Random(7);
+        float[] dense = new float[ROWS * FEATURES];
+        // starts with room for one row and one non-zero
+        SparseDataPoints data = randomData(random, dense);
+        int nonZeros = 0;
+        for (float value : dense) {
+            if (value != 0) {
+                nonZeros++;
+            }
+        }
+        assertEquals(ROWS, data.numRows());
+        assertEquals(nonZeros, data.nonZeros());
+        assertArrayEquals(dense, data.toDense());
+        for (int i = 0; i < ROWS; i++) {
+            for (int k = data.rowStart(i); k < data.rowEnd(i); k++) {
+                assertEquals(dense[i * FEATURES + data.getColumns()[k]], data.getValues()[k]);
+            }
+        }
+    }
+
+    @Test
+    public void clearKeepsTheArraysForTheNextChunk() {
+        SparseDataPoints data = randomData(new Random(1), new float[ROWS * FEATURES]);
+        int[] columns = data.getColumns();
+        data.clear();
+        assertEquals(0, data.numRows());
+        assertEquals(0, data.nonZeros());
+        assertEquals(0, data.toDense().length);
+
+        data.add(2, 1.5f);
+        data.add(0, 0);
+        data.endRow(3);
+        data.endRow(4);
+        data.add(FEATURES - 1, -2);
+        data.endRow(5);
+        assertEquals(3, data.numRows());
+        assertEquals(2, data.nonZeros());
+        // an empty row has no non-zeros, a zero is not stored
+        assertEquals(data.rowStart(1), data.rowEnd(1));
+        float[] expected = new float[3 * FEATURES];
+        expected[2] = 1.5f;
+        expected[3 * FEATURES - 1] = -2;
+        assertArrayEquals(expected, data.toDense());
+        assertArrayEquals(new float[]{3, 4, 5}, Arrays.copyOf(data.getLabels(), 3));
+        assertSame(columns, data.getColumns());
+    }
+
+    @Test
+    public void featuresOutsideTheRowAreRejected() {
+        SparseDataPoints data = new SparseDataPoints(FEATURES, 1, 1);
+        assertThrows(IndexOutOfBoundsException.class, () -> data.add(FEATURES, 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> data.add(-1, 1));
+    }
+}